@@ -61,11 +61,31 @@ public class CloudMetadata {
     private String zookeeperType = null;
     private String zookeeperConnection = null;
     private int seqNumberRange = 10;
+    private double seqNumberPrefetch = 0.5;
+    private long seqNumberRangeWindow = 0;
+    private int seqNumberRangeMin = 1;
+    private int seqNumberRangeMax = 1000;
+    private long zooKeeperPollInterval = 1000;
     private boolean executeBackup = true;
     private boolean backupToBlob = true;
     private String backupPrefix = "SeqNumber_";
     private String backupDir;
+    private int backupHighWaterMark = 100;
     private boolean followCascades = false;
+    private long drainTimeout = 5000;
+    private int shippingThreads = 1;
+    private int shippingCapacity = 1024;
+    private int shippingBatchSize = 100;
+    private long shippingInterval = 50;
+    private long shippingTimeout = 30000;
+    private String shippingFile = null;
+    private String journalDir = null;
+    private int journalSegmentSize = 16 * 1024 * 1024;
+
+    private boolean useWriteBehind = false;
+    private int writeBehindSize = 100;
+    private long writeBehindInterval = 1000;
+    private int entityManagerPoolSize = 10;
 
     public String getBackend_name() {
         return backend_name;
@@ -263,6 +283,54 @@ public class CloudMetadata {
         return this.seqNumberRange;
     }
 
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the fraction of a sequence number range
+     * that must be served before the next range is requested in background.
+     *
+     * @return the prefetch threshold, 1 if prefetching is disabled.
+     */
+    public double getSeqNumberPrefetch() {
+        return this.seqNumberPrefetch;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the time in milliseconds a range
+     * of sequence numbers should last, used to adapt the range size to the table allocation rate.
+     *
+     * @return the range window, 0 if the range size is fixed.
+     */
+    public long getSeqNumberRangeWindow() {
+        return this.seqNumberRangeWindow;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the minimum size of an adapted range.
+     *
+     * @return the minimum range size.
+     */
+    public int getSeqNumberRangeMin() {
+        return this.seqNumberRangeMin;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the maximum size of an adapted range.
+     *
+     * @return the maximum range size.
+     */
+    public int getSeqNumberRangeMax() {
+        return this.seqNumberRangeMax;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the milliseconds between two refreshes
+     * of the synchronization state by the http ZooKeeper client.
+     *
+     * @return the poll interval.
+     */
+    public long getZooKeeperPollInterval() {
+        return this.zooKeeperPollInterval;
+    }
+
     /**
      * Returns the configuration from <i>migration.xml</i> file for backing up the sequence number dispenser state.
      *
@@ -309,6 +377,16 @@ public class CloudMetadata {
         return this.backupDir;
     }
 
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the number of sequence numbers
+     * covered by each backed up high-water mark of sequence number dispensers.
+     *
+     * @return the sequence numbers served for each backup, 1 backs up the state on every change.
+     */
+    public int getBackupHighWaterMark() {
+        return this.backupHighWaterMark;
+    }
+
     /**
      * Returns the configuration from <i>migration.xml</i> file for following cascade types during
      * statement building.
@@ -319,6 +397,132 @@ public class CloudMetadata {
         return this.followCascades;
     }
 
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the maximum time in milliseconds
+     * a migration state transition waits for in-flight writes to complete.
+     *
+     * @return the drain timeout.
+     */
+    public long getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the number of threads
+     * shipping statements to the migration system.
+     *
+     * @return the number of shipper threads.
+     */
+    public int getShippingThreads() {
+        return this.shippingThreads;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the number of statements
+     * each shipper thread can hold before blocking the application.
+     *
+     * @return the capacity of each shipping buffer.
+     */
+    public int getShippingCapacity() {
+        return this.shippingCapacity;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the maximum number of statements shipped at once.
+     *
+     * @return the shipping batch size.
+     */
+    public int getShippingBatchSize() {
+        return this.shippingBatchSize;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the maximum time in milliseconds
+     * a statement waits for its batch to fill up before being shipped.
+     *
+     * @return the shipping interval.
+     */
+    public long getShippingInterval() {
+        return this.shippingInterval;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the maximum time in milliseconds
+     * the application waits for room in a full shipping buffer before failing.
+     *
+     * @return the shipping timeout.
+     */
+    public long getShippingTimeout() {
+        return this.shippingTimeout;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the local file statements are shipped to,
+     * in place of the migration system.
+     *
+     * @return the full path of the file or null if statements are sent to the migration system.
+     */
+    public String getShippingFile() {
+        return this.shippingFile;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the directory of the local journal
+     * of propagated statements.
+     *
+     * @return the full path of the journal directory or null if statements are not journaled.
+     */
+    public String getJournalDir() {
+        return this.journalDir;
+    }
+
+    /**
+     * Returns the configuration from <i>migration.xml</i> file for the size in bytes of each journal segment.
+     *
+     * @return the journal segment size.
+     */
+    public int getJournalSegmentSize() {
+        return this.journalSegmentSize;
+    }
+
+    /**
+     * Returns true if write-behind has been enabled in the <u>configuration.xml</u> file.
+     *
+     * @return true if entity manager writes must be buffered, false otherwise.
+     */
+    public boolean useWriteBehind() {
+        return this.useWriteBehind;
+    }
+
+    /**
+     * Returns the maximum number of buffered writes specified in the <u>configuration.xml</u> file.
+     *
+     * @return the number of pending writes that triggers a flush.
+     */
+    public int getWriteBehindSize() {
+        return this.writeBehindSize;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds a write can stay buffered
+     * specified in the <u>configuration.xml</u> file.
+     *
+     * @return the buffering time that triggers a flush.
+     */
+    public long getWriteBehindInterval() {
+        return this.writeBehindInterval;
+    }
+
+    /**
+     * Returns the maximum number of entity managers that can be borrowed at the same time
+     * from the pool, as specified in the <u>configuration.xml</u> file.
+     *
+     * @return the size of the entity manager pool.
+     */
+    public int getEntityManagerPoolSize() {
+        return this.entityManagerPoolSize;
+    }
+
     private CloudMetadata() throws ParserConfigurationFileException {
         DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
         DocumentBuilder b;
@@ -419,6 +623,10 @@ public class CloudMetadata {
                                 .getNamedItem("name").getNodeValue();
                     }
                 }
+            } else if (n.getNodeName().equals("writeBehind")) {
+                addWriteBehindMetadata(n);
+            } else if (n.getNodeName().equals("entityManagerPool")) {
+                addEntityManagerPoolMetadata(n);
             }
         }
         addQueueMetadata();
@@ -426,6 +634,121 @@ public class CloudMetadata {
         addMigrationMetadata();
     }
 
+    private void addEntityManagerPoolMetadata(Node pool) throws ParserConfigurationFileException {
+        NodeList poolChildren = pool.getChildNodes();
+        for (int u = 0; u < poolChildren.getLength(); u++) {
+            Node n = poolChildren.item(u);
+            if (n.getNodeName().equals("size")) {
+                try {
+                    this.entityManagerPoolSize = Integer.parseInt(n.getTextContent());
+                } catch (NumberFormatException e) {
+                    throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for entityManagerPool <size>", e);
+                }
+                if (this.entityManagerPoolSize <= 0) {
+                    throw new ParserConfigurationFileException("entityManagerPool <size> must be positive");
+                }
+            }
+        }
+    }
+
+    private void addWriteBehindMetadata(Node writeBehind) throws ParserConfigurationFileException {
+        NodeList writeBehindChildren = writeBehind.getChildNodes();
+        for (int u = 0; u < writeBehindChildren.getLength(); u++) {
+            Node n = writeBehindChildren.item(u);
+            if (n.getNodeName().equals("execute")) {
+                if ("yes".equalsIgnoreCase(n.getTextContent())) {
+                    this.useWriteBehind = true;
+                } else if ("no".equalsIgnoreCase(n.getTextContent())) {
+                    this.useWriteBehind = false;
+                } else {
+                    throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for writeBehind <execute>");
+                }
+            } else if (n.getNodeName().equals("size")) {
+                try {
+                    this.writeBehindSize = Integer.parseInt(n.getTextContent());
+                } catch (NumberFormatException e) {
+                    throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for writeBehind <size>", e);
+                }
+                if (this.writeBehindSize <= 0) {
+                    throw new ParserConfigurationFileException("writeBehind <size> must be positive");
+                }
+            } else if (n.getNodeName().equals("interval")) {
+                try {
+                    this.writeBehindInterval = Long.parseLong(n.getTextContent());
+                } catch (NumberFormatException e) {
+                    throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for writeBehind <interval>", e);
+                }
+                if (this.writeBehindInterval <= 0) {
+                    throw new ParserConfigurationFileException("writeBehind <interval> must be positive");
+                }
+            }
+        }
+    }
+
+    private void addShippingMetadata(Node shipping) throws ParserConfigurationFileException {
+        NodeList shippingChildren = shipping.getChildNodes();
+        for (int u = 0; u < shippingChildren.getLength(); u++) {
+            Node n = shippingChildren.item(u);
+            try {
+                if (n.getNodeName().equals("threads")) {
+                    this.shippingThreads = Integer.parseInt(n.getTextContent());
+                    if (this.shippingThreads <= 0) {
+                        throw new ParserConfigurationFileException("shipping <threads> must be positive");
+                    }
+                } else if (n.getNodeName().equals("capacity")) {
+                    this.shippingCapacity = Integer.parseInt(n.getTextContent());
+                    if (this.shippingCapacity <= 0) {
+                        throw new ParserConfigurationFileException("shipping <capacity> must be positive");
+                    }
+                } else if (n.getNodeName().equals("batchSize")) {
+                    this.shippingBatchSize = Integer.parseInt(n.getTextContent());
+                    if (this.shippingBatchSize <= 0) {
+                        throw new ParserConfigurationFileException("shipping <batchSize> must be positive");
+                    }
+                } else if (n.getNodeName().equals("interval")) {
+                    this.shippingInterval = Long.parseLong(n.getTextContent());
+                    if (this.shippingInterval < 0) {
+                        throw new ParserConfigurationFileException("shipping <interval> cannot be negative");
+                    }
+                } else if (n.getNodeName().equals("timeout")) {
+                    this.shippingTimeout = Long.parseLong(n.getTextContent());
+                    if (this.shippingTimeout < 0) {
+                        throw new ParserConfigurationFileException("shipping <timeout> cannot be negative");
+                    }
+                } else if (n.getNodeName().equals("file")) {
+                    if ("".equals(n.getTextContent())) {
+                        throw new ParserConfigurationFileException("You cannot specify a blank file path for shipping!");
+                    }
+                    this.shippingFile = n.getTextContent();
+                }
+            } catch (NumberFormatException e) {
+                throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for shipping <" + n.getNodeName() + ">", e);
+            }
+        }
+    }
+
+    private void addJournalMetadata(Node journal) throws ParserConfigurationFileException {
+        NodeList journalChildren = journal.getChildNodes();
+        for (int u = 0; u < journalChildren.getLength(); u++) {
+            Node n = journalChildren.item(u);
+            if (n.getNodeName().equals("directory")) {
+                if ("".equals(n.getTextContent())) {
+                    throw new ParserConfigurationFileException("You cannot specify a blank directory path for the journal!");
+                }
+                this.journalDir = n.getTextContent();
+            } else if (n.getNodeName().equals("segmentSize")) {
+                try {
+                    this.journalSegmentSize = Integer.parseInt(n.getTextContent());
+                } catch (NumberFormatException e) {
+                    throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for journal <segmentSize>", e);
+                }
+                if (this.journalSegmentSize <= 0) {
+                    throw new ParserConfigurationFileException("journal <segmentSize> must be positive");
+                }
+            }
+        }
+    }
+
     private void addPersistenceMetadata()
             throws ParserConfigurationFileException {
         DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
@@ -511,7 +834,8 @@ public class CloudMetadata {
                     for (int u = 0; u < zooKeeperChildren.getLength(); u++) {
                         Node n2 = zooKeeperChildren.item(u);
                         if (n2.getNodeName().equals("type")) {
-                            if (!"http".equalsIgnoreCase(n2.getTextContent()) && !"thread".equalsIgnoreCase(n2.getTextContent())) {
+                            if (!"http".equalsIgnoreCase(n2.getTextContent()) && !"thread".equalsIgnoreCase(n2.getTextContent())
+                                    && !"memory".equalsIgnoreCase(n2.getTextContent())) {
                                 throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <type>");
                             }
                             this.zookeeperType = n2.getTextContent();
@@ -526,6 +850,45 @@ public class CloudMetadata {
                             } catch (NumberFormatException e) {
                                 throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <range>", e);
                             }
+                        } else if (n2.getNodeName().equals("prefetch")) {
+                            try {
+                                this.seqNumberPrefetch = Double.parseDouble(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <prefetch>", e);
+                            }
+                            if (this.seqNumberPrefetch <= 0 || this.seqNumberPrefetch > 1) {
+                                throw new ParserConfigurationFileException("zooKeeper <prefetch> must be in (0, 1]");
+                            }
+                        } else if (n2.getNodeName().equals("rangeWindow")) {
+                            try {
+                                this.seqNumberRangeWindow = Long.parseLong(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <rangeWindow>", e);
+                            }
+                            if (this.seqNumberRangeWindow < 0) {
+                                throw new ParserConfigurationFileException("zooKeeper <rangeWindow> cannot be negative");
+                            }
+                        } else if (n2.getNodeName().equals("rangeMin")) {
+                            try {
+                                this.seqNumberRangeMin = Integer.parseInt(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <rangeMin>", e);
+                            }
+                        } else if (n2.getNodeName().equals("rangeMax")) {
+                            try {
+                                this.seqNumberRangeMax = Integer.parseInt(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <rangeMax>", e);
+                            }
+                        } else if (n2.getNodeName().equals("pollInterval")) {
+                            try {
+                                this.zooKeeperPollInterval = Long.parseLong(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for zooKeeper <pollInterval>", e);
+                            }
+                            if (this.zooKeeperPollInterval <= 0) {
+                                throw new ParserConfigurationFileException("zooKeeper <pollInterval> must be positive");
+                            }
                         }
                     }
                 } else if (n.getNodeName().equals("backup")) {
@@ -558,8 +921,21 @@ public class CloudMetadata {
                                 throw new ParserConfigurationFileException("You cannot specify a blank prefix for backups!");
                             }
                             this.backupPrefix = n2.getTextContent();
+                        } else if (n2.getNodeName().equals("highWaterMark")) {
+                            try {
+                                this.backupHighWaterMark = Integer.parseInt(n2.getTextContent());
+                            } catch (NumberFormatException e) {
+                                throw new ParserConfigurationFileException("Unrecognized value '" + n2.getTextContent() + "' for backup <highWaterMark>", e);
+                            }
+                            if (this.backupHighWaterMark <= 0) {
+                                throw new ParserConfigurationFileException("backup <highWaterMark> must be positive");
+                            }
                         }
                     }
+                } else if (n.getNodeName().equals("shipping")) {
+                    addShippingMetadata(n);
+                } else if (n.getNodeName().equals("journal")) {
+                    addJournalMetadata(n);
                 } else if (n.getNodeName().equals("followCascades")) {
                     if ("yes".equalsIgnoreCase(n.getTextContent())) {
                         this.followCascades = true;
@@ -568,8 +944,20 @@ public class CloudMetadata {
                     } else {
                         throw new ParserConfigurationFileException("Unrecognized value " + n.getTextContent() + " for <followCascades>");
                     }
+                } else if (n.getNodeName().equals("drainTimeout")) {
+                    try {
+                        this.drainTimeout = Long.parseLong(n.getTextContent());
+                    } catch (NumberFormatException e) {
+                        throw new ParserConfigurationFileException("Unrecognized value '" + n.getTextContent() + "' for <drainTimeout>", e);
+                    }
+                    if (this.drainTimeout < 0) {
+                        throw new ParserConfigurationFileException("<drainTimeout> cannot be negative");
+                    }
                 }
             }
+            if (this.seqNumberRangeMin <= 0 || this.seqNumberRangeMin > this.seqNumberRangeMax) {
+                throw new ParserConfigurationFileException("zooKeeper <rangeMin> must be positive and not greater than <rangeMax>");
+            }
             if (!this.backupToBlob && !this.backupDir.endsWith("/")) {
                 this.backupDir += "/";
             }
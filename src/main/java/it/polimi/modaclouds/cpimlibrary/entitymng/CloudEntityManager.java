@@ -16,6 +16,8 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng;
 
+import it.polimi.modaclouds.cpimlibrary.CloudMetadata;
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.OperationType;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberProvider;
@@ -28,13 +30,24 @@ import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.CriteriaUpdate;
 import javax.persistence.metamodel.Metamodel;
-import java.lang.reflect.Field;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Delegate every operation to the {@link javax.persistence.EntityManager} implementation
  * of the runtime provider except for persist, merge, remove and createQuery methods.
+ * <p/>
+ * If write-behind is enabled in <i>configuration.xml</i>, writes that do not go to the migration system
+ * are buffered in a {@link it.polimi.modaclouds.cpimlibrary.entitymng.WriteBehindBuffer} and applied
+ * to the runtime provider when the buffer thresholds are hit, on {@code flush()}, {@code close()},
+ * before a transaction commits and before a query is executed. Outside transactions the time threshold
+ * is enforced by a background flush, for this reason in write-behind mode the operations of the manager
+ * are guarded by a lock. Writes still buffered when a migration starts are sent to the migration system.
+ * <p/>
+ * Entities of the classes configured in <i>persistence.xml</i> are looked up in the second-level
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityCache} by {@code find}
+ * and evicted from it by {@code merge} and {@code remove}, both before and after the write reaches the store.
  *
  * @author Fabio Arcidiacono.
  * @see javax.persistence.EntityManager
@@ -42,12 +55,206 @@ import java.util.Map;
 @Slf4j
 public class CloudEntityManager implements EntityManager {
 
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = CloudThread.getThread(runnable);
+            if (thread == null) {
+                thread = new Thread(runnable);
+            }
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final long FLUSH_RETRY_DELAY = 10;
     private MigrationManager migrant;
     private EntityManager delegate;
+    private WriteBehindBuffer buffer;
+    private ReentrantLock lock;
+    private EntityCache cache;
+    private QueryCache queryCache;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean transactionActive;
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushExpired();
+        }
+    };
 
     public CloudEntityManager(EntityManager entityManager) {
-        this.migrant = MF.getFactory().getCloudMetadata().useMigration() ? MigrationManager.getInstance() : null;
+        CloudMetadata metadata = MF.getFactory().getCloudMetadata();
+        this.migrant = metadata.useMigration() ? MigrationManager.getInstance() : null;
         this.delegate = entityManager;
+        this.buffer = metadata.useWriteBehind() ? new WriteBehindBuffer(metadata.getWriteBehindSize(), metadata.getWriteBehindInterval()) : null;
+        this.lock = this.buffer != null ? new ReentrantLock() : null;
+        EntityCache entityCache = EntityCache.getInstance();
+        this.cache = entityCache.isEnabled() ? entityCache : null;
+        QueryCache results = QueryCache.getInstance();
+        this.queryCache = results.isEnabled() ? results : null;
+    }
+
+    /*
+     * Writes are registered with the migration manager so that a migration state transition
+     * waits for them before completing. Without migration there is no write to register.
+     */
+    /*
+     * Only in write-behind mode the manager is shared with the background flush.
+     * Queries created by this manager acquire the lock around their execution.
+     */
+    void acquire() {
+        if (lock != null) {
+            lock.lock();
+        }
+    }
+
+    void release() {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    private MigrationManager.Write beginWrite() {
+        return migrant != null ? migrant.beginWrite() : null;
+    }
+
+    private void endWrite(MigrationManager.Write write) {
+        if (write != null) {
+            migrant.endWrite(write);
+        }
+    }
+
+    private static boolean isMigrating(MigrationManager.Write write) {
+        return write != null && write.isMigrating();
+    }
+
+    private void evict(Object entity) {
+        if (cache != null) {
+            cache.evict(entity);
+        }
+    }
+
+    /*
+     * Cached query results reading the table of a written entity are no more valid.
+     * Written entities are evicted again, a concurrent find may have cached
+     * the previous state before the write reached the store.
+     */
+    private void invalidate(Collection<?> entities) {
+        for (Object entity : entities) {
+            evict(entity);
+            if (queryCache != null) {
+                queryCache.invalidate(entity);
+            }
+        }
+    }
+
+    /*
+     * Apply the operation to the delegate or, in write-behind mode, buffer it
+     * and flush the buffer if thresholds have been hit.
+     */
+    private void write(Object entity, OperationType operation) {
+        if (buffer == null) {
+            switch (operation) {
+                case INSERT:
+                    delegate.persist(entity);
+                    break;
+                case UPDATE:
+                    delegate.merge(entity);
+                    break;
+                case DELETE:
+                    delegate.remove(entity);
+                    break;
+            }
+            invalidate(Collections.singleton(entity));
+        } else {
+            buffer.add(entity, operation);
+            if (buffer.isFlushNeeded()) {
+                /* called within a write that observed the normal state */
+                drainBuffer(null);
+            }
+            scheduleFlush();
+        }
+    }
+
+    /*
+     * Buffered writes must reach the store before a query is executed, before a transaction commits
+     * or before the manager is given back to a pool. If a migration started in the meantime
+     * they are sent to the migration system instead.
+     */
+    void flushBuffer() {
+        if (buffer == null) {
+            return;
+        }
+        acquire();
+        try {
+            if (buffer.size() == 0) {
+                return;
+            }
+            MigrationManager.Write registered = beginWrite();
+            try {
+                drainBuffer(registered);
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /*
+     * Must be called within a write, with the state it observed.
+     */
+    private void drainBuffer(MigrationManager.Write write) {
+        if (buffer == null) {
+            return;
+        }
+        List<Object> flushed = new ArrayList<>();
+        try {
+            if (isMigrating(write)) {
+                buffer.flushTo(write, flushed);
+            } else {
+                buffer.flushTo(delegate, flushed);
+            }
+        } finally {
+            invalidate(flushed);
+        }
+    }
+
+    /*
+     * Must be called holding the lock. Within a transaction buffered writes are applied on commit.
+     */
+    private void scheduleFlush() {
+        long delay = buffer.getFlushDelay();
+        if (scheduledFlush == null && !transactionActive && delay >= 0) {
+            scheduledFlush = FLUSHER.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+     * Runs on the flusher thread, the buffer is flushed only if the owner did not already
+     * and is not within a transaction. While the owner is using the manager the flush is retried later.
+     */
+    private void flushExpired() {
+        if (!lock.tryLock()) {
+            FLUSHER.schedule(flushTask, FLUSH_RETRY_DELAY, TimeUnit.MILLISECONDS);
+            return;
+        }
+        try {
+            scheduledFlush = null;
+            if (transactionActive || !delegate.isOpen()) {
+                return;
+            }
+            try {
+                if (buffer.getFlushDelay() == 0) {
+                    flushBuffer();
+                }
+            } catch (RuntimeException e) {
+                log.error("background flush of buffered writes failed", e);
+            }
+            scheduleFlush();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -59,19 +266,30 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public void persist(Object entity) {
-        if (migrant != null) {
-            if (migrant.isMigrating()) {
-                log.info("is MIGRATION state");
-                migrant.propagate(entity, OperationType.INSERT);
-            } else {
-                String tableName = ReflectionUtils.getJPATableName(entity);
-                int id = SeqNumberProvider.getInstance().getNextSequenceNumber(tableName);
-                Field idField = ReflectionUtils.getIdField(entity);
-                ReflectionUtils.setEntityField(entity, idField, String.valueOf(id));
-                delegate.persist(entity);
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                if (migrant != null) {
+                    if (registered.isMigrating()) {
+                        log.info("is MIGRATION state");
+                        drainBuffer(registered);
+                        registered.propagate(entity, OperationType.INSERT);
+                        invalidate(Collections.singleton(entity));
+                    } else {
+                        EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass());
+                        int id = SeqNumberProvider.getInstance().getNextSequenceNumber(descriptor.getTableName());
+                        descriptor.getIdField().setValue(entity, String.valueOf(id));
+                        write(entity, OperationType.INSERT);
+                    }
+                } else {
+                    write(entity, OperationType.INSERT);
+                }
+            } finally {
+                endWrite(registered);
             }
-        } else {
-            delegate.persist(entity);
+        } finally {
+            release();
         }
     }
 
@@ -79,17 +297,36 @@ public class CloudEntityManager implements EntityManager {
      * In case of migration generates an UPDATE statements
      * then sends it to the migration system.
      * Otherwise delegates to the persistence provider implementation.
+     * In write-behind mode the given entity is buffered and returned.
      *
      * @see javax.persistence.EntityManager#merge(Object)
      */
     @Override
     public <T> T merge(T entity) {
-        if (migrant != null && migrant.isMigrating()) {
-            log.info("is MIGRATION state");
-            migrant.propagate(entity, OperationType.UPDATE);
-            return entity;
-        } else {
-            return delegate.merge(entity);
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                evict(entity);
+                if (isMigrating(registered)) {
+                    log.info("is MIGRATION state");
+                    drainBuffer(registered);
+                    registered.propagate(entity, OperationType.UPDATE);
+                    invalidate(Collections.singleton(entity));
+                    return entity;
+                } else if (buffer != null) {
+                    write(entity, OperationType.UPDATE);
+                    return entity;
+                } else {
+                    T merged = delegate.merge(entity);
+                    invalidate(Collections.singleton(entity));
+                    return merged;
+                }
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
         }
     }
 
@@ -102,120 +339,418 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public void remove(Object entity) {
-        if (migrant != null && migrant.isMigrating()) {
-            log.info("is MIGRATION state");
-            migrant.propagate(entity, OperationType.DELETE);
-        } else {
-            delegate.persist(entity);
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                evict(entity);
+                if (isMigrating(registered)) {
+                    log.info("is MIGRATION state");
+                    drainBuffer(registered);
+                    registered.propagate(entity, OperationType.DELETE);
+                    invalidate(Collections.singleton(entity));
+                } else {
+                    write(entity, OperationType.DELETE);
+                }
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Batched version of {@link #persist(Object)}.
+     * <p/>
+     * In case of migration generates the INSERT statements of all the entities
+     * with a single builder and sends them to the migration system in a single round.
+     * Otherwise ids are reserved once for each table and then each entity is persisted
+     * through the persistence provider implementation.
+     *
+     * @param entities the entities to be persisted
+     */
+    public void persistAll(Collection<?> entities) {
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                if (entities.isEmpty()) {
+                    return;
+                }
+                if (migrant != null) {
+                    if (registered.isMigrating()) {
+                        log.info("is MIGRATION state");
+                        drainBuffer(registered);
+                        registered.propagate(entities, OperationType.INSERT);
+                        invalidate(entities);
+                    } else {
+                        assignIds(entities);
+                        for (Object entity : entities) {
+                            write(entity, OperationType.INSERT);
+                        }
+                    }
+                } else {
+                    for (Object entity : entities) {
+                        write(entity, OperationType.INSERT);
+                    }
+                }
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    private void assignIds(Collection<?> entities) {
+        Map<EntityDescriptor, List<Object>> byClass = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass());
+            List<Object> sameClass = byClass.get(descriptor);
+            if (sameClass == null) {
+                sameClass = new ArrayList<>();
+                byClass.put(descriptor, sameClass);
+            }
+            sameClass.add(entity);
+        }
+        for (Map.Entry<EntityDescriptor, List<Object>> entry : byClass.entrySet()) {
+            EntityDescriptor descriptor = entry.getKey();
+            List<Object> sameClass = entry.getValue();
+            int[] ids = SeqNumberProvider.getInstance().getNextSequenceNumbers(descriptor.getTableName(), sameClass.size());
+            for (int i = 0; i < ids.length; i++) {
+                descriptor.getIdField().setValue(sameClass.get(i), String.valueOf(ids[i]));
+            }
         }
     }
 
+    /**
+     * Batched version of {@link #merge(Object)}.
+     * <p/>
+     * In case of migration generates the UPDATE statements of all the entities
+     * with a single builder and sends them to the migration system in a single round.
+     * Otherwise delegates each entity to the persistence provider implementation.
+     *
+     * @param entities the entities to be merged
+     *
+     * @return the managed instances, in the same order of {@code entities}
+     */
+    public <T> List<T> mergeAll(Collection<T> entities) {
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                for (T entity : entities) {
+                    evict(entity);
+                }
+                if (isMigrating(registered)) {
+                    log.info("is MIGRATION state");
+                    if (!entities.isEmpty()) {
+                        drainBuffer(registered);
+                        registered.propagate(entities, OperationType.UPDATE);
+                        invalidate(entities);
+                    }
+                    return new ArrayList<>(entities);
+                } else if (buffer != null) {
+                    for (T entity : entities) {
+                        write(entity, OperationType.UPDATE);
+                    }
+                    return new ArrayList<>(entities);
+                } else {
+                    List<T> merged = new ArrayList<>(entities.size());
+                    for (T entity : entities) {
+                        merged.add(delegate.merge(entity));
+                    }
+                    invalidate(entities);
+                    return merged;
+                }
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Batched version of {@link #remove(Object)}.
+     * <p/>
+     * In case of migration generates the DELETE statements of all the entities
+     * with a single builder and sends them to the migration system in a single round.
+     * Otherwise delegates each entity to the persistence provider implementation.
+     *
+     * @param entities the entities to be removed
+     */
+    public void removeAll(Collection<?> entities) {
+        acquire();
+        try {
+            MigrationManager.Write registered = beginWrite();
+            try {
+                for (Object entity : entities) {
+                    evict(entity);
+                }
+                if (isMigrating(registered)) {
+                    log.info("is MIGRATION state");
+                    if (!entities.isEmpty()) {
+                        drainBuffer(registered);
+                        registered.propagate(entities, OperationType.DELETE);
+                        invalidate(entities);
+                    }
+                } else {
+                    for (Object entity : entities) {
+                        write(entity, OperationType.DELETE);
+                    }
+                }
+            } finally {
+                endWrite(registered);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * In write-behind mode returns the buffered state of the entity, if any.
+     * Then, if the entity class is cached, looks up the second-level cache
+     * and populates it on miss with the result of the persistence provider implementation.
+     *
+     * @see javax.persistence.EntityManager#find(Class, Object)
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.EntityCache
+     */
     @Override
     public <T> T find(Class<T> entityClass, Object primaryKey) {
-        return delegate.find(entityClass, primaryKey);
+        acquire();
+        try {
+            if (buffer != null && buffer.isPending(entityClass, primaryKey)) {
+                return buffer.getPending(entityClass, primaryKey);
+            }
+            if (cache == null || !cache.isCached(entityClass)) {
+                return delegate.find(entityClass, primaryKey);
+            }
+            T entity = cache.get(entityClass, primaryKey);
+            if (entity == null) {
+                entity = delegate.find(entityClass, primaryKey);
+                if (entity != null) {
+                    cache.put(entityClass, primaryKey, entity);
+                }
+            }
+            return entity;
+        } finally {
+            release();
+        }
     }
 
+    /**
+     * In write-behind mode returns the buffered state of the entity, if any.
+     * Otherwise delegates to the persistence provider implementation.
+     *
+     * @see javax.persistence.EntityManager#find(Class, Object, java.util.Map)
+     */
     @Override
     public <T> T find(Class<T> entityClass, Object primaryKey, Map<String, Object> properties) {
-        return delegate.find(entityClass, primaryKey, properties);
+        acquire();
+        try {
+            if (buffer != null && buffer.isPending(entityClass, primaryKey)) {
+                return buffer.getPending(entityClass, primaryKey);
+            }
+            return delegate.find(entityClass, primaryKey, properties);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode) {
-        return delegate.find(entityClass, primaryKey, lockMode);
+        acquire();
+        try {
+            return delegate.find(entityClass, primaryKey, lockMode);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public <T> T find(Class<T> entityClass, Object primaryKey, LockModeType lockMode, Map<String, Object> properties) {
-        return delegate.find(entityClass, primaryKey, lockMode, properties);
+        acquire();
+        try {
+            return delegate.find(entityClass, primaryKey, lockMode, properties);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public <T> T getReference(Class<T> entityClass, Object primaryKey) {
-        return delegate.getReference(entityClass, primaryKey);
+        acquire();
+        try {
+            return delegate.getReference(entityClass, primaryKey);
+        } finally {
+            release();
+        }
     }
 
+    /**
+     * In write-behind mode applies the buffered writes before flushing the persistence provider.
+     *
+     * @see javax.persistence.EntityManager#flush()
+     */
     @Override
     public void flush() {
-        delegate.flush();
+        acquire();
+        try {
+            flushBuffer();
+            delegate.flush();
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void setFlushMode(FlushModeType flushMode) {
-        delegate.setFlushMode(flushMode);
+        acquire();
+        try {
+            delegate.setFlushMode(flushMode);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public FlushModeType getFlushMode() {
-        return delegate.getFlushMode();
+        acquire();
+        try {
+            return delegate.getFlushMode();
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public void lock(Object entity, LockModeType lockMode) {
-        delegate.lock(entity, lockMode);
+        acquire();
+        try {
+            delegate.lock(entity, lockMode);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public void lock(Object entity, LockModeType lockMode, Map<String, Object> properties) {
-        delegate.lock(entity, lockMode, properties);
+        acquire();
+        try {
+            delegate.lock(entity, lockMode, properties);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void refresh(Object entity) {
-        delegate.refresh(entity);
+        acquire();
+        try {
+            delegate.refresh(entity);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void refresh(Object entity, Map<String, Object> properties) {
-        delegate.refresh(entity, properties);
+        acquire();
+        try {
+            delegate.refresh(entity, properties);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public void refresh(Object entity, LockModeType lockMode) {
-        delegate.refresh(entity, lockMode);
+        acquire();
+        try {
+            delegate.refresh(entity, lockMode);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public void refresh(Object entity, LockModeType lockMode, Map<String, Object> properties) {
-        delegate.refresh(entity, lockMode, properties);
+        acquire();
+        try {
+            delegate.refresh(entity, lockMode, properties);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void clear() {
-        delegate.clear();
+        acquire();
+        try {
+            delegate.clear();
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void detach(Object entity) {
-        delegate.detach(entity);
+        acquire();
+        try {
+            delegate.detach(entity);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public boolean contains(Object entity) {
-        return delegate.contains(entity);
+        acquire();
+        try {
+            return delegate.contains(entity);
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
     @Override
     public LockModeType getLockMode(Object entity) {
-        return delegate.getLockMode(entity);
+        acquire();
+        try {
+            return delegate.getLockMode(entity);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public void setProperty(String propertyName, Object value) {
-        delegate.setProperty(propertyName, value);
+        acquire();
+        try {
+            delegate.setProperty(propertyName, value);
+        } finally {
+            release();
+        }
     }
 
     @Override
     public Map<String, Object> getProperties() {
-        return delegate.getProperties();
+        acquire();
+        try {
+            return delegate.getProperties();
+        } finally {
+            release();
+        }
     }
 
     /**
@@ -227,8 +762,13 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public Query createQuery(String queryString) {
-        log.debug("CloudEntityManager.createQuery WRAPPING");
-        return new CloudQuery(queryString, delegate.createQuery(queryString));
+        acquire();
+        try {
+            log.debug("CloudEntityManager.createQuery WRAPPING");
+            return new CloudQuery(queryString, delegate.createQuery(queryString), this);
+        } finally {
+            release();
+        }
     }
 
     /**
@@ -240,8 +780,13 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public <T> TypedQuery<T> createQuery(String queryString, Class<T> resultClass) {
-        log.debug("CloudEntityManager.createQuery WRAPPING");
-        return new TypedCloudQuery<>(queryString, delegate.createQuery(queryString, resultClass));
+        acquire();
+        try {
+            log.debug("CloudEntityManager.createQuery WRAPPING");
+            return new TypedCloudQuery<>(queryString, delegate.createQuery(queryString, resultClass), this);
+        } finally {
+            release();
+        }
     }
 
     /**
@@ -253,9 +798,14 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public Query createNamedQuery(String name) {
-        log.debug("CloudEntityManager.createNamedQuery WRAPPING");
-        String queryString = PersistenceMetadata.getInstance().getNamedQuery(name);
-        return new CloudQuery(queryString, delegate.createNamedQuery(name));
+        acquire();
+        try {
+            log.debug("CloudEntityManager.createNamedQuery WRAPPING");
+            String queryString = PersistenceMetadata.getInstance().getNamedQuery(name);
+            return new CloudQuery(queryString, delegate.createNamedQuery(name), this);
+        } finally {
+            release();
+        }
     }
 
     /**
@@ -267,9 +817,14 @@ public class CloudEntityManager implements EntityManager {
      */
     @Override
     public <T> TypedQuery<T> createNamedQuery(String name, Class<T> resultClass) {
-        log.debug("CloudEntityManager.createNamedQuery WRAPPING");
-        String queryString = PersistenceMetadata.getInstance().getNamedQuery(name);
-        return new TypedCloudQuery<>(queryString, delegate.createNamedQuery(name, resultClass));
+        acquire();
+        try {
+            log.debug("CloudEntityManager.createNamedQuery WRAPPING");
+            String queryString = PersistenceMetadata.getInstance().getNamedQuery(name);
+            return new TypedCloudQuery<>(queryString, delegate.createNamedQuery(name, resultClass), this);
+        } finally {
+            release();
+        }
     }
 
     @Override
@@ -329,13 +884,23 @@ public class CloudEntityManager implements EntityManager {
 
     @Override
     public void joinTransaction() {
-        delegate.joinTransaction();
+        acquire();
+        try {
+            delegate.joinTransaction();
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] just return false
     @Override
     public boolean isJoinedToTransaction() {
-        return delegate.isJoinedToTransaction();
+        acquire();
+        try {
+            return delegate.isJoinedToTransaction();
+        } finally {
+            release();
+        }
     }
 
     // Note: Kundera[2.14] will throw NotImplementedException()
@@ -349,19 +914,53 @@ public class CloudEntityManager implements EntityManager {
         return delegate.getDelegate();
     }
 
+    /**
+     * In write-behind mode applies the buffered writes before closing the persistence provider.
+     *
+     * @see javax.persistence.EntityManager#close()
+     */
     @Override
     public void close() {
-        delegate.close();
+        acquire();
+        try {
+            flushBuffer();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            delegate.close();
+        } finally {
+            release();
+        }
     }
 
     @Override
     public boolean isOpen() {
-        return delegate.isOpen();
+        acquire();
+        try {
+            return delegate.isOpen();
+        } finally {
+            release();
+        }
     }
 
+    /**
+     * In write-behind mode the returned transaction applies the buffered writes when it begins
+     * and before it commits, while a rollback discards them.
+     *
+     * @see javax.persistence.EntityManager#getTransaction()
+     */
     @Override
     public EntityTransaction getTransaction() {
-        return delegate.getTransaction();
+        acquire();
+        try {
+            if (buffer == null) {
+                return delegate.getTransaction();
+            }
+            return new BufferedTransaction(delegate.getTransaction());
+        } finally {
+            release();
+        }
     }
 
     /**
@@ -408,4 +1007,66 @@ public class CloudEntityManager implements EntityManager {
     public <T> List<EntityGraph<? super T>> getEntityGraphs(Class<T> entityClass) {
         return delegate.getEntityGraphs(entityClass);
     }
+
+    /*
+     * Transaction of the runtime provider that includes the writes buffered while it is active.
+     */
+    private class BufferedTransaction implements EntityTransaction {
+        private final EntityTransaction transaction;
+
+        BufferedTransaction(EntityTransaction transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void begin() {
+            acquire();
+            try {
+                flushBuffer();
+                transaction.begin();
+                transactionActive = true;
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void commit() {
+            acquire();
+            try {
+                flushBuffer();
+                transactionActive = false;
+                transaction.commit();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void rollback() {
+            acquire();
+            try {
+                buffer.clear();
+                transactionActive = false;
+                transaction.rollback();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void setRollbackOnly() {
+            transaction.setRollbackOnly();
+        }
+
+        @Override
+        public boolean getRollbackOnly() {
+            return transaction.getRollbackOnly();
+        }
+
+        @Override
+        public boolean isActive() {
+            return transaction.isActive();
+        }
+    }
 }
@@ -20,28 +20,50 @@ import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
 
 /**
+ * Creates {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager} instances
+ * on top of the runtime provider {@link javax.persistence.EntityManagerFactory}.
+ * <p/>
+ * The provider factory is expensive to build so it is created lazily exactly once,
+ * even under concurrent requests, and re-created only if it has been closed.
+ *
  * @author Fabio Arcidiacono.
  */
 public class CloudEntityManagerFactory {
 
-    private EntityManagerFactory factory = null;
+    private volatile EntityManagerFactory factory = null;
     private String persistenceUnit = null;
 
     public CloudEntityManagerFactory(String persistenceUnit) {
         this.persistenceUnit = persistenceUnit;
     }
 
+    /*
+     * Package visible so that queries can open their own provider entity managers.
+     */
+    EntityManagerFactory getFactory() {
+        EntityManagerFactory current = this.factory;
+        if (current == null || !current.isOpen()) {
+            synchronized (this) {
+                current = this.factory;
+                if (current == null || !current.isOpen()) {
+                    current = Persistence.createEntityManagerFactory(persistenceUnit);
+                    this.factory = current;
+                }
+            }
+        }
+        return current;
+    }
+
     /**
      * @return a new instance of {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager}
      */
     public CloudEntityManager createCloudEntityManager() {
-        if (factory == null || !factory.isOpen()) {
-            this.factory = Persistence.createEntityManagerFactory(persistenceUnit);
-        }
-        return new CloudEntityManager(factory.createEntityManager());
+        return new CloudEntityManager(getFactory().createEntityManager());
     }
 
-    public void close() {
-        factory.close();
+    public synchronized void close() {
+        if (factory != null) {
+            factory.close();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager}.
+ * <p/>
+ * At most {@code maxSize} managers can be borrowed at the same time, further calls to {@code borrow}
+ * wait until a manager is released. Managers are created lazily and reused after being released,
+ * a released manager has its buffered writes flushed and its persistence context cleared.
+ * <p/>
+ * A borrowed manager must be used by a single thread and given back through {@code release}.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.mffactory.MF#getEntityManagerPool()
+ */
+@Slf4j
+public class CloudEntityManagerPool {
+
+    private final CloudEntityManagerFactory factory;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final Queue<CloudEntityManager> idle = new ConcurrentLinkedQueue<>();
+    private final Set<CloudEntityManager> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<CloudEntityManager, Boolean>());
+    private volatile boolean closed = false;
+
+    public CloudEntityManagerPool(CloudEntityManagerFactory factory, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive, was " + maxSize);
+        }
+        this.factory = factory;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrow a manager from the pool, waiting for one to be released if the pool is exhausted.
+     *
+     * @return a {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager} confined to the caller
+     *
+     * @throws java.lang.IllegalStateException if the pool has been closed.
+     */
+    public CloudEntityManager borrow() {
+        checkOpen();
+        permits.acquireUninterruptibly();
+        return take();
+    }
+
+    /**
+     * Borrow a manager from the pool, waiting at most {@code timeout} for one to be released.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of {@code timeout}
+     *
+     * @return a {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager} confined to the caller
+     * or null if no manager was released in time
+     *
+     * @throws java.lang.InterruptedException if the current thread is interrupted while waiting
+     * @throws java.lang.IllegalStateException if the pool has been closed.
+     */
+    public CloudEntityManager borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        checkOpen();
+        if (!permits.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return take();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Entity manager pool has been closed");
+        }
+    }
+
+    private CloudEntityManager take() {
+        try {
+            CloudEntityManager entityManager;
+            while ((entityManager = idle.poll()) != null) {
+                if (entityManager.isOpen()) {
+                    break;
+                }
+                log.debug("discarding closed entity manager");
+            }
+            if (entityManager == null) {
+                entityManager = factory.createCloudEntityManager();
+            }
+            borrowed.add(entityManager);
+            return entityManager;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give back a manager previously obtained through {@code borrow}.
+     * <p/>
+     * Managers that have been closed by the borrower are discarded.
+     *
+     * @param entityManager the borrowed manager
+     *
+     * @throws java.lang.IllegalStateException if {@code entityManager} was not borrowed from this pool.
+     */
+    public void release(CloudEntityManager entityManager) {
+        if (!borrowed.remove(entityManager)) {
+            throw new IllegalStateException("Entity manager was not borrowed from this pool");
+        }
+        try {
+            if (closed) {
+                if (entityManager.isOpen()) {
+                    entityManager.close();
+                }
+            } else if (entityManager.isOpen()) {
+                entityManager.flushBuffer();
+                entityManager.clear();
+                idle.offer(entityManager);
+            }
+        } catch (RuntimeException e) {
+            log.warn("discarding entity manager that failed on release", e);
+            closeQuietly(entityManager);
+            throw e;
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Returns the number of managers that can still be borrowed without waiting.
+     *
+     * @return the number of available managers
+     */
+    public int available() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * Returns the maximum number of managers that can be borrowed at the same time.
+     *
+     * @return the pool size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Close all the idle managers. Borrowed managers are closed when released.
+     */
+    public void close() {
+        closed = true;
+        CloudEntityManager entityManager;
+        while ((entityManager = idle.poll()) != null) {
+            if (entityManager.isOpen()) {
+                entityManager.close();
+            }
+        }
+    }
+
+    /*
+     * The buffer is emptied even if the flush failed, so closing does not raise the same error again.
+     */
+    private void closeQuietly(CloudEntityManager entityManager) {
+        try {
+            if (entityManager.isOpen()) {
+                entityManager.close();
+            }
+        } catch (RuntimeException e) {
+            log.warn("error closing discarded entity manager", e);
+        }
+    }
+}
@@ -55,4 +55,27 @@ public class CloudParameter<T> implements Parameter<T> {
     public Class<T> getParameterType() {
         return this.type;
     }
+
+    /*
+     * Parameters are identified by name or position, so that binding
+     * the same parameter twice replaces the previous value.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CloudParameter)) {
+            return false;
+        }
+        CloudParameter<?> other = (CloudParameter<?>) o;
+        return (this.name == null ? other.name == null : this.name.equals(other.name))
+                && (this.position == null ? other.position == null : this.position.equals(other.position));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = this.name == null ? 0 : this.name.hashCode();
+        return 31 * result + (this.position == null ? 0 : this.position.hashCode());
+    }
 }
@@ -38,48 +38,182 @@ import java.util.*;
 public class CloudQuery implements Query {
 
     private MigrationManager migrant;
+    private EntityCache cache;
+    private QueryCache resultCache;
+    private boolean useResultCache = true;
+    private int firstResult = -1;
+    private int maxResults = -1;
     private final Query query;
     @Getter private final String queryString;
     private Map<Parameter<?>, Object> parameters;
+    private final CloudEntityManager entityManager;
 
-    public CloudQuery(String queryString, Query query) {
+    public CloudQuery(String queryString, Query query, CloudEntityManager entityManager) {
         this.migrant = MF.getFactory().getCloudMetadata().useMigration() ? MigrationManager.getInstance() : null;
+        EntityCache entityCache = EntityCache.getInstance();
+        this.cache = entityCache.isEnabled() ? entityCache : null;
+        QueryCache queryCache = QueryCache.getInstance();
+        this.resultCache = queryCache.isEnabled() && queryCache.isCacheable(queryString) ? queryCache : null;
         this.parameters = new HashMap<>();
         this.queryString = queryString.trim();
         this.query = query;
+        this.entityManager = entityManager;
     }
 
+    /**
+     * If the query result cache is enabled looks up the cached result
+     * and populates the cache on miss with the result of the persistence provider implementation.
+     * In write-behind mode buffered writes are applied before the query is executed.
+     *
+     * @see javax.persistence.Query#getResultList()
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.QueryCache
+     */
     @Override
     public List getResultList() {
-        return query.getResultList();
+        entityManager.acquire();
+        try {
+            entityManager.flushBuffer();
+            if (resultCache == null || !useResultCache) {
+                return query.getResultList();
+            }
+            QueryCache.QueryKey key = resultCache.key(queryString, parameters, firstResult, maxResults, false);
+            List cached = (List) resultCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            long[] snapshot = resultCache.snapshot(key);
+            List result = query.getResultList();
+            resultCache.put(key, snapshot, result);
+            return result;
+        } finally {
+            entityManager.release();
+        }
     }
 
+    /**
+     * If the query result cache is enabled looks up the cached result
+     * and populates the cache on miss with the result of the persistence provider implementation.
+     * In write-behind mode buffered writes are applied before the query is executed.
+     *
+     * @see javax.persistence.Query#getSingleResult()
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.QueryCache
+     */
     @Override
     public Object getSingleResult() {
-        return query.getSingleResult();
+        entityManager.acquire();
+        try {
+            entityManager.flushBuffer();
+            if (resultCache == null || !useResultCache) {
+                return query.getSingleResult();
+            }
+            QueryCache.QueryKey key = resultCache.key(queryString, parameters, firstResult, maxResults, true);
+            Object cached = (Object) resultCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            long[] snapshot = resultCache.snapshot(key);
+            Object result = query.getSingleResult();
+            if (result != null) {
+                resultCache.put(key, snapshot, result);
+            }
+            return result;
+        } finally {
+            entityManager.release();
+        }
+    }
+
+    /**
+     * Iterates over the query results fetching {@code pageSize} results at a time,
+     * instead of loading the whole result list in memory.
+     * <p/>
+     * Iteration starts at the first result and is bounded by the max results, if set.
+     * Pages are read from the persistence provider and never from the query result cache,
+     * once consumed they are detached from the entity manager that created the query.
+     * In write-behind mode buffered writes are applied before the first page is fetched.
+     *
+     * @param pageSize the number of results fetched at once
+     *
+     * @return an iterator over the query results
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.ResultIterator
+     */
+    public ResultIterator<Object> iterate(int pageSize) {
+        return iterate(pageSize, false);
+    }
+
+    /**
+     * Same as {@link #iterate(int)} but, if {@code prefetch} is true, the next page is fetched
+     * in background while the current one is consumed. In this case the entity manager that created the query
+     * must not be used until the iterator is exhausted or closed.
+     *
+     * @param pageSize the number of results fetched at once
+     * @param prefetch whether to fetch the next page ahead
+     *
+     * @return an iterator over the query results
+     */
+    public ResultIterator<Object> iterate(int pageSize, boolean prefetch) {
+        entityManager.flushBuffer();
+        return new ResultIterator<>(entityManager, query, pageSize, firstResult, maxResults, prefetch);
     }
 
     /**
      * In case of migration generate an Update or Delete statement
      * then send it to the migration system.
      * Otherwise delegates to the persistence provider implementation.
+     * In both cases entities of the target class are evicted from the second-level cache
+     * and cached query results reading the target table are invalidated, both before and after the update.
+     * In write-behind mode buffered writes are applied first.
      *
      * @see javax.persistence.Query#executeUpdate()
      */
     @Override
     public int executeUpdate() {
-        if (migrant != null && migrant.isMigrating()) {
-            log.info("is MIGRATION state");
-            migrant.propagate(this);
-            return 0;
-        } else {
+        entityManager.acquire();
+        try {
+            entityManager.flushBuffer();
+            invalidateTargets();
+            try {
+                return update();
+            } finally {
+                /* a concurrent read may have cached the previous state before the update reached the store */
+                invalidateTargets();
+            }
+        } finally {
+            entityManager.release();
+        }
+    }
+
+    private int update() {
+        if (migrant == null) {
             return query.executeUpdate();
         }
+        MigrationManager.Write write = migrant.beginWrite();
+        try {
+            if (write.isMigrating()) {
+                log.info("is MIGRATION state");
+                write.propagate(this);
+                return 0;
+            } else {
+                return query.executeUpdate();
+            }
+        } finally {
+            migrant.endWrite(write);
+        }
+    }
+
+    private void invalidateTargets() {
+        if (cache != null) {
+            cache.evictAll(queryString);
+        }
+        if (QueryCache.getInstance().isEnabled()) {
+            QueryCache.getInstance().invalidateAll(queryString);
+        }
     }
 
     @Override
     public Query setMaxResults(int maxResult) {
         query.setMaxResults(maxResult);
+        this.maxResults = maxResult;
         return this;
     }
 
@@ -91,6 +225,7 @@ public class CloudQuery implements Query {
     @Override
     public Query setFirstResult(int startPosition) {
         query.setFirstResult(startPosition);
+        this.firstResult = startPosition;
         return this;
     }
 
@@ -100,8 +235,18 @@ public class CloudQuery implements Query {
         return query.getFirstResult();
     }
 
+    /**
+     * The {@value it.polimi.modaclouds.cpimlibrary.entitymng.QueryCache#HINT} hint enables or disables
+     * the query result cache for this query and is not forwarded to the persistence provider implementation.
+     *
+     * @see javax.persistence.Query#setHint(String, Object)
+     */
     @Override
     public Query setHint(String hintName, Object value) {
+        if (QueryCache.HINT.equals(hintName)) {
+            this.useResultCache = Boolean.parseBoolean(String.valueOf(value));
+            return this;
+        }
         query.setHint(hintName, value);
         return this;
     }
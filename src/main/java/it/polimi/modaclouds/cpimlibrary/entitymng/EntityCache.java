@@ -0,0 +1,399 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Lexer;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.TokenType;
+import it.polimi.modaclouds.cpimlibrary.memcache.CloudMemcache;
+import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Second-level cache used by {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager#find(Class, Object)}.
+ * <p/>
+ * Entities are keyed by class and primary key and are looked up first in a bounded, local LRU tier
+ * and then in {@link it.polimi.modaclouds.cpimlibrary.memcache.CloudMemcache}, shared among instances.
+ * Only the classes listed in the {@code cpim.cache.entities} property of <i>persistence.xml</i> are cached,
+ * other properties tune the tiers:
+ * <ul>
+ * <li>{@code cpim.cache.entities} comma separated list of full or simple class names</li>
+ * <li>{@code cpim.cache.local.size} max number of entities kept locally, default 1000</li>
+ * <li>{@code cpim.cache.local.expiration} seconds an entity is kept locally, default 60</li>
+ * <li>{@code cpim.cache.memcache} yes or no, whether to use the memcache tier, default yes</li>
+ * <li>{@code cpim.cache.memcache.expiration} seconds an entity is kept in memcache, default no expiration</li>
+ * </ul>
+ * Memcache keys embed a per-class generation number so that bulk updates can invalidate all the
+ * entities of a class in every instance. The local tier cannot be invalidated remotely and relies on expiration,
+ * for the same reason generation numbers are read again from memcache only once the local expiration elapsed.
+ * <p/>
+ * The cache keeps its own copy of each entity and returns a new copy on each lookup, so callers never share
+ * instances. Copies are shallow: persisted fields are copied, related entities and collections are not.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@Slf4j
+public class EntityCache {
+
+    public static final String ENTITIES = "cpim.cache.entities";
+    public static final String LOCAL_SIZE = "cpim.cache.local.size";
+    public static final String LOCAL_EXPIRATION = "cpim.cache.local.expiration";
+    public static final String MEMCACHE = "cpim.cache.memcache";
+    public static final String MEMCACHE_EXPIRATION = "cpim.cache.memcache.expiration";
+    private static final String KEY_PREFIX = "cpim.cache:";
+
+    private static EntityCache instance = null;
+    private final Set<Class<?>> cachedClasses;
+    private final LocalTier local;
+    private final long localExpiration;
+    private final CloudMemcache memcache;
+    private final Integer memcacheExpiration;
+    private final ConcurrentMap<Class<?>, Generation> generations = new ConcurrentHashMap<>();
+
+    private EntityCache() {
+        this(MF.getFactory().getPersistenceUnitInfo());
+    }
+
+    /**
+     * Builds a cache configured by the given persistence unit properties.
+     *
+     * @param properties the persistence unit properties, as read from <i>persistence.xml</i>
+     */
+    public EntityCache(Map<String, String> properties) {
+        this.cachedClasses = new HashSet<>();
+        String entities = properties.get(ENTITIES);
+        if (entities != null) {
+            for (String name : entities.split(",")) {
+                name = name.trim();
+                if (!name.isEmpty()) {
+                    this.cachedClasses.add(resolveClass(name));
+                }
+            }
+        }
+        this.local = new LocalTier(parseInt(properties, LOCAL_SIZE, 1000));
+        this.localExpiration = parseInt(properties, LOCAL_EXPIRATION, 60) * 1000L;
+        boolean useMemcache = !"no".equalsIgnoreCase(properties.get(MEMCACHE));
+        this.memcache = useMemcache && !this.cachedClasses.isEmpty() ? MF.getFactory().getCloudMemcache() : null;
+        int expiration = parseInt(properties, MEMCACHE_EXPIRATION, 0);
+        this.memcacheExpiration = expiration > 0 ? expiration : null;
+        log.info("second-level cache enabled for {}", this.cachedClasses);
+    }
+
+    public static synchronized EntityCache getInstance() {
+        if (instance == null) {
+            instance = new EntityCache();
+        }
+        return instance;
+    }
+
+    private static Class<?> resolveClass(String name) {
+        if (name.contains(".")) {
+            return ReflectionUtils.getClassInstance(name);
+        }
+        EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(name);
+        if (descriptor == null) {
+            throw new IllegalArgumentException("Cannot find persisted class " + name + " declared in " + ENTITIES);
+        }
+        return descriptor.getEntityClass();
+    }
+
+    private static int parseInt(Map<String, String> properties, String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unrecognized value '" + value + "' for property " + name, e);
+        }
+    }
+
+    /**
+     * Returns true if at least one class has been configured to be cached.
+     *
+     * @return {@code boolean}
+     */
+    public boolean isEnabled() {
+        return !this.cachedClasses.isEmpty();
+    }
+
+    /**
+     * Returns true if the given class has been configured to be cached.
+     *
+     * @param entityClass the entity class
+     *
+     * @return {@code boolean}
+     */
+    public boolean isCached(Class<?> entityClass) {
+        return this.cachedClasses.contains(entityClass);
+    }
+
+    /**
+     * Look up the entity with the given primary key, first locally then in memcache.
+     *
+     * @param entityClass the entity class
+     * @param primaryKey  the entity primary key
+     *
+     * @return a copy of the cached entity or null if it is not cached
+     */
+    public <T> T get(Class<T> entityClass, Object primaryKey) {
+        Object localKey = localKey(entityClass, primaryKey);
+        Object cached = this.local.get(localKey);
+        if (cached != null) {
+            return copy(entityClass, cached);
+        }
+        if (this.memcache == null) {
+            return null;
+        }
+        try {
+            cached = this.memcache.get(remoteKey(entityClass, primaryKey));
+        } catch (RuntimeException e) {
+            log.warn("memcache lookup failed for " + localKey, e);
+            return null;
+        }
+        if (!entityClass.isInstance(cached)) {
+            return null;
+        }
+        this.local.put(localKey, copy(entityClass, cached), System.currentTimeMillis() + this.localExpiration);
+        return copy(entityClass, cached);
+    }
+
+    /**
+     * Add a copy of the entity to both the cache tiers. Entities that are not {@link java.io.Serializable}
+     * are kept only locally.
+     *
+     * @param entityClass the entity class
+     * @param primaryKey  the entity primary key
+     * @param entity      the entity
+     */
+    public void put(Class<?> entityClass, Object primaryKey, Object entity) {
+        this.local.put(localKey(entityClass, primaryKey), copy(entityClass, entity), System.currentTimeMillis() + this.localExpiration);
+        if (this.memcache == null || !(entity instanceof Serializable)) {
+            return;
+        }
+        try {
+            if (this.memcacheExpiration == null) {
+                this.memcache.put(remoteKey(entityClass, primaryKey), entity);
+            } else {
+                this.memcache.put(remoteKey(entityClass, primaryKey), entity, this.memcacheExpiration);
+            }
+        } catch (RuntimeException e) {
+            log.warn("memcache put failed for " + localKey(entityClass, primaryKey), e);
+        }
+    }
+
+    /**
+     * Remove the given entity from both the cache tiers, if its class is cached.
+     *
+     * @param entity the entity
+     */
+    public void evict(Object entity) {
+        Class<?> entityClass = entity.getClass();
+        if (!isCached(entityClass)) {
+            return;
+        }
+        Object primaryKey = PersistenceMetadata.getInstance().getEntityDescriptor(entityClass).getIdField().getValue(entity);
+        if (primaryKey == null) {
+            return;
+        }
+        this.local.remove(localKey(entityClass, primaryKey));
+        if (this.memcache == null) {
+            return;
+        }
+        try {
+            this.memcache.delete(remoteKey(entityClass, primaryKey));
+        } catch (RuntimeException e) {
+            log.warn("memcache delete failed for " + localKey(entityClass, primaryKey), e);
+        }
+    }
+
+    /**
+     * Remove all the entities of the given class from both the cache tiers.
+     * Memcache entries are invalidated moving to a new class generation.
+     *
+     * @param entityClass the entity class
+     */
+    public void evictAll(Class<?> entityClass) {
+        if (!isCached(entityClass)) {
+            return;
+        }
+        this.local.removeClass(entityClass);
+        if (this.memcache == null) {
+            return;
+        }
+        try {
+            Long generation = this.memcache.increment(generationKey(entityClass), 1, 0L);
+            if (generation == null) {
+                this.generations.remove(entityClass);
+            } else {
+                this.generations.put(entityClass, new Generation(generation, System.currentTimeMillis() + this.localExpiration));
+            }
+        } catch (RuntimeException e) {
+            log.warn("memcache generation increment failed for " + entityClass.getSimpleName(), e);
+        }
+    }
+
+    /**
+     * Remove all the entities of the class targeted by a JPQL UPDATE or DELETE query.
+     *
+     * @param queryString the JPQL query
+     */
+    public void evictAll(String queryString) {
+        String target = null;
+        for (Token token : Lexer.lex(queryString)) {
+            if (token.getType() == TokenType.STRING) {
+                target = token.getData();
+                break;
+            }
+        }
+        if (target == null) {
+            return;
+        }
+        EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(target);
+        if (descriptor != null) {
+            evictAll(descriptor.getEntityClass());
+        }
+    }
+
+    /**
+     * Empty the local tier.
+     */
+    public void clear() {
+        this.local.clear();
+    }
+
+    private Object localKey(Class<?> entityClass, Object primaryKey) {
+        return Arrays.asList(entityClass, primaryKey);
+    }
+
+    private String remoteKey(Class<?> entityClass, Object primaryKey) {
+        return KEY_PREFIX + entityClass.getName() + ":" + generation(entityClass) + ":" + primaryKey;
+    }
+
+    private Object generation(Class<?> entityClass) {
+        long now = System.currentTimeMillis();
+        Generation cached = this.generations.get(entityClass);
+        if (cached != null && cached.expiresAt >= now) {
+            return cached.value;
+        }
+        Object value = this.memcache.get(generationKey(entityClass));
+        if (value == null) {
+            value = 0;
+        }
+        this.generations.put(entityClass, new Generation(value, now + this.localExpiration));
+        return value;
+    }
+
+    /*
+     * New instance with the persisted fields of the given entity.
+     */
+    static <T> T copy(Class<T> entityClass, Object entity) {
+        try {
+            Constructor<T> constructor = entityClass.getDeclaredConstructor();
+            if (!constructor.isAccessible()) {
+                constructor.setAccessible(true);
+            }
+            T copy = constructor.newInstance();
+            for (FieldDescriptor field : PersistenceMetadata.getInstance().getEntityDescriptor(entityClass).getFields()) {
+                field.setValue(copy, field.getValue(entity));
+            }
+            return copy;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Cannot copy cached entity of class " + entityClass.getCanonicalName(), e);
+        }
+    }
+
+    private String generationKey(Class<?> entityClass) {
+        return KEY_PREFIX + entityClass.getName() + ":generation";
+    }
+
+    /*
+     * Access ordered LinkedHashMap evicting the least recently used entity.
+     */
+    private static class LocalTier {
+        private final Map<Object, CachedEntity> entries;
+
+        LocalTier(final int maxSize) {
+            this.entries = new LinkedHashMap<Object, CachedEntity>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, CachedEntity> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized Object get(Object key) {
+            CachedEntity cached = this.entries.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (cached.expiresAt < System.currentTimeMillis()) {
+                this.entries.remove(key);
+                return null;
+            }
+            return cached.entity;
+        }
+
+        synchronized void put(Object key, Object entity, long expiresAt) {
+            this.entries.put(key, new CachedEntity(entity, expiresAt));
+        }
+
+        synchronized void remove(Object key) {
+            this.entries.remove(key);
+        }
+
+        synchronized void removeClass(Class<?> entityClass) {
+            Iterator<Object> keys = this.entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (((List<?>) keys.next()).get(0).equals(entityClass)) {
+                    keys.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            this.entries.clear();
+        }
+    }
+
+    private static class Generation {
+        private final Object value;
+        private final long expiresAt;
+
+        Generation(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class CachedEntity {
+        private final Object entity;
+        private final long expiresAt;
+
+        CachedEntity(Object entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import lombok.Getter;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Immutable, pre-resolved JPA metadata of an entity class.
+ * <p/>
+ * Descriptors are built once per class by {@link it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata}
+ * and hold the table name, the id field and a {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+ * for each persisted field, in the same order returned by
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils#getFields(Class)}.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata#getEntityDescriptor(Class)
+ */
+public class EntityDescriptor {
+
+    @Getter private final Class<?> entityClass;
+    @Getter private final String tableName;
+    private final FieldDescriptor idField;
+    private final List<FieldDescriptor> fields;
+    private final Map<String, FieldDescriptor> fieldsByName;
+    private final Map<String, FieldDescriptor> fieldsByColumn;
+
+    EntityDescriptor(Class<?> entityClass) {
+        this.entityClass = entityClass;
+        this.tableName = ReflectionUtils.getJPATableName(entityClass);
+
+        FieldDescriptor id = null;
+        List<FieldDescriptor> descriptors = new ArrayList<>();
+        Map<String, FieldDescriptor> byName = new HashMap<>();
+        Map<String, FieldDescriptor> byColumn = new HashMap<>();
+        for (Field field : ReflectionUtils.getFields(entityClass)) {
+            FieldDescriptor descriptor = new FieldDescriptor(field);
+            descriptors.add(descriptor);
+            byName.put(descriptor.getName(), descriptor);
+            if (descriptor.isColumnAnnotated()) {
+                byColumn.put(descriptor.getColumnName(), descriptor);
+            }
+            if (id == null && descriptor.isId()) {
+                /* just one Id per class */
+                id = descriptor;
+            }
+        }
+        this.idField = id;
+        this.fields = Collections.unmodifiableList(descriptors);
+        this.fieldsByName = Collections.unmodifiableMap(byName);
+        this.fieldsByColumn = Collections.unmodifiableMap(byColumn);
+    }
+
+    /**
+     * Returns the descriptors of all the persisted fields of the class.
+     *
+     * @return an unmodifiable list of {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+     */
+    public List<FieldDescriptor> getFields() {
+        return this.fields;
+    }
+
+    /**
+     * Returns the descriptor of the field annotated with {@link javax.persistence.Id}.
+     *
+     * @return the id {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+     *
+     * @throws java.lang.RuntimeException if no field is annotated as Id.
+     */
+    public FieldDescriptor getIdField() {
+        if (this.idField == null) {
+            throw new RuntimeException("Cannot find Id field for " + this.entityClass.getCanonicalName());
+        }
+        return this.idField;
+    }
+
+    /**
+     * Returns the descriptor of the field with the given name.
+     *
+     * @param fieldName the java field name
+     *
+     * @return a {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+     *
+     * @throws java.lang.RuntimeException if {@code fieldName} cannot be found.
+     */
+    public FieldDescriptor getField(String fieldName) {
+        FieldDescriptor descriptor = this.fieldsByName.get(fieldName);
+        if (descriptor == null) {
+            throw new RuntimeException("Cannot find field " + fieldName + " in class " + this.entityClass.getCanonicalName());
+        }
+        return descriptor;
+    }
+
+    /**
+     * Returns the descriptor of the field whose {@link javax.persistence.Column} annotation declares {@code columnName}.
+     *
+     * @param columnName the JPA column name
+     *
+     * @return a {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+     *
+     * @throws java.lang.RuntimeException if no field declares {@code columnName}.
+     */
+    public FieldDescriptor getFieldByColumn(String columnName) {
+        FieldDescriptor descriptor = this.fieldsByColumn.get(columnName);
+        if (descriptor == null) {
+            throw new RuntimeException("Field " + columnName + " cannot be found.");
+        }
+        return descriptor;
+    }
+
+    /**
+     * Returns the descriptor of the field referenced by a join column, that is the field
+     * named {@code joinColumnName} or, if none, the field whose JPA column name is {@code joinColumnName}.
+     *
+     * @param joinColumnName the join column name
+     *
+     * @return a {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+     *
+     * @throws java.lang.RuntimeException if no such field exists.
+     */
+    public FieldDescriptor getJoinColumnField(String joinColumnName) {
+        FieldDescriptor descriptor = this.fieldsByName.get(joinColumnName);
+        if (descriptor != null) {
+            return descriptor;
+        }
+        return getFieldByColumn(joinColumnName);
+    }
+
+    @Override
+    public String toString() {
+        return this.tableName + this.fields;
+    }
+}
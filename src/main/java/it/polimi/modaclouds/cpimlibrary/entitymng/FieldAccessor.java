@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Getter and setter of a single entity field backed by {@link java.lang.invoke.MethodHandle}s.
+ * <p/>
+ * Handles are resolved once, when the owning {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor}
+ * is built, and adapted to the erased {@code (Object)Object} and {@code (Object, Object)void} types so that
+ * they can be invoked exactly, avoiding the access checks performed by {@link java.lang.reflect.Field} on each call.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor#getValue(Object)
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor#setValue(Object, Object)
+ */
+public final class FieldAccessor {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Field field;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    /**
+     * Creates the accessor for {@code field}, which is expected to be already accessible.
+     *
+     * @param field the field to be accessed
+     *
+     * @throws java.lang.RuntimeException if the field cannot be read.
+     */
+    FieldAccessor(Field field) {
+        this.field = field;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean isStatic = Modifier.isStatic(field.getModifiers());
+        try {
+            MethodHandle get = lookup.unreflectGetter(field);
+            if (isStatic) {
+                get = MethodHandles.dropArguments(get, 0, Object.class);
+            }
+            this.getter = get.asType(GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot create getter for field " + field.getName(), e);
+        }
+        this.setter = createSetter(lookup, field, isStatic);
+    }
+
+    /*
+     * final fields (e.g. serialVersionUID) cannot be written, they are left without setter.
+     */
+    private static MethodHandle createSetter(MethodHandles.Lookup lookup, Field field, boolean isStatic) {
+        if (Modifier.isFinal(field.getModifiers())) {
+            return null;
+        }
+        try {
+            MethodHandle set = lookup.unreflectSetter(field);
+            if (isStatic) {
+                set = MethodHandles.dropArguments(set, 0, Object.class);
+            }
+            return set.asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot create setter for field " + field.getName(), e);
+        }
+    }
+
+    /**
+     * Returns the value of the field in the given entity.
+     *
+     * @param entity object from which retrieve the value, ignored for static fields
+     *
+     * @return the field value
+     */
+    public Object get(Object entity) {
+        try {
+            return (Object) this.getter.invokeExact(entity);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Some error occurred reading field " + this.field.getName(), t);
+        }
+    }
+
+    /**
+     * Set the given value on the field of {@code entity}.
+     *
+     * @param entity entity on which set the value, ignored for static fields
+     * @param value  the value to be set
+     *
+     * @throws java.lang.RuntimeException if the field is final or {@code value} has an incompatible type.
+     */
+    public void set(Object entity, Object value) {
+        if (this.setter == null) {
+            throw new RuntimeException("Field " + this.field.getName() + " is final and cannot be set");
+        }
+        try {
+            this.setter.invokeExact(entity, value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException("Some error occurred setting field " + this.field.getName(), t);
+        }
+    }
+}
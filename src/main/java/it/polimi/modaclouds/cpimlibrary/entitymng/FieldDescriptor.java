@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import lombok.Getter;
+
+import javax.persistence.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, pre-resolved JPA metadata of a single entity field.
+ * <p/>
+ * Every annotation lookup is done once in construction so that statement builders
+ * and the entity manager never need to inspect annotations again. Values are read and
+ * written through a {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldAccessor}.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor
+ */
+public class FieldDescriptor {
+
+    /**
+     * Kind of relationship held by a field.
+     */
+    public enum Relation {
+        NONE, ONE_TO_ONE, MANY_TO_ONE, ONE_TO_MANY, MANY_TO_MANY
+    }
+
+    @Getter private final Field field;
+    @Getter private final String name;
+    @Getter private final String columnName;
+    @Getter private final boolean id;
+    @Getter private final boolean columnAnnotated;
+    @Getter private final Relation relation;
+    @Getter private final boolean owningSide;
+    @Getter private final String joinColumnName;
+    @Getter private final JoinTable joinTable;
+    @Getter private final Class<?> targetClass;
+    private final List<CascadeType> cascadeTypes;
+    private final FieldAccessor accessor;
+
+    FieldDescriptor(Field field) {
+        if (!field.isAccessible()) {
+            field.setAccessible(true);
+        }
+        this.field = field;
+        this.name = field.getName();
+        this.columnName = ReflectionUtils.getJPAColumnName(field);
+        this.columnAnnotated = ReflectionUtils.isFieldAnnotatedWith(field, Column.class);
+        this.id = ReflectionUtils.isId(field);
+        this.relation = resolveRelation(field);
+        this.owningSide = ReflectionUtils.ownRelation(field);
+        this.joinColumnName = ReflectionUtils.isFieldAnnotatedWith(field, JoinColumn.class) ? ReflectionUtils.getJoinColumnName(field) : null;
+        if (this.relation == Relation.NONE) {
+            this.cascadeTypes = Collections.emptyList();
+        } else {
+            this.cascadeTypes = Collections.unmodifiableList(Arrays.asList(ReflectionUtils.getCascadeTypes(field)));
+        }
+        this.joinTable = resolveJoinTable(field);
+        this.targetClass = resolveTargetClass(field);
+        this.accessor = new FieldAccessor(field);
+    }
+
+    private static Relation resolveRelation(Field field) {
+        if (ReflectionUtils.isFieldAnnotatedWith(field, OneToOne.class)) {
+            return Relation.ONE_TO_ONE;
+        } else if (ReflectionUtils.isFieldAnnotatedWith(field, ManyToOne.class)) {
+            return Relation.MANY_TO_ONE;
+        } else if (ReflectionUtils.isFieldAnnotatedWith(field, OneToMany.class)) {
+            return Relation.ONE_TO_MANY;
+        } else if (ReflectionUtils.isFieldAnnotatedWith(field, ManyToMany.class)) {
+            return Relation.MANY_TO_MANY;
+        }
+        return Relation.NONE;
+    }
+
+    /*
+     * The class at the other side of a relationship, that is the field type
+     * or the element type for collection fields.
+     */
+    private Class<?> resolveTargetClass(Field field) {
+        if (this.relation == Relation.NONE) {
+            return null;
+        }
+        if (Collection.class.isAssignableFrom(field.getType()) && field.getGenericType() instanceof ParameterizedType) {
+            Type elementType = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+        }
+        return field.getType();
+    }
+
+    /*
+     * For the owning side of a ManyToMany relationship the join table is declared on the field itself,
+     * for the non-owning side it must be looked up on the field named by mappedBy in the owner class.
+     */
+    private JoinTable resolveJoinTable(Field field) {
+        if (this.relation != Relation.MANY_TO_MANY) {
+            return null;
+        }
+        if (this.owningSide) {
+            return ReflectionUtils.getAnnotation(field, JoinTable.class);
+        }
+        String mappedBy = ReflectionUtils.getAnnotation(field, ManyToMany.class).mappedBy();
+        ParameterizedType collectionType = (ParameterizedType) field.getGenericType();
+        Class<?> ownerClass = (Class<?>) collectionType.getActualTypeArguments()[0];
+        Field ownerField = ReflectionUtils.getFieldByName(ownerClass, mappedBy);
+        return ReflectionUtils.getAnnotation(ownerField, JoinTable.class);
+    }
+
+    /**
+     * Return true if field holds one of {@link javax.persistence.OneToOne},
+     * {@link javax.persistence.OneToMany}, {@link javax.persistence.ManyToMany} or {@link javax.persistence.ManyToOne}.
+     *
+     * @return {@code boolean}
+     */
+    public boolean isRelational() {
+        return this.relation != Relation.NONE;
+    }
+
+    /**
+     * Return true if field holds a {@link javax.persistence.ManyToMany} relationship.
+     *
+     * @return {@code boolean}
+     */
+    public boolean isManyToMany() {
+        return this.relation == Relation.MANY_TO_MANY;
+    }
+
+    /**
+     * Returns the cascade types declared for the field, empty if field is not relational.
+     *
+     * @return an unmodifiable list of {@link javax.persistence.CascadeType}
+     */
+    public List<CascadeType> getCascadeTypes() {
+        return this.cascadeTypes;
+    }
+
+    /**
+     * Return true if at least one of the declared cascade types is contained in {@code relevantCascadeTypes}.
+     *
+     * @param relevantCascadeTypes cascade types to look for
+     *
+     * @return {@code boolean}
+     */
+    public boolean cascades(Collection<CascadeType> relevantCascadeTypes) {
+        for (CascadeType cascadeType : this.cascadeTypes) {
+            if (relevantCascadeTypes.contains(cascadeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the value of this field in the given entity.
+     *
+     * @param entity object from which retrieve the value
+     *
+     * @return the field value
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.FieldAccessor#get(Object)
+     */
+    public Object getValue(Object entity) {
+        return this.accessor.get(entity);
+    }
+
+    /**
+     * Set the given value on this field of {@code entity}.
+     *
+     * @param entity entity on which set the value
+     * @param value  the value to be set
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.FieldAccessor#set(Object, Object)
+     */
+    public void setValue(Object entity, Object value) {
+        this.accessor.set(entity, value);
+    }
+
+    @Override
+    public String toString() {
+        return this.name + "(" + this.columnName + ")";
+    }
+}
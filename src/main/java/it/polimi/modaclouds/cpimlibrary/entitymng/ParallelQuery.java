@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
+
+/**
+ * Executes a query as a sequence of offset partitions run concurrently.
+ * <p/>
+ * Each partition reads {@code partitionSize} results through its own provider
+ * {@link javax.persistence.EntityManager}, at most {@code parallelism} partitions run at the same time.
+ * Since the number of results is not known in advance, a new partition is scheduled each time one completes
+ * full, until a partition returns less results than the partition size.
+ * <p/>
+ * Results are merged in partition order if {@code ordered}, otherwise in completion order.
+ * <p/>
+ * Partitions are read at different times by different entity managers, so the query must
+ * have an ORDER BY clause on a total order (e.g. including the id) otherwise partitions could
+ * overlap or leave gaps. Partitions of all the queries run on a shared pool of
+ * {@link #POOL_SIZE} threads.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.TypedCloudQuery#parallel(int, int, boolean)
+ */
+@Slf4j
+public class ParallelQuery<X> {
+
+    /* partitions mostly wait on the datastore */
+    static final int POOL_SIZE = 4 * Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService PARTITIONS = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = CloudThread.getThread(runnable);
+            if (thread == null) {
+                thread = new Thread(runnable);
+            }
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final Pattern ORDER_BY = Pattern.compile("\\bORDER\\s+BY\\b", Pattern.CASE_INSENSITIVE);
+
+    private final EntityManagerFactory factory;
+    private final String queryString;
+    private final Map<Parameter<?>, Object> parameters;
+    private final int parallelism;
+    private final int partitionSize;
+    private final boolean ordered;
+
+    /**
+     * @param factory       the provider factory used to create an entity manager for each partition
+     * @param queryString   the JPQL query, must have an ORDER BY clause
+     * @param parameters    the parameters of the query, bound on each partition at execution time
+     * @param parallelism   max number of partitions executed concurrently
+     * @param partitionSize number of results read by each partition
+     * @param ordered       if true results are merged in partition order
+     */
+    public ParallelQuery(EntityManagerFactory factory, String queryString, Map<Parameter<?>, Object> parameters, int parallelism, int partitionSize, boolean ordered) {
+        if (parallelism <= 0 || partitionSize <= 0) {
+            throw new IllegalArgumentException("parallelism and partition size must be positive");
+        }
+        if (!ORDER_BY.matcher(queryString).find()) {
+            throw new IllegalArgumentException("Parallel queries require an ORDER BY clause: " + queryString);
+        }
+        this.factory = factory;
+        this.queryString = queryString;
+        this.parameters = parameters;
+        this.parallelism = parallelism;
+        this.partitionSize = partitionSize;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Execute all the partitions and merge their results.
+     *
+     * @param firstResult the position of the first result, -1 if not set
+     * @param maxResults  the max number of results, -1 if not set
+     *
+     * @return the merged results
+     */
+    public List<X> getResultList(int firstResult, int maxResults) {
+        int offset = firstResult < 0 ? 0 : firstResult;
+        long limit = maxResults < 0 ? Long.MAX_VALUE : maxResults;
+        Map<Parameter<?>, Object> bound = new HashMap<>(this.parameters);
+        CompletionService<Partition<X>> completion = new ExecutorCompletionService<>(PARTITIONS);
+        List<Future<Partition<X>>> submitted = new ArrayList<>();
+        SortedMap<Integer, List<X>> byPartition = new TreeMap<>();
+        List<X> unordered = new ArrayList<>();
+        try {
+            int scheduled = 0;
+            int running = 0;
+            boolean exhausted = false;
+            while (running < this.parallelism && (long) scheduled * this.partitionSize < limit) {
+                submitted.add(completion.submit(partition(scheduled++, bound, offset, limit)));
+                running++;
+            }
+            while (running > 0) {
+                Partition<X> done = take(completion);
+                running--;
+                if (done.results.size() < this.partitionSize) {
+                    exhausted = true;
+                }
+                if (this.ordered) {
+                    byPartition.put(done.index, done.results);
+                } else {
+                    unordered.addAll(done.results);
+                }
+                if (!exhausted && (long) scheduled * this.partitionSize < limit) {
+                    submitted.add(completion.submit(partition(scheduled++, bound, offset, limit)));
+                    running++;
+                }
+            }
+            log.debug("query executed in {} partitions", scheduled);
+        } finally {
+            /* on failure stop the partitions still running, the pool is shared */
+            for (Future<Partition<X>> future : submitted) {
+                future.cancel(true);
+            }
+        }
+        if (!this.ordered) {
+            return unordered;
+        }
+        List<X> results = new ArrayList<>();
+        for (List<X> partition : byPartition.values()) {
+            results.addAll(partition);
+        }
+        return results;
+    }
+
+    private Partition<X> take(CompletionService<Partition<X>> completion) {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while executing query partitions", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error executing query partition", e.getCause());
+        }
+    }
+
+    private Callable<Partition<X>> partition(final int index, final Map<Parameter<?>, Object> bound, final int offset, final long limit) {
+        return new Callable<Partition<X>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Partition<X> call() {
+                long start = (long) index * partitionSize;
+                int size = (int) Math.min(partitionSize, limit - start);
+                EntityManager em = factory.createEntityManager();
+                try {
+                    Query query = em.createQuery(queryString);
+                    for (Map.Entry<Parameter<?>, Object> parameter : bound.entrySet()) {
+                        if (parameter.getKey().getName() != null) {
+                            query.setParameter(parameter.getKey().getName(), parameter.getValue());
+                        } else {
+                            query.setParameter(parameter.getKey().getPosition(), parameter.getValue());
+                        }
+                    }
+                    query.setFirstResult((int) (offset + start));
+                    query.setMaxResults(size);
+                    return new Partition<X>(index, query.getResultList());
+                } finally {
+                    em.close();
+                }
+            }
+        };
+    }
+
+    private static class Partition<X> {
+        private final int index;
+        private final List<X> results;
+
+        Partition(int index, List<X> results) {
+            this.index = index;
+            this.results = results;
+        }
+    }
+}
@@ -26,6 +26,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Maintains metadata obtained from persistence.xml.
@@ -33,6 +35,9 @@ import java.util.Set;
  * Class is in singleton, the first call builds the metadata reading persistence metadata
  * from {@link it.polimi.modaclouds.cpimlibrary.CloudMetadata} building class mapping
  * and named queries mapping.
+ * <p/>
+ * For each persisted class an {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor}
+ * is built once, so that JPA annotations are not inspected again at runtime.
  *
  * @author Fabio Arcidiacono.
  * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata
@@ -45,11 +50,15 @@ public class PersistenceMetadata {
     private Map<String, String> persistedClasses;
     private Map<String, String> namedQueries;
     private Set<String> tables;
+    private ConcurrentMap<Class<?>, EntityDescriptor> descriptors;
+    private Map<String, EntityDescriptor> mappedDescriptors;
 
     private PersistenceMetadata() {
         this.persistedClasses = new HashMap<>();
         this.namedQueries = new HashMap<>();
         this.tables = new HashSet<>();
+        this.descriptors = new ConcurrentHashMap<>();
+        this.mappedDescriptors = new HashMap<>();
         populatePersistedClasses();
     }
 
@@ -98,6 +107,43 @@ public class PersistenceMetadata {
         return this.namedQueries.get(name);
     }
 
+    /**
+     * Returns the pre-resolved metadata of the given entity class.
+     * <p/>
+     * Descriptors of the classes stated in persistence.xml are built on construction,
+     * descriptors of any other class are built on first request and then cached.
+     *
+     * @param clazz the entity class
+     *
+     * @return the {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor} of {@code clazz}
+     */
+    public EntityDescriptor getEntityDescriptor(Class<?> clazz) {
+        EntityDescriptor descriptor = this.descriptors.get(clazz);
+        if (descriptor == null) {
+            descriptor = new EntityDescriptor(clazz);
+            EntityDescriptor previous = this.descriptors.putIfAbsent(clazz, descriptor);
+            if (previous != null) {
+                descriptor = previous;
+            }
+        }
+        return descriptor;
+    }
+
+    /**
+     * Returns the pre-resolved metadata of the POJO associated to {@code name}.
+     *
+     * @param name a table name or a simple class name
+     *
+     * @return the {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor}
+     * or null if {@code name} is not mapped to any persisted class
+     */
+    public EntityDescriptor getEntityDescriptor(String name) {
+        if (this.mappedDescriptors.isEmpty()) {
+            throw new IllegalStateException("persistence.xml has not yet been parsed by CPIM");
+        }
+        return this.mappedDescriptors.get(name);
+    }
+
     private void populatePersistedClasses() {
         log.info("map persisted class names to table names");
         Map<String, String> puInfo = MF.getFactory().getPersistenceUnitInfo();
@@ -107,6 +153,11 @@ public class PersistenceMetadata {
             Class<?> clazz = ReflectionUtils.getClassInstance(className);
             handleNamedQueries(clazz);
             handlePersistedClasses(className, clazz);
+            descriptors.put(clazz, new EntityDescriptor(clazz));
+        }
+        for (Map.Entry<String, String> mapping : persistedClasses.entrySet()) {
+            Class<?> clazz = ReflectionUtils.getClassInstance(mapping.getValue());
+            mappedDescriptors.put(mapping.getKey(), descriptors.get(clazz));
         }
     }
 
@@ -0,0 +1,436 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Lexer;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.TokenType;
+import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.Entity;
+import javax.persistence.Parameter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local cache of the results of JPQL SELECT queries executed through
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudQuery} and
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.TypedCloudQuery}.
+ * <p/>
+ * Results are keyed by the normalized query string, the bound parameter values and the requested page.
+ * Each table has a version number that is incremented whenever an entity of the table is written or
+ * an UPDATE or DELETE query targets it; an entry is valid only if the versions of all the tables read by
+ * its query did not change since before the query was executed.
+ * <p/>
+ * The cache is configured through the following properties of <i>persistence.xml</i>:
+ * <ul>
+ * <li>{@code cpim.query.cache} yes or no, default no</li>
+ * <li>{@code cpim.query.cache.size} max number of cached results, default 100</li>
+ * <li>{@code cpim.query.cache.expiration} seconds a result is kept, default 60</li>
+ * </ul>
+ * A single query can bypass the cache setting the {@code cpim.query.cache} hint to {@code false}.
+ * <p/>
+ * Entities in the results are copied when cached and on each lookup, as in
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityCache}, so callers never share an instance.
+ * <p/>
+ * Only writes performed by this instance invalidate the cache, writes from other instances
+ * become visible on expiration.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@Slf4j
+public class QueryCache {
+
+    public static final String ENABLED = "cpim.query.cache";
+    public static final String SIZE = "cpim.query.cache.size";
+    public static final String EXPIRATION = "cpim.query.cache.expiration";
+    public static final String HINT = ENABLED;
+    static final int TABLES_CACHE_SIZE = 256;
+
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+    private static final Pattern IDENTIFIER = Pattern.compile("(?<![.:?\\w])([A-Za-z_]\\w*)");
+    private static final Pattern SELECT = Pattern.compile("^select\\s", Pattern.CASE_INSENSITIVE);
+    private static final Pattern JOIN = Pattern.compile("\\sjoin\\s", Pattern.CASE_INSENSITIVE);
+
+    private static QueryCache instance = null;
+    private final boolean enabled;
+    private final int maxSize;
+    private final long expiration;
+    private final Map<QueryKey, CachedResult> results;
+    private final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> queryTables = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > TABLES_CACHE_SIZE;
+        }
+    };
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private QueryCache() {
+        this(MF.getFactory().getPersistenceUnitInfo());
+    }
+
+    /**
+     * Builds a cache configured by the given persistence unit properties.
+     *
+     * @param properties the persistence unit properties, as read from <i>persistence.xml</i>
+     */
+    public QueryCache(Map<String, String> properties) {
+        this.enabled = "yes".equalsIgnoreCase(properties.get(ENABLED));
+        this.maxSize = parseInt(properties, SIZE, 100);
+        this.expiration = parseInt(properties, EXPIRATION, 60) * 1000L;
+        this.results = new LinkedHashMap<QueryKey, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedResult> eldest) {
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static synchronized QueryCache getInstance() {
+        if (instance == null) {
+            instance = new QueryCache();
+        }
+        return instance;
+    }
+
+    private static int parseInt(Map<String, String> properties, String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unrecognized value '" + value + "' for property " + name, e);
+        }
+    }
+
+    /**
+     * Returns true if the cache has been enabled in <i>persistence.xml</i>.
+     *
+     * @return {@code boolean}
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Returns true if the results of the given query can be cached, that is if it is a SELECT query.
+     *
+     * @param queryString the JPQL query
+     *
+     * @return {@code boolean}
+     */
+    public boolean isCacheable(String queryString) {
+        return SELECT.matcher(queryString.trim()).find();
+    }
+
+    /**
+     * Builds the key that identifies the result of a query execution.
+     *
+     * @param queryString  the JPQL query
+     * @param parameters   the bound parameters
+     * @param firstResult  the first requested position, -1 if not set
+     * @param maxResults   the max requested results, -1 if not set
+     * @param singleResult true if the key refers to {@code getSingleResult}, false for {@code getResultList}
+     *
+     * @return the key
+     */
+    public QueryKey key(String queryString, Map<Parameter<?>, Object> parameters, int firstResult, int maxResults, boolean singleResult) {
+        String normalized = WHITESPACES.matcher(queryString.trim()).replaceAll(" ");
+        Map<String, Object> values = new TreeMap<>();
+        for (Map.Entry<Parameter<?>, Object> parameter : parameters.entrySet()) {
+            String name = parameter.getKey().getName();
+            values.put(name != null ? ":" + name : "?" + parameter.getKey().getPosition(), parameter.getValue());
+        }
+        return new QueryKey(normalized, values, firstResult, maxResults, singleResult, tablesOf(normalized));
+    }
+
+    /*
+     * Every identifier that names a persisted class is considered as read by the query,
+     * if the query joins other entities all the relationship targets of such classes are read too.
+     */
+    private Set<String> tablesOf(String normalized) {
+        Set<String> tables;
+        synchronized (this.queryTables) {
+            tables = this.queryTables.get(normalized);
+        }
+        if (tables != null) {
+            return tables;
+        }
+        tables = new HashSet<>();
+        boolean joins = JOIN.matcher(normalized).find();
+        PersistenceMetadata metadata = PersistenceMetadata.getInstance();
+        Matcher matcher = IDENTIFIER.matcher(normalized);
+        while (matcher.find()) {
+            EntityDescriptor descriptor = metadata.getEntityDescriptor(matcher.group(1));
+            if (descriptor == null) {
+                continue;
+            }
+            tables.add(descriptor.getTableName());
+            if (joins) {
+                for (FieldDescriptor field : descriptor.getFields()) {
+                    if (field.isRelational()) {
+                        tables.add(metadata.getEntityDescriptor(field.getTargetClass()).getTableName());
+                    }
+                }
+            }
+        }
+        tables = Collections.unmodifiableSet(tables);
+        synchronized (this.queryTables) {
+            this.queryTables.put(normalized, tables);
+        }
+        return tables;
+    }
+
+    /**
+     * Returns the cached result for the given key, if still valid.
+     *
+     * @param key the query key
+     *
+     * @return the cached result or null
+     */
+    public Object get(QueryKey key) {
+        CachedResult cached;
+        synchronized (this.results) {
+            cached = this.results.get(key);
+            if (cached != null && (cached.expiresAt < System.currentTimeMillis() || !Arrays.equals(cached.versions, versionsOf(key)))) {
+                this.results.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null) {
+            this.misses.incrementAndGet();
+            return null;
+        }
+        this.hits.incrementAndGet();
+        return copyOf(cached.result);
+    }
+
+    /**
+     * Returns the current versions of the tables read by the query.
+     * Must be taken before executing the query and passed to {@link #put(QueryKey, long[], Object)}.
+     *
+     * @param key the query key
+     *
+     * @return the versions snapshot
+     */
+    public long[] snapshot(QueryKey key) {
+        return versionsOf(key);
+    }
+
+    private long[] versionsOf(QueryKey key) {
+        long[] versions = new long[key.tables.size()];
+        int i = 0;
+        for (String table : key.tables) {
+            AtomicLong version = this.tableVersions.get(table);
+            versions[i++] = version == null ? 0 : version.get();
+        }
+        return versions;
+    }
+
+    /**
+     * Cache the result of a query execution.
+     *
+     * @param key      the query key
+     * @param snapshot the versions taken through {@link #snapshot(QueryKey)} before executing the query
+     * @param result   the query result
+     */
+    public void put(QueryKey key, long[] snapshot, Object result) {
+        synchronized (this.results) {
+            this.results.put(key, new CachedResult(copyOf(result), snapshot, System.currentTimeMillis() + this.expiration));
+        }
+    }
+
+    /*
+     * Results are lists, rows of projected values or single values. Other values than entities are immutable.
+     */
+    private static Object copyOf(Object result) {
+        if (result instanceof List) {
+            List<Object> copy = new ArrayList<>(((List<?>) result).size());
+            for (Object element : (List<?>) result) {
+                copy.add(copyOf(element));
+            }
+            return copy;
+        }
+        if (result instanceof Object[]) {
+            Object[] row = ((Object[]) result).clone();
+            for (int i = 0; i < row.length; i++) {
+                row[i] = copyOf(row[i]);
+            }
+            return row;
+        }
+        if (result != null && result.getClass().isAnnotationPresent(Entity.class)) {
+            return EntityCache.copy(result.getClass(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Invalidate all the cached results of queries reading the given table.
+     *
+     * @param tableName the table name
+     */
+    public void invalidate(String tableName) {
+        AtomicLong version = this.tableVersions.get(tableName);
+        if (version == null) {
+            AtomicLong created = new AtomicLong();
+            version = this.tableVersions.putIfAbsent(tableName, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        version.incrementAndGet();
+        this.invalidations.incrementAndGet();
+    }
+
+    /**
+     * Invalidate all the cached results of queries reading the table of the given entity.
+     *
+     * @param entity the written entity
+     */
+    public void invalidate(Object entity) {
+        invalidate(PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass()).getTableName());
+    }
+
+    /**
+     * Invalidate all the cached results of queries reading the table targeted by an UPDATE or DELETE query.
+     *
+     * @param queryString the JPQL update or delete query
+     */
+    public void invalidateAll(String queryString) {
+        for (Token token : Lexer.lex(queryString)) {
+            if (token.getType() == TokenType.STRING) {
+                EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(token.getData());
+                if (descriptor != null) {
+                    invalidate(descriptor.getTableName());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Empty the cache.
+     */
+    public void clear() {
+        synchronized (this.results) {
+            this.results.clear();
+        }
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Returns the number of results discarded because the cache was full.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public long getInvalidations() {
+        return this.invalidations.get();
+    }
+
+    public int size() {
+        synchronized (this.results) {
+            return this.results.size();
+        }
+    }
+
+    /**
+     * Identifies the result of a query execution.
+     */
+    public static final class QueryKey {
+        private final String query;
+        private final Map<String, Object> parameters;
+        private final int firstResult;
+        private final int maxResults;
+        private final boolean singleResult;
+        private final Set<String> tables;
+
+        private QueryKey(String query, Map<String, Object> parameters, int firstResult, int maxResults, boolean singleResult, Set<String> tables) {
+            this.query = query;
+            this.parameters = parameters;
+            this.firstResult = firstResult;
+            this.maxResults = maxResults;
+            this.singleResult = singleResult;
+            this.tables = tables;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return this.firstResult == other.firstResult && this.maxResults == other.maxResults
+                    && this.singleResult == other.singleResult && this.query.equals(other.query)
+                    && this.parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = this.query.hashCode();
+            result = 31 * result + this.parameters.hashCode();
+            result = 31 * result + this.firstResult;
+            result = 31 * result + this.maxResults;
+            return 31 * result + (this.singleResult ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return this.query + " " + this.parameters;
+        }
+    }
+
+    private static class CachedResult {
+        private final Object result;
+        private final long[] versions;
+        private final long expiresAt;
+
+        CachedResult(Object result, long[] versions, long expiresAt) {
+            this.result = result;
+            this.versions = versions;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
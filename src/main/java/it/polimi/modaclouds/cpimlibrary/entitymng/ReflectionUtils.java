@@ -202,22 +202,38 @@ public class ReflectionUtils {
      * @return an array of {@link java.lang.reflect.Field}
      */
     public static Field[] getFields(Object entity) {
+        return getFields(entity.getClass());
+    }
+
+    /**
+     * Tries to get field from a JDO enhanced class, if fails returns all declared fields.
+     * <p/>
+     * Since this may require to build and catch an exception, prefer reading fields
+     * from the cached {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor}.
+     *
+     * @param clazz class from which retrieve fields
+     *
+     * @return an array of {@link java.lang.reflect.Field}
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata#getEntityDescriptor(Class)
+     */
+    public static Field[] getFields(Class<?> clazz) {
         try {
-            return getJdoFields(entity);
+            return getJdoFields(clazz);
         } catch (Exception e) {
-            return entity.getClass().getDeclaredFields();
+            return clazz.getDeclaredFields();
         }
     }
 
-    private static Field[] getJdoFields(Object entity) {
+    private static Field[] getJdoFields(Class<?> clazz) {
         try {
-            Field jdoField = entity.getClass().getDeclaredField("jdoFieldNames");
-            // log.info("Class {} has been enhanced with JDO", entity.getClass().getCanonicalName());
+            Field jdoField = clazz.getDeclaredField("jdoFieldNames");
+            // log.info("Class {} has been enhanced with JDO", clazz.getCanonicalName());
             jdoField.setAccessible(true);
-            String[] jdoFieldNames = (String[]) getFieldValue(entity, jdoField);
+            String[] jdoFieldNames = (String[]) getFieldValue(null, jdoField);
             List<Field> classFields = new ArrayList<>();
             for (String fieldName : jdoFieldNames) {
-                classFields.add(entity.getClass().getDeclaredField(fieldName));
+                classFields.add(clazz.getDeclaredField(fieldName));
             }
             return classFields.toArray(new Field[jdoFieldNames.length]);
         } catch (NoSuchFieldException e) {
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Iterates over the results of a query one page at a time, so that
+ * at most one page (two when prefetching) is held in memory.
+ * <p/>
+ * Pages are fetched through {@link javax.persistence.Query#setFirstResult(int)} and
+ * {@link javax.persistence.Query#setMaxResults(int)} on the query of the runtime provider,
+ * iteration stops on the first page shorter than the page size.
+ * <p/>
+ * Once a page has been consumed its entities are detached from the entity manager,
+ * so the persistence context does not grow with the whole result. Detaching is done
+ * by the thread that fetches the next page, the last page is detached on {@link #close()}.
+ * <p/>
+ * When prefetching, the next page is fetched in background while the current one is consumed,
+ * by a pool of daemon threads shared by all the iterators whose idle threads terminate.
+ * Since the query shares the entity manager that created it, the entity manager
+ * must not be used by the caller until the iterator is exhausted or closed;
+ * closing waits for a background fetch already running.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.CloudQuery#iterate(int)
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.TypedCloudQuery#iterate(int)
+ */
+@Slf4j
+public class ResultIterator<X> implements Iterator<X>, Closeable {
+
+    private static final int PREFETCH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ThreadPoolExecutor PREFETCHER = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = CloudThread.getThread(runnable);
+            if (thread == null) {
+                thread = new Thread(runnable);
+            }
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        PREFETCHER.allowCoreThreadTimeOut(true);
+    }
+
+    private final EntityManager entityManager;
+    private final Query query;
+    private final int pageSize;
+    private final long limit;
+    private int nextPosition;
+    private long fetched = 0;
+    private long returned = 0;
+    private List<X> current = Collections.emptyList();
+    private Iterator<X> page = Collections.<X>emptyIterator();
+    private boolean lastPage = false;
+    private final boolean prefetch;
+    private FutureTask<List<X>> nextPage;
+    private List<X> detachedByNextPage = Collections.emptyList();
+
+    /**
+     * @param entityManager the entity manager of the runtime provider that created the query,
+     *                      if null consumed pages are not detached
+     * @param query         the query of the runtime provider
+     * @param pageSize      the number of results fetched at once
+     * @param firstResult   the position of the first result, -1 if not set
+     * @param maxResults    the max number of results to iterate, -1 if not set
+     * @param prefetch      if true the next page is fetched in background
+     */
+    public ResultIterator(EntityManager entityManager, Query query, int pageSize, int firstResult, int maxResults, boolean prefetch) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("page size must be positive, was " + pageSize);
+        }
+        this.entityManager = entityManager;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.nextPosition = firstResult < 0 ? 0 : firstResult;
+        this.limit = maxResults < 0 ? Long.MAX_VALUE : maxResults;
+        this.prefetch = prefetch && this.limit > 0;
+        if (this.prefetch) {
+            this.nextPage = prefetch(Collections.<X>emptyList());
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.returned >= this.limit) {
+            close();
+            return false;
+        }
+        while (!this.page.hasNext()) {
+            if (this.lastPage) {
+                close();
+                return false;
+            }
+            List<X> results = takePage(this.current);
+            this.lastPage = results.size() < this.pageSize;
+            this.current = results;
+            this.page = results.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public X next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        this.returned++;
+        return this.page.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Query results cannot be removed through the iterator");
+    }
+
+    /**
+     * Cancels a background fetch not started yet or waits for the running one,
+     * then detaches the fetched pages. Must be called if the iterator is not consumed till the end.
+     */
+    @Override
+    public void close() {
+        FutureTask<List<X>> fetching = this.nextPage;
+        this.nextPage = null;
+        this.lastPage = true;
+        this.page = Collections.<X>emptyIterator();
+        if (fetching != null) {
+            if (PREFETCHER.remove(fetching)) {
+                detach(this.detachedByNextPage);
+            } else {
+                try {
+                    detach(fetching.get());
+                } catch (InterruptedException e) {
+                    /* the entity manager may still be in use by the prefetcher */
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    log.debug("background fetch failed while closing", e);
+                }
+            }
+        }
+        detach(this.current);
+        this.current = Collections.emptyList();
+    }
+
+    private List<X> takePage(List<X> consumed) {
+        if (!this.prefetch) {
+            detach(consumed);
+            return fetch();
+        }
+        List<X> results;
+        try {
+            results = this.nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching query results", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error fetching query results", e.getCause());
+        }
+        if (results.size() == this.pageSize && this.fetched < this.limit) {
+            this.detachedByNextPage = consumed;
+            this.nextPage = prefetch(consumed);
+        } else {
+            this.nextPage = null;
+            detach(consumed);
+        }
+        return results;
+    }
+
+    private FutureTask<List<X>> prefetch(final List<X> consumed) {
+        FutureTask<List<X>> task = new FutureTask<>(new Callable<List<X>>() {
+            @Override
+            public List<X> call() {
+                detach(consumed);
+                return fetch();
+            }
+        });
+        PREFETCHER.execute(task);
+        return task;
+    }
+
+    /*
+     * Only called by one thread at a time, either the caller or the prefetcher.
+     */
+    @SuppressWarnings("unchecked")
+    private List<X> fetch() {
+        int size = (int) Math.min(this.pageSize, this.limit - this.fetched);
+        log.debug("fetching {} results from position {}", size, this.nextPosition);
+        this.query.setFirstResult(this.nextPosition);
+        this.query.setMaxResults(size);
+        List<X> results = this.query.getResultList();
+        this.nextPosition += results.size();
+        this.fetched += results.size();
+        return results;
+    }
+
+    /*
+     * Same threading as fetch, the entity manager is never used concurrently.
+     * Results that are not entities, like projections, are skipped.
+     */
+    private void detach(List<X> consumed) {
+        if (this.entityManager == null) {
+            return;
+        }
+        for (Object result : consumed) {
+            if (result instanceof Object[]) {
+                for (Object column : (Object[]) result) {
+                    detachEntity(column);
+                }
+            } else {
+                detachEntity(result);
+            }
+        }
+    }
+
+    private void detachEntity(Object result) {
+        if (result == null) {
+            return;
+        }
+        try {
+            this.entityManager.detach(result);
+        } catch (IllegalArgumentException e) {
+            /* not an entity */
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.OperationType;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory buffer of pending writes used by {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager}
+ * in write-behind mode.
+ * <p/>
+ * Writes are keyed by entity class and id so that subsequent operations on the same entity
+ * are coalesced into a single one, kept in the position of the first buffered write:
+ * <ul>
+ * <li>INSERT followed by UPDATE stays an INSERT of the latest state</li>
+ * <li>INSERT followed by DELETE cancels both</li>
+ * <li>UPDATE followed by DELETE becomes a DELETE</li>
+ * <li>DELETE followed by INSERT or UPDATE becomes an UPDATE of the latest state</li>
+ * </ul>
+ * Entities without an id are keyed by identity and are never coalesced with other instances.
+ * <p/>
+ * The buffer is not thread-safe, the {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager}
+ * it belongs to guards it and uses {@link #getFlushDelay()} to schedule the flush on the time threshold.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata#useWriteBehind()
+ */
+@Slf4j
+public class WriteBehindBuffer {
+
+    private final int maxSize;
+    private final long flushInterval;
+    private final Map<Object, PendingWrite> pending = new LinkedHashMap<>();
+    private long oldestWrite;
+
+    /**
+     * @param maxSize       number of pending writes that requires a flush
+     * @param flushInterval milliseconds a write can stay buffered before requiring a flush
+     */
+    public WriteBehindBuffer(int maxSize, long flushInterval) {
+        this.maxSize = maxSize;
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * Buffer an operation on the given entity, coalescing it with a pending one on the same entity if any.
+     *
+     * @param entity    the entity
+     * @param operation one of {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.OperationType}
+     */
+    public void add(Object entity, OperationType operation) {
+        Object key = keyOf(entity);
+        PendingWrite previous = this.pending.get(key);
+        if (previous == null) {
+            if (this.pending.isEmpty()) {
+                this.oldestWrite = System.currentTimeMillis();
+            }
+            this.pending.put(key, new PendingWrite(entity, operation));
+            return;
+        }
+        OperationType coalesced = coalesce(previous.operation, operation);
+        if (coalesced == null) {
+            log.debug("{} cancelled by {} on {}", previous.operation, operation, key);
+            this.pending.remove(key);
+        } else {
+            /* replacing the value keeps the position of the first buffered write */
+            this.pending.put(key, new PendingWrite(entity, coalesced));
+        }
+    }
+
+    private static OperationType coalesce(OperationType previous, OperationType current) {
+        switch (current) {
+            case INSERT:
+            case UPDATE:
+                return previous == OperationType.DELETE ? OperationType.UPDATE : previous;
+            case DELETE:
+                return previous == OperationType.INSERT ? null : OperationType.DELETE;
+            default:
+                throw new IllegalArgumentException("Operation type: " + current + " not recognized");
+        }
+    }
+
+    /**
+     * Returns true if the number of pending writes or the age of the oldest one exceeded the configured thresholds.
+     *
+     * @return {@code boolean}
+     */
+    public boolean isFlushNeeded() {
+        if (this.pending.isEmpty()) {
+            return false;
+        }
+        return this.pending.size() >= this.maxSize || System.currentTimeMillis() - this.oldestWrite >= this.flushInterval;
+    }
+
+    /**
+     * Returns the milliseconds before the oldest pending write exceeds the time threshold.
+     *
+     * @return the milliseconds to wait, 0 if the threshold already expired, -1 if there are no pending writes
+     */
+    public long getFlushDelay() {
+        if (this.pending.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, this.oldestWrite + this.flushInterval - System.currentTimeMillis());
+    }
+
+    /**
+     * Returns true if there is a pending write on the entity with the given class and id.
+     *
+     * @param entityClass the entity class
+     * @param id          the entity id
+     *
+     * @return {@code boolean}
+     */
+    public boolean isPending(Class<?> entityClass, Object id) {
+        return this.pending.containsKey(new EntityKey(entityClass, id));
+    }
+
+    /**
+     * Returns the buffered state of the entity with the given class and id.
+     *
+     * @param entityClass the entity class
+     * @param id          the entity id
+     *
+     * @return the buffered entity or null if it is not buffered or if it is pending for removal
+     */
+    public <T> T getPending(Class<T> entityClass, Object id) {
+        PendingWrite write = this.pending.get(new EntityKey(entityClass, id));
+        if (write == null || write.operation == OperationType.DELETE) {
+            return null;
+        }
+        return entityClass.cast(write.entity);
+    }
+
+    /**
+     * Returns the number of pending writes.
+     *
+     * @return the number of pending writes
+     */
+    public int size() {
+        return this.pending.size();
+    }
+
+    /**
+     * Apply the pending writes to {@code delegate} in the order they were first buffered,
+     * each write is removed from the buffer once applied.
+     * <p/>
+     * If a write fails, it and the following ones stay buffered and the error is raised.
+     *
+     * @param delegate the entity manager of the runtime persistence provider
+     * @param flushed  the list where applied entities are added, in flush order, also when a write fails
+     */
+    public void flushTo(EntityManager delegate, List<Object> flushed) {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        log.debug("flushing {} buffered writes", this.pending.size());
+        Iterator<PendingWrite> writes = this.pending.values().iterator();
+        while (writes.hasNext()) {
+            PendingWrite write = writes.next();
+            switch (write.operation) {
+                case INSERT:
+                    delegate.persist(write.entity);
+                    break;
+                case UPDATE:
+                    delegate.merge(write.entity);
+                    break;
+                case DELETE:
+                    delegate.remove(write.entity);
+                    break;
+            }
+            writes.remove();
+            flushed.add(write.entity);
+        }
+    }
+
+    /**
+     * Send the pending writes to the migration system in the order they were first buffered,
+     * writes are removed from the buffer once sent.
+     * <p/>
+     * Consecutive writes with the same operation are sent as a single unit, inserted entities keep the id
+     * assigned when they were buffered. If a unit fails, it and the following ones stay buffered and the error is raised.
+     *
+     * @param registered the write that observed the migration state
+     * @param flushed    the list where sent entities are added, in flush order, also when a unit fails
+     */
+    public void flushTo(MigrationManager.Write registered, List<Object> flushed) {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        log.debug("sending {} buffered writes to the migration system", this.pending.size());
+        List<Object> keys = new ArrayList<>();
+        List<Object> unit = new ArrayList<>();
+        OperationType operation = null;
+        for (Map.Entry<Object, PendingWrite> entry : new ArrayList<>(this.pending.entrySet())) {
+            PendingWrite write = entry.getValue();
+            if (write.operation != operation && !unit.isEmpty()) {
+                propagate(registered, keys, unit, operation, flushed);
+                keys = new ArrayList<>();
+                unit = new ArrayList<>();
+            }
+            operation = write.operation;
+            keys.add(entry.getKey());
+            unit.add(write.entity);
+        }
+        propagate(registered, keys, unit, operation, flushed);
+    }
+
+    private void propagate(MigrationManager.Write registered, List<Object> keys, List<Object> unit, OperationType operation, List<Object> flushed) {
+        registered.propagateBuffered(unit, operation);
+        for (Object key : keys) {
+            this.pending.remove(key);
+        }
+        flushed.addAll(unit);
+    }
+
+    /**
+     * Discard all the pending writes.
+     */
+    public void clear() {
+        this.pending.clear();
+    }
+
+    private static Object keyOf(Object entity) {
+        Object id = PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass()).getIdField().getValue(entity);
+        if (id == null) {
+            return new IdentityKey(entity);
+        }
+        return new EntityKey(entity.getClass(), id);
+    }
+
+    private static class PendingWrite {
+        private final Object entity;
+        private final OperationType operation;
+
+        PendingWrite(Object entity, OperationType operation) {
+            this.entity = entity;
+            this.operation = operation;
+        }
+    }
+
+    private static class EntityKey {
+        private final Class<?> entityClass;
+        private final Object id;
+
+        EntityKey(Class<?> entityClass, Object id) {
+            this.entityClass = entityClass;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntityKey)) {
+                return false;
+            }
+            EntityKey other = (EntityKey) o;
+            return this.entityClass.equals(other.entityClass) && this.id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.entityClass.hashCode() + this.id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return this.entityClass.getSimpleName() + "[" + this.id + "]";
+        }
+    }
+
+    private static class IdentityKey {
+        private final Object entity;
+
+        IdentityKey(Object entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).entity == this.entity;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.entity);
+        }
+
+        @Override
+        public String toString() {
+            return this.entity.getClass().getSimpleName() + "@" + Integer.toHexString(hashCode());
+        }
+    }
+}
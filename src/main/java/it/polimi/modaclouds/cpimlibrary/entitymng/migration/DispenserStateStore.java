@@ -0,0 +1,235 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Single memory-mapped file holding the state of every sequence number dispenser.
+ * <p/>
+ * After a header each table owns a fixed-size slot made of its name and two copies of its state.
+ * Each copy holds a version, the state bytes and a checksum; saves update in place the copy with the
+ * older version, so a torn write can only damage the copy being written while the other one still holds
+ * the previous state. Restoring a table reads the valid copy with the latest version.
+ * Saves are not forced to the disk, the mapped pages outlive a crash of the application and are written
+ * back by the operating system; {@link #close()} forces them.
+ * <p/>
+ * The file grows doubling the number of slots when a new table is registered and there is no free slot.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberProvider
+ */
+@Slf4j
+public class DispenserStateStore implements Closeable {
+
+    public static final int MAX_STATE_SIZE = 16;
+    public static final int MAX_NAME_SIZE = 122;
+
+    private static final int MAGIC = 0x53455144;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int NAME_SIZE = 2 + MAX_NAME_SIZE + 4;
+    private static final int COPY_SIZE = 32;
+    private static final int SLOT_SIZE = NAME_SIZE + 2 * COPY_SIZE;
+    private static final int INITIAL_SLOTS = 64;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Path file;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer buffer;
+    private int capacity;
+
+    /**
+     * Open the state file, creating it if it does not exist.
+     *
+     * @param file full path of the state file
+     */
+    public DispenserStateStore(String file) {
+        this.file = Paths.get(file);
+        try {
+            boolean exists = Files.exists(this.file) && Files.size(this.file) >= HEADER_SIZE;
+            if (exists) {
+                long size = Files.size(this.file);
+                map((int) ((size - HEADER_SIZE) / SLOT_SIZE));
+                if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                    throw new MigrationException("File " + file + " is not a dispenser state file");
+                }
+                loadSlots();
+            } else {
+                map(INITIAL_SLOTS);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new MigrationException("Cannot open dispenser state file " + file, e);
+        }
+        log.info("dispenser state file {} opened with {} tables", file, slots.size());
+    }
+
+    private void map(int slotCount) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+        }
+        this.capacity = slotCount;
+    }
+
+    /*
+     * A slot is in use if its name is valid, slots are allocated in order so the first free one ends the scan.
+     */
+    private void loadSlots() {
+        for (int slot = 0; slot < capacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            int length = buffer.getShort(position);
+            if (length <= 0 || length > MAX_NAME_SIZE) {
+                return;
+            }
+            byte[] name = new byte[length];
+            for (int i = 0; i < length; i++) {
+                name[i] = buffer.get(position + 2 + i);
+            }
+            if (checksum(name, 0, length) != buffer.getInt(position + 2 + MAX_NAME_SIZE)) {
+                log.warn("discarding torn dispenser state slot {}", slot);
+                return;
+            }
+            slots.put(new String(name, UTF8), slot);
+        }
+    }
+
+    /**
+     * Save the state of a table, registering it if needed.
+     *
+     * @param table the table name
+     * @param state the dispenser state, at most {@value #MAX_STATE_SIZE} bytes
+     */
+    public synchronized void save(String table, byte[] state) {
+        if (state.length > MAX_STATE_SIZE) {
+            throw new IllegalArgumentException("State of table [" + table + "] exceeds " + MAX_STATE_SIZE + " bytes");
+        }
+        int slot = slotOf(table);
+        int position = HEADER_SIZE + slot * SLOT_SIZE + NAME_SIZE;
+        long versionA = validVersion(position);
+        long versionB = validVersion(position + COPY_SIZE);
+        int copy = versionA <= versionB ? position : position + COPY_SIZE;
+        long version = Math.max(Math.max(versionA, versionB), 0) + 1;
+        buffer.putLong(copy, version);
+        buffer.put(copy + 8, (byte) state.length);
+        for (int i = 0; i < state.length; i++) {
+            buffer.put(copy + 9 + i, state[i]);
+        }
+        buffer.putInt(copy + 9 + MAX_STATE_SIZE, copyChecksum(copy));
+    }
+
+    /**
+     * Returns the last state saved for a table.
+     *
+     * @param table the table name
+     *
+     * @return the state bytes or null if the table was never saved
+     */
+    public synchronized byte[] load(String table) {
+        Integer slot = slots.get(table);
+        if (slot == null) {
+            return null;
+        }
+        int position = HEADER_SIZE + slot * SLOT_SIZE + NAME_SIZE;
+        long versionA = validVersion(position);
+        long versionB = validVersion(position + COPY_SIZE);
+        if (versionA < 0 && versionB < 0) {
+            return null;
+        }
+        int copy = versionA >= versionB ? position : position + COPY_SIZE;
+        byte[] state = new byte[buffer.get(copy + 8)];
+        for (int i = 0; i < state.length; i++) {
+            state[i] = buffer.get(copy + 9 + i);
+        }
+        return state;
+    }
+
+    private int slotOf(String table) {
+        Integer slot = slots.get(table);
+        if (slot != null) {
+            return slot;
+        }
+        byte[] name = table.getBytes(UTF8);
+        if (name.length > MAX_NAME_SIZE) {
+            throw new IllegalArgumentException("Table name [" + table + "] exceeds " + MAX_NAME_SIZE + " bytes");
+        }
+        slot = slots.size();
+        if (slot >= capacity) {
+            try {
+                map(capacity * 2);
+            } catch (IOException e) {
+                throw new MigrationException("Cannot grow dispenser state file " + file, e);
+            }
+        }
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        for (int i = 0; i < name.length; i++) {
+            buffer.put(position + 2 + i, name[i]);
+        }
+        buffer.putInt(position + 2 + MAX_NAME_SIZE, checksum(name, 0, name.length));
+        buffer.putShort(position, (short) name.length);
+        slots.put(table, slot);
+        return slot;
+    }
+
+    /*
+     * Returns the version of the copy at the given position, -1 if never written or torn.
+     */
+    private long validVersion(int copy) {
+        long version = buffer.getLong(copy);
+        int length = buffer.get(copy + 8);
+        if (version <= 0 || length < 0 || length > MAX_STATE_SIZE) {
+            return -1;
+        }
+        return copyChecksum(copy) == buffer.getInt(copy + 9 + MAX_STATE_SIZE) ? version : -1;
+    }
+
+    private int copyChecksum(int copy) {
+        byte[] content = new byte[9 + MAX_STATE_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = buffer.get(copy + i);
+        }
+        return checksum(content, 0, 9 + buffer.get(copy + 8));
+    }
+
+    private int checksum(byte[] bytes, int offset, int length) {
+        crc.reset();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        buffer.force();
+    }
+}
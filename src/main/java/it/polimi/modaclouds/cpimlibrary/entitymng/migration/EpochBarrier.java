@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks in-flight operations by epoch so that a state change can wait for the operations
+ * started under the previous state, without a lock on the operations path.
+ * <p/>
+ * An operation registers with {@link #enter()} and deregisters with {@link #exit(int)}.
+ * Who changes the state publishes the new state and then calls {@link #advance(long)},
+ * that moves to the next epoch and waits for the operations registered in the previous one.
+ * Operations that registered in the new epoch are guaranteed to see the new state.
+ * <p/>
+ * Only two epochs can be in flight at the same time, so counters are kept by epoch parity.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager
+ */
+public class EpochBarrier {
+
+    private final AtomicInteger[] active = {new AtomicInteger(), new AtomicInteger()};
+    private volatile int epoch = 0;
+
+    /**
+     * Register an operation in the current epoch.
+     *
+     * @return the epoch to be passed to {@link #exit(int)}
+     */
+    public int enter() {
+        while (true) {
+            int current = epoch;
+            AtomicInteger counter = active[current & 1];
+            counter.incrementAndGet();
+            if (epoch == current) {
+                return current;
+            }
+            /* epoch advanced while registering, the advancing thread may have missed us */
+            counter.decrementAndGet();
+        }
+    }
+
+    /**
+     * Deregister an operation.
+     *
+     * @param epoch the epoch returned by {@link #enter()}
+     */
+    public void exit(int epoch) {
+        active[epoch & 1].decrementAndGet();
+    }
+
+    /**
+     * Move to the next epoch and wait for the operations registered in the previous one to complete.
+     *
+     * @param timeout maximum milliseconds to wait for, 0 to not wait at all
+     *
+     * @return true if all the operations of the previous epoch completed, false if timeout expired
+     */
+    public synchronized boolean advance(long timeout) {
+        int previous = epoch;
+        epoch = previous + 1;
+        AtomicInteger counter = active[previous & 1];
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (counter.get() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return counter.get() == 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the current epoch.
+     *
+     * @return the current epoch
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the number of operations in flight.
+     *
+     * @return the number of in-flight operations
+     */
+    public int getActive() {
+        return active[0].get() + active[1].get();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.StatementCodec;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sink that appends every batch to a local file, encoded by
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.StatementCodec} and prefixed by its length.
+ * <p/>
+ * Stand-in for the migration system commit log, batches can be read back with {@link #read(String)}.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@Slf4j
+public class FileSink implements StatementSink {
+
+    private final Path file;
+
+    public FileSink(String file) {
+        this.file = Paths.get(file);
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see StatementSink#ship(java.util.List)
+     */
+    @Override
+    public synchronized void ship(List<Statement> batch) {
+        ByteBuffer encoded = StatementCodec.encode(batch);
+        ByteBuffer length = ByteBuffer.allocate(4);
+        length.putInt(0, encoded.remaining());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer[] record = {length, encoded};
+            while (encoded.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            throw new MigrationException("Cannot write statements to " + file, e);
+        }
+        log.debug("shipped {} statements to {}", batch.size(), file);
+    }
+
+    /**
+     * Read back all the statements written in {@code file}.
+     *
+     * @param file the file written by a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.FileSink}
+     *
+     * @return the statements in the order they were written
+     *
+     * @throws it.polimi.modaclouds.cpimlibrary.exception.MigrationException if the file cannot be read or a record is truncated or malformed
+     */
+    public static List<Statement> read(String file) {
+        List<Statement> statements = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+            while (content.hasRemaining() && channel.read(content) >= 0) {
+                // read whole file
+            }
+            content.flip();
+            while (content.hasRemaining()) {
+                int offset = content.position();
+                int length = content.remaining() < 4 ? -1 : content.getInt();
+                if (length < 0 || length > content.remaining()) {
+                    throw new MigrationException("Truncated statement record at offset " + offset + " of " + file);
+                }
+                ByteBuffer record = content.slice();
+                record.limit(length);
+                try {
+                    statements.addAll(StatementCodec.decodeAll(record));
+                } catch (IllegalArgumentException e) {
+                    throw new MigrationException("Malformed statement record at offset " + offset + " of " + file, e);
+                }
+                content.position(content.position() + length);
+            }
+        } catch (IOException e) {
+            throw new MigrationException("Cannot read statements from " + file, e);
+        }
+        return statements;
+    }
+}
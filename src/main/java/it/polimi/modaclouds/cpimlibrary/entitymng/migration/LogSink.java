@@ -0,0 +1,43 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * Sink that logs every shipped statement.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@Slf4j
+public class LogSink implements StatementSink {
+
+    /* (non-Javadoc)
+     *
+     * @see StatementSink#ship(java.util.List)
+     */
+    @Override
+    public void ship(List<Statement> batch) {
+        // TODO send to migration system
+        for (Statement statement : batch) {
+            log.info(statement.toString());
+        }
+    }
+}
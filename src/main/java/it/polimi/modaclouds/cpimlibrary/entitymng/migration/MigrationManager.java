@@ -17,34 +17,45 @@
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
 
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector;
+import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
 import lombok.Getter;
-import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.Query;
+import java.util.Collection;
 
 /**
  * Singleton instance that manage interaction with migration system.
  * <p/>
  * Follow a state pattern, states are handled as an FSA.
+ * <p/>
+ * Writes must be enclosed between {@link #beginWrite()} and {@link #endWrite(Write)}, and must check
+ * and propagate through the returned {@link Write}, that is bound to the state observed when the write began.
+ * A state transition first publishes the new state, then waits for the writes begun
+ * under the previous one to complete, up to the <i>drainTimeout</i> configured in <i>migration.xml</i>.
+ * Reading the state is lock-free.
  *
  * @author Fabio Arcidiacono.
  * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.State
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.EpochBarrier
  */
 @Slf4j
 public class MigrationManager {
 
     private static MigrationManager instance = null;
     @Getter private State normalState;
-    @Getter private State migrationState;
-    @Setter private State state;
-    private HegiraConnector hegiraConnector;
+    @Getter private MigrationState migrationState;
+    private volatile State state;
+    private final EpochBarrier writes = new EpochBarrier();
+    private final long drainTimeout;
 
     private MigrationManager() {
         this.normalState = new NormalState(this);
         this.migrationState = new MigrationState(this);
-        this.hegiraConnector = HegiraConnector.getInstance();
+        this.drainTimeout = MF.getFactory().getCloudMetadata().getDrainTimeout();
+        HegiraConnector hegiraConnector = HegiraConnector.getInstance();
         if (hegiraConnector.isSynchronizing()) {
+            this.migrationState.activate();
             this.state = migrationState;
         } else {
             this.state = normalState;
@@ -59,7 +70,44 @@ public class MigrationManager {
     }
 
     public boolean isMigrating() {
-        return hegiraConnector.isSynchronizing();
+        return state == migrationState;
+    }
+
+    /**
+     * Register a write bound to the current state. A transition waits for the write before completing,
+     * unless it waits longer than the drain timeout.
+     * <p/>
+     * The synchronization state is read before registering, so that a client whose cached state
+     * is stale refreshes it and starts or stops migration first.
+     *
+     * @return the write to be passed to {@link #endWrite(Write)}
+     */
+    public Write beginWrite() {
+        HegiraConnector.getInstance().isSynchronizing();
+        int epoch = writes.enter();
+        State current = state;
+        return new Write(epoch, current, current == migrationState);
+    }
+
+    /**
+     * Deregister a write.
+     *
+     * @param write the write returned by {@link #beginWrite()}
+     */
+    public void endWrite(Write write) {
+        writes.exit(write.epoch);
+    }
+
+    /**
+     * Publish the new state then wait for the writes begun under the previous state to complete.
+     *
+     * @param state the new state
+     */
+    public synchronized void setState(State state) {
+        this.state = state;
+        if (!writes.advance(drainTimeout)) {
+            log.warn("{} writes still in flight after {} ms, transition completed anyway", writes.getActive(), drainTimeout);
+        }
     }
 
     public void startMigration() {
@@ -70,11 +118,39 @@ public class MigrationManager {
         state.stopMigration();
     }
 
-    public void propagate(Query query) {
-        state.propagate(query);
-    }
+    /**
+     * A write registered with {@link #beginWrite()}, checks and propagations are done
+     * on the state observed when the write began, even if a transition published a new one meanwhile.
+     */
+    public static final class Write {
+        private final int epoch;
+        private final State state;
+        private final boolean migrating;
+
+        private Write(int epoch, State state, boolean migrating) {
+            this.epoch = epoch;
+            this.state = state;
+            this.migrating = migrating;
+        }
+
+        public boolean isMigrating() {
+            return migrating;
+        }
+
+        public void propagate(Query query) {
+            state.propagate(query);
+        }
 
-    public void propagate(Object entity, OperationType operation) {
-        state.propagate(entity, operation);
+        public void propagate(Object entity, OperationType operation) {
+            state.propagate(entity, operation);
+        }
+
+        public void propagate(Collection<?> entities, OperationType operation) {
+            state.propagate(entities, operation);
+        }
+
+        public void propagateBuffered(Collection<?> entities, OperationType operation) {
+            state.propagateBuffered(entities, operation);
+        }
     }
 }
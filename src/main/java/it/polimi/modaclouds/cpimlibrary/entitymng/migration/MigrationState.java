@@ -16,6 +16,7 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
 
+import it.polimi.modaclouds.cpimlibrary.CloudMetadata;
 import it.polimi.modaclouds.cpimlibrary.entitymng.CloudQuery;
 import it.polimi.modaclouds.cpimlibrary.entitymng.TypedCloudQuery;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
@@ -24,12 +25,32 @@ import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.InsertBuil
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.StatementBuilder;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.UpdateBuilder;
 import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
+ * Generated statements are handed to a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementPipeline}
+ * that ships them in background, the pipeline is started by the first statement and flushed when migration stops.
+ * <p/>
+ * If a journal directory is configured statements are committed to a
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementJournal} before being shipped,
+ * and statements not acknowledged before a crash are shipped again when the pipeline starts.
+ * Otherwise statements the pipeline could not ship when migration stopped are kept in memory
+ * and shipped first when the next pipeline starts.
+ * <p/>
+ * Once migration stopped and the pipeline has been closed, writes that were still running
+ * after the drain timeout fail with a {@link it.polimi.modaclouds.cpimlibrary.exception.MigrationException}
+ * instead of starting a new pipeline.
+ *
  * @author Fabio Arcidiacono.
  * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager
  */
@@ -37,6 +58,13 @@ import java.util.Deque;
 public class MigrationState implements State {
 
     private MigrationManager manager;
+    private volatile StatementPipeline pipeline;
+    private volatile StatementJournal journal;
+    private final AtomicLong propagated = new AtomicLong();
+    private final List<Statement> undelivered = new ArrayList<>();
+    /* propagations hold the read lock, stopping holds the write lock */
+    private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private boolean active = false;
 
     public MigrationState(MigrationManager manager) {
         this.manager = manager;
@@ -59,6 +87,47 @@ public class MigrationState implements State {
     public void stopMigration() {
         log.info("Stopping migration");
         manager.setState(manager.getNormalState());
+        lifecycle.writeLock().lock();
+        try {
+            stop();
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Called before the state is published by a start migration.
+     */
+    void activate() {
+        lifecycle.writeLock().lock();
+        try {
+            active = true;
+        } finally {
+            lifecycle.writeLock().unlock();
+        }
+    }
+
+    private void stop() {
+        active = false;
+        synchronized (this) {
+            if (pipeline != null) {
+                pipeline.stop();
+                List<Statement> failed = pipeline.getUndelivered();
+                if (!failed.isEmpty()) {
+                    if (journal != null) {
+                        log.warn(failed.size() + " statements not shipped, they will be replayed from the journal");
+                    } else {
+                        log.warn(failed.size() + " statements not shipped, they will be shipped when migration starts again");
+                        undelivered.addAll(failed);
+                    }
+                }
+                pipeline = null;
+            }
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
     }
 
     /* (non-Javadoc)
@@ -93,32 +162,99 @@ public class MigrationState implements State {
      */
     @Override
     public void propagate(Object entity, OperationType operation) {
-        StatementBuilder builder;
+        Deque<Statement> statements = getBuilder(operation).build(entity);
+        propagate(statements);
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see State#propagate(java.util.Collection, OperationType)
+     */
+    @Override
+    public void propagate(Collection<?> entities, OperationType operation) {
+        Deque<Statement> statements = getBuilder(operation).buildAll(entities);
+        propagate(statements);
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see State#propagateBuffered(java.util.Collection, OperationType)
+     */
+    @Override
+    public void propagateBuffered(Collection<?> entities, OperationType operation) {
+        StatementBuilder builder = operation == OperationType.INSERT ? new InsertBuilder(true) : getBuilder(operation);
+        propagate(builder.buildAll(entities));
+    }
+
+    private StatementBuilder getBuilder(OperationType operation) {
         switch (operation) {
             case INSERT:
-                builder = new InsertBuilder();
-                break;
+                return new InsertBuilder();
             case UPDATE:
-                builder = new UpdateBuilder();
-                break;
+                return new UpdateBuilder();
             case DELETE:
-                builder = new DeleteBuilder();
-                break;
+                return new DeleteBuilder();
             default:
                 throw new MigrationException("Operation type: " + operation + " not recognized");
         }
-        Deque<Statement> statements = builder.build(entity);
-        propagate(statements);
     }
 
     private void propagate(Deque<Statement> statements) {
-        while (!statements.isEmpty()) {
-            propagate(statements.removeFirst());
+        lifecycle.readLock().lock();
+        try {
+            if (!active) {
+                throw new MigrationException("Migration stopped before the write completed, " + statements.size() + " statements not propagated");
+            }
+            StatementPipeline pipeline = getPipeline();
+            StatementJournal journal = this.journal;
+            if (journal != null && !statements.isEmpty()) {
+                long offset = 0;
+                for (Statement statement : statements) {
+                    offset = journal.append(statement);
+                }
+                journal.commit(offset);
+            }
+            propagated.addAndGet(statements.size());
+            pipeline.submit(statements);
+        } finally {
+            lifecycle.readLock().unlock();
         }
     }
 
-    private void propagate(Statement statement) {
-        // TODO send to migration system
-        log.info(statement.toString());
+    /**
+     * Returns how many statements have been handed to the pipeline since creation, across migrations.
+     *
+     * @return the number of propagated statements
+     */
+    public long getPropagatedStatements() {
+        return propagated.get();
+    }
+
+    private StatementPipeline getPipeline() {
+        StatementPipeline current = pipeline;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (pipeline == null) {
+                CloudMetadata metadata = MF.getFactory().getCloudMetadata();
+                StatementSink sink = metadata.getShippingFile() == null ? new LogSink() : new FileSink(metadata.getShippingFile());
+                if (metadata.getJournalDir() != null) {
+                    journal = new StatementJournal(metadata.getJournalDir(), metadata.getJournalSegmentSize());
+                    sink = journal.acknowledging(sink);
+                }
+                StatementPipeline created = new StatementPipeline(sink, metadata.getShippingThreads(), metadata.getShippingCapacity(),
+                        metadata.getShippingBatchSize(), metadata.getShippingInterval(), metadata.getShippingTimeout());
+                created.start();
+                if (journal != null) {
+                    created.submit(journal.replay());
+                } else if (!undelivered.isEmpty()) {
+                    created.submit(undelivered);
+                    undelivered.clear();
+                }
+                pipeline = created;
+            }
+            return pipeline;
+        }
     }
 }
@@ -19,6 +19,7 @@ package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.Query;
+import java.util.Collection;
 
 /**
  * @author Fabio Arcidiacono.
@@ -40,6 +41,7 @@ public class NormalState implements State {
     @Override
     public void startMigration() {
         log.info("Starting migration");
+        manager.getMigrationState().activate();
         manager.setState(manager.getMigrationState());
     }
 
@@ -69,4 +71,22 @@ public class NormalState implements State {
     public void propagate(Object entity, OperationType operation) {
         throw new IllegalStateException("Migration was not running");
     }
+
+    /* (non-Javadoc)
+     *
+     * @see State#propagate(java.util.Collection, OperationType)
+     */
+    @Override
+    public void propagate(Collection<?> entities, OperationType operation) {
+        throw new IllegalStateException("Migration was not running");
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see State#propagateBuffered(java.util.Collection, OperationType)
+     */
+    @Override
+    public void propagateBuffered(Collection<?> entities, OperationType operation) {
+        throw new IllegalStateException("Migration was not running");
+    }
 }
@@ -43,6 +43,28 @@ public interface SeqNumberDispenser {
      */
     public int geOffset();
 
+    /**
+     * Returns the average number of sequence numbers served per second,
+     * as observed on the ranges requested so far.
+     *
+     * @return the allocation rate, 0 if not observed yet
+     */
+    public double getAllocationRate();
+
+    /**
+     * Returns how many ranges have been requested to the migration system.
+     *
+     * @return the number of range requests
+     */
+    public long getRefills();
+
+    /**
+     * Returns the average time between two range requests.
+     *
+     * @return the interval in milliseconds, 0 if not observed yet
+     */
+    public double getRefillInterval();
+
     /**
      * Gives the next sequence number assigned by migration system.
      *
@@ -50,6 +72,22 @@ public interface SeqNumberDispenser {
      */
     public int nextSequenceNumber();
 
+    /**
+     * Gives the next {@code count} sequence numbers assigned by migration system,
+     * asking the migration system at most once.
+     *
+     * @param count how many sequence numbers are needed
+     *
+     * @return an array of {@code count} sequence numbers
+     */
+    public int[] nextSequenceNumbers(int count);
+
+    /**
+     * If the dispenser has no range, as when it has not been restored, asks the first one in background
+     * so that the first sequence number does not wait for the migration system.
+     */
+    public void warmUp();
+
     /**
      * Returns a representation of the current dispenser state.
      *
@@ -57,6 +95,17 @@ public interface SeqNumberDispenser {
      */
     public byte[] save();
 
+    /**
+     * Returns a representation of a state that restores the dispenser to serve from {@code mark},
+     * or to ask a fresh range if {@code mark} is not within the current range, so that no sequence number
+     * below {@code mark} can be served again whatever is served after saving it.
+     *
+     * @param mark the first sequence number that can be served after a restore
+     *
+     * @return the high-water mark state representation.
+     */
+    public byte[] saveHighWaterMark(long mark);
+
     /**
      * Restore the dispenser state.
      *
@@ -22,37 +22,68 @@ import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
 import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * An implementation of {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser}.
  * <p/>
  * Provides the next sequence generated sequence number through the method {@code nextSequenceNumber}.
  * <p/>
- * This implementation maintains an array of {@code int} which is gradually populated with more
- * sequence numbers retrieved from ZooKeeper when no sequence number is ready to be served.
+ * This implementation is thread-safe: sequence numbers are claimed from the range currently assigned
+ * by ZooKeeper through an atomic counter, without locking. When the configured fraction of the range
+ * has been served the next range is requested in background, so that in steady state callers never wait
+ * for ZooKeeper. Only when a range is exhausted before the next one is available callers synchronize
+ * to install a new range. Background requests of all the dispensers go through a
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberRangeBatcher}, so tables running
+ * low at the same time reserve their ranges together.
+ * <p/>
+ * If a range window is configured the size of the requested ranges adapts to the table allocation rate:
+ * each time a range is requested the rate observed on the current one is averaged with the previous ones and the
+ * offset is set so that the next range lasts for the window, within the configured bounds. In this case offsets
+ * set through {@link #setOffset(int)} are replaced by the next adaptation.
  *
  * @author Fabio Arcidiacono.
  * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser
+ * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata#getSeqNumberPrefetch()
+ * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata#getSeqNumberRangeWindow()
  */
 @Slf4j
 public class SeqNumberDispenserImpl implements SeqNumberDispenser {
 
+    private static final byte STATE_VERSION = 1;
+    private static final int STATE_SIZE = 13;
     private final String CHARSET = "UTF-8";
-    private String tableName;
-    private int[] range;
-    private int next;
-    private int offset;
-    private HegiraConnector hegiraConnector;
+    private final String tableName;
+    private final double prefetch;
+    private final long window;
+    private final int minOffset;
+    private final int maxOffset;
+    private final AtomicReference<Range> current = new AtomicReference<>();
+    private final AtomicReference<Future<int[]>> prefetched = new AtomicReference<>();
+    private final Object refillLock = new Object();
+    private volatile int offset;
+    private final AtomicLong refills = new AtomicLong();
+    private volatile double allocationRate;
+    private volatile double refillInterval;
+    private long lastRefill;
 
     public SeqNumberDispenserImpl(String tableName) {
         if (tableName == null) {
             throw new NullPointerException("Table name cannot be null");
         }
         this.tableName = tableName;
-        this.hegiraConnector = HegiraConnector.getInstance();
         this.offset = MF.getFactory().getCloudMetadata().getSeqNumberRange();
+        this.prefetch = MF.getFactory().getCloudMetadata().getSeqNumberPrefetch();
+        this.window = TimeUnit.MILLISECONDS.toNanos(MF.getFactory().getCloudMetadata().getSeqNumberRangeWindow());
+        this.minOffset = MF.getFactory().getCloudMetadata().getSeqNumberRangeMin();
+        this.maxOffset = MF.getFactory().getCloudMetadata().getSeqNumberRangeMax();
     }
 
     @Override
@@ -71,49 +102,235 @@ public class SeqNumberDispenserImpl implements SeqNumberDispenser {
         return this.offset;
     }
 
+    /* (non-Javadoc)
+     *
+     * @see SeqNumberDispenser#getAllocationRate()
+     */
+    @Override
+    public double getAllocationRate() {
+        return this.allocationRate;
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see SeqNumberDispenser#getRefills()
+     */
+    @Override
+    public long getRefills() {
+        return this.refills.get();
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see SeqNumberDispenser#getRefillInterval()
+     */
+    @Override
+    public double getRefillInterval() {
+        return this.refillInterval;
+    }
+
     @Override
     public int nextSequenceNumber() {
-        if (this.range == null) {
-            this.range = getAssignedSequenceNumbers();
-            this.next = this.range[0];
+        while (true) {
+            Range range = this.current.get();
+            if (range != null) {
+                int next = range.next.getAndIncrement();
+                if (next <= range.last && next >= range.first) {
+                    prefetchIfNeeded(range, next);
+                    return next;
+                }
+            }
+            refill(range, 1);
+        }
+    }
+
+    /*
+     * Claims what is left in the current range, then installs the prefetched range or,
+     * if none was requested, asks a single range wide enough for the missing ones (at least offset).
+     */
+    @Override
+    public int[] nextSequenceNumbers(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Requested sequence numbers must be positive, was " + count);
+        }
+        int[] numbers = new int[count];
+        int served = 0;
+        while (served < count) {
+            Range range = this.current.get();
+            if (range != null) {
+                served = claim(range, numbers, served);
+            }
+            if (served < count) {
+                refill(range, count - served);
+            }
+        }
+        log.debug("TABLE: " + this.tableName + ", SERVED: " + count + ", LAST: " + numbers[count - 1]);
+        return numbers;
+    }
+
+    private int claim(Range range, int[] numbers, int from) {
+        int wanted = numbers.length - from;
+        int start = range.next.getAndAdd(wanted);
+        if (start > range.last || start < range.first) {
+            return from;
+        }
+        int end = (int) Math.min(range.last, (long) start + wanted - 1);
+        int served = from;
+        for (int number = start; number <= end; number++) {
+            numbers[served++] = number;
+        }
+        prefetchIfNeeded(range, end);
+        return served;
+    }
+
+    private void prefetchIfNeeded(Range range, int served) {
+        if (this.prefetch >= 1 || range.prefetching.get()) {
+            return;
+        }
+        long used = (long) served - range.first + 1;
+        if (used >= this.prefetch * range.size() && range.prefetching.compareAndSet(false, true)) {
+            int size = adapt(range, used);
+            log.debug("prefetching " + size + " sequence numbers for table: " + this.tableName);
+            if (this.prefetched.get() == null) {
+                this.prefetched.compareAndSet(null, SeqNumberRangeBatcher.getInstance().request(this.tableName, size));
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     *
+     * @see SeqNumberDispenser#warmUp()
+     */
+    @Override
+    public void warmUp() {
+        if (this.current.get() == null && this.prefetched.get() == null) {
+            log.debug("warming up " + this.offset + " sequence numbers for table: " + this.tableName);
+            this.prefetched.compareAndSet(null, SeqNumberRangeBatcher.getInstance().request(this.tableName, this.offset));
         }
-        int current = next;
-        if (this.next == this.range[this.range.length - 1]) {
-            this.range = getAssignedSequenceNumbers();
-            this.next = this.range[0];
-        } else {
-            this.next++;
+    }
+
+    /*
+     * Replace the exhausted range, unless another thread did it already.
+     */
+    private void refill(Range exhausted, int missing) {
+        synchronized (this.refillLock) {
+            if (this.current.get() != exhausted) {
+                return;
+            }
+            Range fresh = null;
+            Future<int[]> pending = this.prefetched.getAndSet(null);
+            if (pending != null) {
+                try {
+                    fresh = toRange(pending.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MigrationException("Interrupted while retrieving sequence number range for table [" + this.tableName + "]", e);
+                } catch (ExecutionException e) {
+                    log.warn("prefetch of sequence numbers for table " + this.tableName + " failed, retrying", e.getCause());
+                }
+            }
+            if (fresh == null) {
+                int size = exhausted == null ? this.offset : adapt(exhausted, exhausted.size());
+                fresh = getAssignedSequenceNumbers(Math.max(missing, size));
+            }
+            fresh.installed = System.nanoTime();
+            this.current.set(fresh);
         }
-        log.debug("TABLE: " + this.tableName + ", RANGE: " + Arrays.toString(range) + ", CURRENT: " + current + ", NEXT: " + next);
-        return current;
     }
 
-    private int[] getAssignedSequenceNumbers() {
+    /*
+     * Update the statistics with the allocation rate observed on the given range
+     * and returns the size for the next range request.
+     */
+    private synchronized int adapt(Range range, long used) {
+        long now = System.nanoTime();
+        if (this.lastRefill != 0) {
+            double interval = (now - this.lastRefill) / 1e6;
+            this.refillInterval = this.refillInterval == 0 ? interval : (this.refillInterval + interval) / 2;
+        }
+        this.lastRefill = now;
+        long elapsed = now - range.installed;
+        if (elapsed <= 0 || used <= 0) {
+            return this.offset;
+        }
+        double rate = used * 1e9 / elapsed;
+        this.allocationRate = this.allocationRate == 0 ? rate : (this.allocationRate + rate) / 2;
+        if (this.window > 0) {
+            long adapted = (long) Math.ceil(this.allocationRate * this.window / 1e9);
+            int size = (int) Math.max(this.minOffset, Math.min(this.maxOffset, adapted));
+            if (size != this.offset) {
+                log.debug("adapting offset for " + this.tableName + " from " + this.offset + " to " + size + ", rate: " + this.allocationRate + " ids/s");
+                this.offset = size;
+            }
+        }
+        return this.offset;
+    }
+
+    private Range getAssignedSequenceNumbers(int offset) {
+        int[] range;
         try {
-            log.debug("need more sequence number for table: " + this.tableName + ", asking " + this.offset + " more");
-            return hegiraConnector.assignSeqNrRange(this.tableName, this.offset);
+            log.debug("need more sequence number for table: " + this.tableName + ", asking " + offset + " more");
+            range = HegiraConnector.getInstance().assignSeqNrRange(this.tableName, offset);
         } catch (Exception e) {
             throw new MigrationException("Some error occurred while retrieving sequence number range for table [" + this.tableName + "]", e);
         }
+        return toRange(range);
     }
 
+    private Range toRange(int[] range) {
+        this.refills.incrementAndGet();
+        return new Range(range[0], range[range.length - 1], range[0]);
+    }
+
+    /*
+     * The state is saved in binary form as a version byte followed by range start, range end and next,
+     * or just the version byte if there is no range to resume.
+     */
     @Override
     public byte[] save() {
-        String state;
-        if (this.range == null) {
-            state = "[]";
-        } else {
-            state = Arrays.toString(this.range) + ":" + this.next;
+        Range range = this.current.get();
+        if (range != null) {
+            int next = range.next.get();
+            if (next >= range.first && next <= range.last) {
+                return ByteBuffer.allocate(STATE_SIZE).put(STATE_VERSION).putInt(range.first).putInt(range.last).putInt(next).array();
+            }
+        }
+        return new byte[]{STATE_VERSION};
+    }
+
+    /*
+     * Ranges assigned by the migration system never overlap, so a state with no range is enough
+     * when the mark is outside the current range.
+     */
+    @Override
+    public byte[] saveHighWaterMark(long mark) {
+        Range range = this.current.get();
+        if (range != null && mark >= range.first && mark <= range.last) {
+            return ByteBuffer.allocate(STATE_SIZE).put(STATE_VERSION).putInt(range.first).putInt(range.last).putInt((int) mark).array();
         }
-        return state.getBytes(Charset.forName(CHARSET));
+        return new byte[]{STATE_VERSION};
     }
 
+    /*
+     * Besides the binary form, states saved as text in the form [start, end]:next are still restored.
+     */
     @Override
     public boolean restore(byte[] content) throws CloudException {
         if (content == null) {
            /* state was saved as empty */
             return true;
         }
+        if (content.length > 0 && content[0] == STATE_VERSION) {
+            if (content.length == 1) {
+                /* state was saved as empty */
+                return true;
+            }
+            if (content.length != STATE_SIZE) {
+                throw new CloudException("state is malformed and cannot be restored. " + Arrays.toString(content));
+            }
+            ByteBuffer state = ByteBuffer.wrap(content, 1, STATE_SIZE - 1);
+            return restore(new int[]{state.getInt(), state.getInt()}, state.getInt());
+        }
 
         String state = new String(content, Charset.forName(CHARSET));
         if (state.isEmpty() || state.equals("[]")) {
@@ -143,12 +360,39 @@ public class SeqNumberDispenserImpl implements SeqNumberDispenser {
             throw new CloudException(e);
         }
 
+        return restore(range, next);
+    }
+
+    private boolean restore(int[] range, int next) throws CloudException {
         if (next < range[0] || next > range[1]) {
             throw new CloudException("next sequence number (" + next + ") is outside range (" + Arrays.toString(range) + ")");
         }
 
-        this.range = range;
-        this.next = next;
+        Range restored = new Range(range[0], range[1], next);
+        restored.installed = System.nanoTime();
+        this.current.set(restored);
         return true;
     }
+
+    /*
+     * A range assigned by ZooKeeper, next may overflow last when the range is exhausted.
+     */
+    private static class Range {
+
+        private final int first;
+        private final int last;
+        private final AtomicInteger next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+        private volatile long installed;
+
+        Range(int first, int last, int next) {
+            this.first = first;
+            this.last = last;
+            this.next = new AtomicInteger(next);
+        }
+
+        long size() {
+            return (long) this.last - this.first + 1;
+        }
+    }
 }
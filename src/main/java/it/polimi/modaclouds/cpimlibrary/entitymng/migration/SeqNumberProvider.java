@@ -16,6 +16,7 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
 
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
 import it.polimi.modaclouds.cpimlibrary.blobmng.CloudBlobManager;
 import it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata;
 import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
@@ -25,68 +26,151 @@ import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * Manage a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenserImpl}
  * foreach table is registered.
  * <p/>
  * A table can be registered at runtime using the {@code addTable(tableName)} method.
- * All the persisted tables stated in persistence.xml are automatically registered in construction.
+ * All the persisted tables stated in persistence.xml are automatically registered in construction
+ * and their dispensers are created and restored in parallel in background; a table used before its
+ * dispenser is ready creates it in the calling thread, or waits for the thread already creating it.
+ * Dispensers that have no range to resume ask their first one in background as soon as they are created,
+ * if their table was registered at runtime or had a backed up state, that is it was written before;
+ * since restores run in parallel these requests reach the migration system in a few batches.
+ * Lookups and registrations can be performed concurrently.
  * <p/>
  * The class is managed as a singleton instance so to get the next generated sequence number for a table
  * simply call {@code SeqNumberProvider.getInstance().getNextSequenceNumber(tableName)}.
+ * <p/>
+ * Dispenser states are backed up before the sequence numbers are returned, so that a crash cannot
+ * make a restored dispenser serve them again. The backed up state is a high-water mark: before serving
+ * a sequence number not below the saved mark, the mark is moved the configured number of sequence numbers ahead,
+ * so the state is saved once for that many sequence numbers and a restore skips the ones not served yet.
+ * With a single sequence number for each mark the state is saved on every change. File backups are stored in a single
+ * memory-mapped {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.DispenserStateStore}
+ * updated in place, states saved in one file per table by previous versions are still restored.
  *
  * @author Fabio Arcidiacono.
  * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser
  * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenserImpl
+ * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata#isBackupHighWaterMark()
  */
 @Slf4j
 public class SeqNumberProvider {
 
-    private static SeqNumberProvider instance = null;
-    private Map<String, SeqNumberDispenser> dispenser;
+    private static final String STATE_FILE = "dispensers.state";
+    private static final int RESTORE_THREADS = 8;
+    private static volatile SeqNumberProvider instance = null;
+    private final ConcurrentMap<String, FutureTask<SeqNumberDispenser>> dispenser = new ConcurrentHashMap<>();
     private final boolean executeBackup;
     private final boolean backupToBlob;
     private String prefix;
     private String backupFile;
+    private DispenserStateStore stateStore;
     private CloudBlobManager blobManager;
+    private final int backupHighWaterMark;
+    private final ConcurrentMap<String, Long> savedMarks = new ConcurrentHashMap<>();
 
     private SeqNumberProvider() {
         this.executeBackup = MF.getFactory().getCloudMetadata().executeBackup();
         this.backupToBlob = MF.getFactory().getCloudMetadata().isBackupToBlob();
+        this.backupHighWaterMark = MF.getFactory().getCloudMetadata().getBackupHighWaterMark();
         if (executeBackup) {
             this.prefix = MF.getFactory().getCloudMetadata().getBackupPrefix();
             if (backupToBlob) {
                 this.blobManager = MF.getFactory().getBlobManagerFactory().createCloudBlobManager();
             } else {
                 this.backupFile = MF.getFactory().getCloudMetadata().getBackupDir();
+                this.stateStore = new DispenserStateStore(backupFile + prefix + STATE_FILE);
             }
         }
 
-        this.dispenser = new HashMap<>();
         Set<String> persistedTables = PersistenceMetadata.getInstance().getPersistedTables();
+        if (persistedTables.isEmpty()) {
+            return;
+        }
+        ExecutorService restorer = Executors.newFixedThreadPool(Math.min(RESTORE_THREADS, persistedTables.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = CloudThread.getThread(runnable);
+                if (thread == null) {
+                    thread = new Thread(runnable);
+                }
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         for (String table : persistedTables) {
-            this.addTable(table);
+            FutureTask<SeqNumberDispenser> task = newDispenser(table, false);
+            this.dispenser.put(table, task);
+            restorer.execute(task);
         }
+        restorer.shutdown();
     }
 
-    public static synchronized SeqNumberProvider getInstance() {
-        if (instance == null) {
-            instance = new SeqNumberProvider();
+    public static SeqNumberProvider getInstance() {
+        SeqNumberProvider current = instance;
+        if (current != null) {
+            return current;
+        }
+        synchronized (SeqNumberProvider.class) {
+            if (instance == null) {
+                instance = new SeqNumberProvider();
+            }
+            return instance;
         }
-        return instance;
     }
 
+    /*
+     * Tables that were never written do not reserve a range until they are used, unless asked.
+     */
+    private FutureTask<SeqNumberDispenser> newDispenser(final String tableName, final boolean warmUp) {
+        return new FutureTask<>(new Callable<SeqNumberDispenser>() {
+            @Override
+            public SeqNumberDispenser call() {
+                SeqNumberDispenserImpl tableDispenser = new SeqNumberDispenserImpl(tableName);
+                boolean written = executeBackup && restoreDispenserState(tableDispenser);
+                if (warmUp || written) {
+                    tableDispenser.warmUp();
+                }
+                return tableDispenser;
+            }
+        });
+    }
+
+    /*
+     * Running a task already started or completed has no effect,
+     * so the dispenser is created here only if no restorer thread picked it yet.
+     */
     private SeqNumberDispenser getDispenser(String tableName) {
-        SeqNumberDispenser seqNumberDispenser = this.dispenser.get(tableName);
-        if (seqNumberDispenser == null) {
+        FutureTask<SeqNumberDispenser> task = this.dispenser.get(tableName);
+        if (task == null) {
             throw new IllegalArgumentException("Table [" + tableName + "] was not registered");
         }
-        return seqNumberDispenser;
+        return await(tableName, task);
+    }
+
+    /*
+     * A task that failed is replaced by a new one, so that the next lookup
+     * of the table tries again to create and restore its dispenser.
+     */
+    private SeqNumberDispenser await(String tableName, FutureTask<SeqNumberDispenser> task) {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for sequence number dispenser", e);
+        } catch (ExecutionException e) {
+            this.dispenser.replace(tableName, task, newDispenser(tableName, false));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MigrationException(e.getCause().getMessage(), e.getCause());
+        }
     }
 
     /**
@@ -94,15 +178,14 @@ public class SeqNumberProvider {
      * <p/>
      * Before registering the table, check if a blob with previous backup exists
      * in this case restore the state of the created table dispenser.
+     * If the table is already registered its dispenser is kept.
      *
      * @param tableName the table name
      */
     public void addTable(String tableName) {
-        SeqNumberDispenserImpl tableDispenser = new SeqNumberDispenserImpl(tableName);
-        if (executeBackup) {
-            restoreDispenserState(tableDispenser);
-        }
-        this.dispenser.put(tableName, tableDispenser);
+        FutureTask<SeqNumberDispenser> task = newDispenser(tableName, true);
+        FutureTask<SeqNumberDispenser> existing = this.dispenser.putIfAbsent(tableName, task);
+        await(tableName, existing == null ? task : existing);
     }
 
     /**
@@ -128,9 +211,48 @@ public class SeqNumberProvider {
         return tableDispenser.geOffset();
     }
 
+    /**
+     * Returns the sequence numbers allocation rate for the given table.
+     *
+     * @param tableName the table name
+     *
+     * @return the number of sequence numbers served per second
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser#getAllocationRate()
+     */
+    public double getAllocationRate(String tableName) {
+        return getDispenser(tableName).getAllocationRate();
+    }
+
+    /**
+     * Returns how many ranges of sequence numbers have been requested for the given table.
+     *
+     * @param tableName the table name
+     *
+     * @return the number of range requests
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser#getRefills()
+     */
+    public long getRefills(String tableName) {
+        return getDispenser(tableName).getRefills();
+    }
+
+    /**
+     * Returns the average time between two range requests for the given table.
+     *
+     * @param tableName the table name
+     *
+     * @return the interval in milliseconds
+     *
+     * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenser#getRefillInterval()
+     */
+    public double getRefillInterval(String tableName) {
+        return getDispenser(tableName).getRefillInterval();
+    }
+
     /**
      * Gives the next sequence number assigned by migration system for the given table
-     * and backup to a blob the new state of the table dispenser.
+     * after backing up the new state of the table dispenser.
      *
      * @param tableName the table name
      *
@@ -142,29 +264,74 @@ public class SeqNumberProvider {
         SeqNumberDispenser tableDispenser = getDispenser(tableName);
         int next = tableDispenser.nextSequenceNumber();
         if (executeBackup) {
-            backupDispenserState(tableDispenser);
+            requestBackup(tableDispenser, next);
+        }
+        return next;
+    }
+
+    /**
+     * Gives the next {@code count} sequence numbers assigned by migration system for the given table
+     * after backing up the new state of the table dispenser at most once.
+     *
+     * @param tableName the table name
+     * @param count     how many sequence numbers are needed
+     *
+     * @return an array of {@code count} sequence numbers
+     *
+     * @throws java.lang.RuntimeException if {@code tableName} was not registered
+     */
+    public int[] getNextSequenceNumbers(String tableName, int count) {
+        SeqNumberDispenser tableDispenser = getDispenser(tableName);
+        int[] next = tableDispenser.nextSequenceNumbers(count);
+        if (executeBackup) {
+            int highest = next[0];
+            for (int number : next) {
+                highest = Math.max(highest, number);
+            }
+            requestBackup(tableDispenser, highest);
         }
         return next;
     }
 
-    private void backupDispenserState(SeqNumberDispenser tableDispenser) {
-        byte[] newState = tableDispenser.save();
+    /*
+     * Ranges assigned by the migration system increase, so a sequence number below the saved mark
+     * is either in the range of the mark, not to be served after a restore, or in a range older than the saved one.
+     * Threads serving sequence numbers beyond the mark wait for the one saving the next mark,
+     * which is recorded only once saved.
+     */
+    private void requestBackup(SeqNumberDispenser tableDispenser, int served) {
+        String table = tableDispenser.getTable();
+        Long saved = savedMarks.get(table);
+        if (saved != null && served < saved) {
+            return;
+        }
+        synchronized (tableDispenser) {
+            saved = savedMarks.get(table);
+            if (saved == null || served >= saved) {
+                long mark = (long) served + backupHighWaterMark;
+                backupDispenserState(tableDispenser, tableDispenser.saveHighWaterMark(mark));
+                savedMarks.put(table, mark);
+            }
+        }
+    }
+
+    private void backupDispenserState(SeqNumberDispenser tableDispenser, byte[] newState) {
         if (backupToBlob) {
             String blobFileName = getFileName(tableDispenser);
             blobManager.uploadBlob(newState, blobFileName);
         } else {
             try {
-                String fileName = getFileName(tableDispenser);
-                FileOutputStream out = new FileOutputStream(fileName);
-                out.write(newState);
-                out.close();
+                stateStore.save(tableDispenser.getTable(), newState);
             } catch (Exception e) {
                 throw new MigrationException("Could not backup to file.", e);
             }
         }
     }
 
-    private void restoreDispenserState(SeqNumberDispenser tableDispenser) {
+    /*
+     * Returns whether a backed up state was found.
+     */
+    private boolean restoreDispenserState(SeqNumberDispenser tableDispenser) {
         byte[] savedState = null;
         try {
             if (backupToBlob) {
@@ -173,16 +340,21 @@ public class SeqNumberProvider {
                     savedState = blobManager.downloadBlob(blobFileName).getContent();
                 }
             } else {
-                String fileName = getFileName(tableDispenser);
-                File f = new File(fileName);
-                if (f.exists() && !f.isDirectory()) {
-                    log.info("Restoring state for table [" + tableDispenser.getTable() + "]");
-                    FileInputStream in = new FileInputStream(fileName);
-                    savedState = IOUtils.toByteArray(in);
-                    in.close();
+                savedState = stateStore.load(tableDispenser.getTable());
+                if (savedState == null) {
+                    /* state saved in one file per table by previous versions */
+                    String fileName = getFileName(tableDispenser);
+                    File f = new File(fileName);
+                    if (f.exists() && !f.isDirectory()) {
+                        log.info("Restoring state for table [" + tableDispenser.getTable() + "]");
+                        FileInputStream in = new FileInputStream(fileName);
+                        savedState = IOUtils.toByteArray(in);
+                        in.close();
+                    }
                 }
             }
             tableDispenser.restore(savedState);
+            return savedState != null;
         } catch (Exception e) {
             throw new MigrationException("Some problem occurred while restoring the previous state for table [" + tableDispenser.getTable() + "]", e);
         }
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces the background range requests of many dispensers into a single
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector#assignSeqNrRanges(java.util.Map)} call.
+ * <p/>
+ * Requests are queued and a single background thread sends all the queued requests at once,
+ * requests arriving while a batch is in flight are sent with the next one. So when several dispensers
+ * run low at the same time, as at startup, their ranges are reserved together.
+ * A table appears at most once in a batch, further requests for it are deferred to the next batch.
+ * Requests of tables whose range could not be assigned fail, the others in the same batch are completed.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenserImpl
+ */
+@Slf4j
+class SeqNumberRangeBatcher {
+
+    private static volatile SeqNumberRangeBatcher instance = null;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Request> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private SeqNumberRangeBatcher() {
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = CloudThread.getThread(runnable);
+                if (thread == null) {
+                    thread = new Thread(runnable);
+                }
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static SeqNumberRangeBatcher getInstance() {
+        SeqNumberRangeBatcher current = instance;
+        if (current != null) {
+            return current;
+        }
+        synchronized (SeqNumberRangeBatcher.class) {
+            if (instance == null) {
+                instance = new SeqNumberRangeBatcher();
+            }
+            return instance;
+        }
+    }
+
+    /**
+     * Queue a range request for the given table.
+     *
+     * @param tableName the table name
+     * @param offset    the number of sequence numbers to reserve
+     *
+     * @return the range, as returned by ZooKeeper, once assigned
+     */
+    Future<int[]> request(String tableName, int offset) {
+        Request request = new Request(tableName, offset);
+        pending.add(request);
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drainer);
+        }
+        return request;
+    }
+
+    /*
+     * Keep sending batches until the queue is empty, the flag is reset before giving up
+     * so that a request queued in the meanwhile is either seen here or schedules a new drain.
+     */
+    private void drain() {
+        while (true) {
+            Map<String, Request> batch = new HashMap<>();
+            List<Request> deferred = new ArrayList<>();
+            Request request;
+            while ((request = pending.poll()) != null) {
+                if (batch.containsKey(request.tableName)) {
+                    deferred.add(request);
+                } else {
+                    batch.put(request.tableName, request);
+                }
+            }
+            if (batch.isEmpty()) {
+                draining.set(false);
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            send(batch);
+            pending.addAll(deferred);
+        }
+    }
+
+    private void send(Map<String, Request> batch) {
+        Map<String, Integer> offsets = new HashMap<>();
+        for (Request request : batch.values()) {
+            offsets.put(request.tableName, request.offset);
+        }
+        log.debug("asking sequence number ranges for " + offsets);
+        try {
+            Map<String, int[]> ranges = HegiraConnector.getInstance().assignSeqNrRanges(offsets);
+            for (Request request : batch.values()) {
+                int[] range = ranges.get(request.tableName);
+                if (range == null) {
+                    request.fail(new MigrationException("No sequence number range assigned for table [" + request.tableName + "]"));
+                } else {
+                    request.complete(range);
+                }
+            }
+        } catch (Exception e) {
+            for (Request request : batch.values()) {
+                request.fail(new MigrationException("Some error occurred while retrieving sequence number range for table [" + request.tableName + "]", e));
+            }
+        }
+    }
+
+    /*
+     * Never run, completed by the batch that contains it.
+     */
+    private static class Request extends FutureTask<int[]> {
+
+        private static final Callable<int[]> NONE = new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                throw new IllegalStateException("range requests are completed by batches");
+            }
+        };
+        private final String tableName;
+        private final int offset;
+
+        Request(String tableName, int offset) {
+            super(NONE);
+            this.tableName = tableName;
+            this.offset = offset;
+        }
+
+        void complete(int[] range) {
+            set(range);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+}
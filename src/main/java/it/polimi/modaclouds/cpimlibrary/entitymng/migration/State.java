@@ -17,6 +17,7 @@
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
 
 import javax.persistence.Query;
+import java.util.Collection;
 
 /**
  * @author Fabio Arcidiacono.
@@ -49,4 +50,22 @@ public interface State {
      * @param operation one of {@link OperationType}
      */
     public void propagate(Object entity, OperationType operation);
+
+    /**
+     * Use a single builder to build statements from all the entities, then send them to the migration system
+     * as a single unit.
+     *
+     * @param entities  entities to be parsed
+     * @param operation one of {@link OperationType}
+     */
+    public void propagate(Collection<?> entities, OperationType operation);
+
+    /**
+     * Same as {@link #propagate(java.util.Collection, OperationType)} for writes buffered
+     * before the migration started, entities to be inserted keep the id already assigned to them.
+     *
+     * @param entities  entities to be parsed
+     * @param operation one of {@link OperationType}
+     */
+    public void propagateBuffered(Collection<?> entities, OperationType operation);
 }
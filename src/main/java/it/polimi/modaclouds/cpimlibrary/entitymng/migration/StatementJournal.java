@@ -0,0 +1,372 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.StatementCodec;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local journal of the statements propagated during migration.
+ * <p/>
+ * Statements are appended to memory-mapped segment files of fixed size, named after the journal offset
+ * of their first byte. Each record is made of its length, a CRC32 checksum and the statement encoded by
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.StatementCodec}; a zero length marks the
+ * end of the written records in a segment.
+ * <p/>
+ * Appended statements are made durable by {@link #commit(long)}: concurrent committers are served by
+ * a single fsync issued by the first of them, which covers everything appended so far (group commit).
+ * <p/>
+ * Once shipped, statements are acknowledged and the offset of the oldest non-acknowledged statement is
+ * stored in a checkpoint file. After a crash {@link #replay()} returns the statements from that offset on,
+ * so statements may be shipped twice but never lost. Segments entirely before the checkpoint are deleted.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationState
+ */
+@Slf4j
+public class StatementJournal implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "journal.ack";
+    private static final int HEADER_SIZE = 8;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private final MappedByteBuffer checkpoint;
+    private final Object commitLock = new Object();
+    private final TreeMap<Long, Statement> pending = new TreeMap<>();
+    private final Map<Statement, Long> offsets = new IdentityHashMap<>();
+    private final CRC32 crc = new CRC32();
+    private volatile MappedByteBuffer active;
+    private long activeBase;
+    private volatile long writtenOffset;
+    private volatile long committedOffset;
+    private volatile long compactableOffset = Long.MAX_VALUE;
+    private long acknowledgedOffset;
+
+    /**
+     * Open the journal stored in {@code directory}, creating it if needed
+     * and discarding a partially written record left by a crash.
+     *
+     * @param directory   the journal directory
+     * @param segmentSize the size in bytes of each segment file
+     */
+    public StatementJournal(String directory, int segmentSize) {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small");
+        }
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        try {
+            Files.createDirectories(this.directory);
+            this.checkpoint = map(this.directory.resolve(CHECKPOINT), 8);
+            this.acknowledgedOffset = this.checkpoint.getLong(0);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+            }
+            if (segments.isEmpty()) {
+                openSegment(acknowledgedOffset);
+            } else {
+                recover();
+                updateCompactableOffset();
+            }
+        } catch (IOException e) {
+            throw new MigrationException("Cannot open statement journal in " + directory, e);
+        }
+        this.committedOffset = this.writtenOffset;
+        log.info("statement journal opened at offset {}, acknowledged {}", writtenOffset, acknowledgedOffset);
+    }
+
+    /*
+     * Find the end of the last segment, validating the checksum of each record,
+     * and clear whatever follows so that a torn record is never read back.
+     */
+    private void recover() throws IOException {
+        Map.Entry<Long, Path> last = segments.lastEntry();
+        MappedByteBuffer segment = map(last.getValue(), segmentSize);
+        int position = 0;
+        while (readRecord(segment, position) != null) {
+            position += HEADER_SIZE + segment.getInt(position);
+        }
+        for (int i = position; i < segment.capacity(); i++) {
+            if (segment.get(i) != 0) {
+                log.warn("discarding partially written journal record at offset {}", last.getKey() + position);
+                for (int j = position; j < segment.capacity(); j++) {
+                    segment.put(j, (byte) 0);
+                }
+                segment.force();
+                break;
+            }
+        }
+        segment.position(position);
+        this.active = segment;
+        this.activeBase = last.getKey();
+        this.writtenOffset = activeBase + position;
+    }
+
+    private void openSegment(long base) throws IOException {
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX));
+        this.active = map(file, segmentSize);
+        this.activeBase = base;
+        this.writtenOffset = base;
+        segments.put(base, file);
+        updateCompactableOffset();
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    /**
+     * Append a statement to the journal. The statement is not durable until committed.
+     *
+     * @param statement the statement
+     *
+     * @return the journal offset following the statement, to be committed
+     */
+    public synchronized long append(Statement statement) {
+        ByteBuffer encoded = StatementCodec.encode(statement);
+        int length = encoded.remaining();
+        if (HEADER_SIZE + length > segmentSize) {
+            throw new MigrationException("Statement of " + length + " bytes does not fit in a journal segment");
+        }
+        if (active.remaining() < HEADER_SIZE + length) {
+            rotate();
+        }
+        crc.reset();
+        crc.update(encoded.array(), encoded.arrayOffset() + encoded.position(), length);
+        long offset = activeBase + active.position();
+        /* the length is written last so that the record becomes visible only when complete */
+        int position = active.position();
+        active.position(position + HEADER_SIZE);
+        active.putInt(position + 4, (int) crc.getValue());
+        active.put(encoded);
+        active.putInt(position, length);
+        track(offset, statement);
+        writtenOffset = activeBase + active.position();
+        return writtenOffset;
+    }
+
+    private void rotate() {
+        active.force();
+        long base = activeBase + active.capacity();
+        try {
+            openSegment(base);
+        } catch (IOException e) {
+            throw new MigrationException("Cannot create journal segment at offset " + base, e);
+        }
+        log.debug("journal rotated to segment {}", base);
+    }
+
+    /**
+     * Make durable every statement appended up to {@code offset}.
+     * <p/>
+     * If another thread is already flushing this call waits for it and returns
+     * without flushing again when its own statements were covered.
+     *
+     * @param offset an offset returned by {@link #append(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement)}
+     */
+    public void commit(long offset) {
+        if (committedOffset >= offset) {
+            return;
+        }
+        synchronized (commitLock) {
+            if (committedOffset >= offset) {
+                return;
+            }
+            /* segments before the active one are flushed on rotation */
+            long target = writtenOffset;
+            active.force();
+            committedOffset = target;
+        }
+    }
+
+    /**
+     * Returns the statements appended but not acknowledged yet, in append order.
+     * Those statements must be shipped again and acknowledged.
+     *
+     * @return the statements to be shipped
+     */
+    public synchronized List<Statement> replay() {
+        List<Statement> statements = new ArrayList<>();
+        for (Map.Entry<Long, Path> entry : segments.tailMap(segments.floorKey(Math.max(acknowledgedOffset, segments.firstKey()))).entrySet()) {
+            ByteBuffer segment;
+            if (entry.getKey() == activeBase) {
+                segment = active.duplicate();
+            } else {
+                try {
+                    segment = map(entry.getValue(), segmentSize);
+                } catch (IOException e) {
+                    throw new MigrationException("Cannot read journal segment " + entry.getValue(), e);
+                }
+            }
+            int position = 0;
+            ByteBuffer record;
+            while ((record = readRecord(segment, position)) != null) {
+                long offset = entry.getKey() + position;
+                position += HEADER_SIZE + record.remaining();
+                if (offset >= acknowledgedOffset && !pending.containsKey(offset)) {
+                    Statement statement = StatementCodec.decode(record);
+                    track(offset, statement);
+                    statements.add(statement);
+                }
+            }
+        }
+        log.info("replaying {} statements from offset {}", statements.size(), acknowledgedOffset);
+        return statements;
+    }
+
+    private ByteBuffer readRecord(ByteBuffer segment, int position) {
+        if (position + HEADER_SIZE > segment.capacity()) {
+            return null;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || position + HEADER_SIZE + length > segment.capacity()) {
+            return null;
+        }
+        ByteBuffer record = segment.duplicate();
+        record.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+        record = record.slice();
+        byte[] bytes = new byte[length];
+        record.duplicate().get(bytes);
+        crc.reset();
+        crc.update(bytes, 0, length);
+        if ((int) crc.getValue() != segment.getInt(position + 4)) {
+            return null;
+        }
+        return record;
+    }
+
+    private void track(long offset, Statement statement) {
+        synchronized (pending) {
+            pending.put(offset, statement);
+            offsets.put(statement, offset);
+        }
+    }
+
+    /**
+     * Mark the given statements as shipped. The checkpoint advances up to
+     * the oldest statement still not acknowledged.
+     *
+     * @param statements statements returned by {@link #replay()} or previously appended
+     */
+    public void acknowledge(Collection<Statement> statements) {
+        long acknowledged;
+        synchronized (pending) {
+            for (Statement statement : statements) {
+                Long offset = offsets.remove(statement);
+                if (offset != null) {
+                    pending.remove(offset);
+                }
+            }
+            acknowledged = pending.isEmpty() ? writtenOffset : pending.firstKey();
+            if (acknowledged <= acknowledgedOffset) {
+                return;
+            }
+            acknowledgedOffset = acknowledged;
+            checkpoint.putLong(0, acknowledged);
+        }
+        if (compactableOffset <= acknowledged) {
+            compact(acknowledged);
+        }
+    }
+
+    /*
+     * A segment can be deleted once the following one starts before the checkpoint,
+     * which is forced first so that after a crash it never points before a deleted segment.
+     */
+    private synchronized void compact(long acknowledged) {
+        Long next = segments.higherKey(segments.firstKey());
+        if (next != null && next <= acknowledged) {
+            checkpoint.force();
+        }
+        while ((next = segments.higherKey(segments.firstKey())) != null && next <= acknowledged) {
+            Map.Entry<Long, Path> oldest = segments.pollFirstEntry();
+            try {
+                Files.deleteIfExists(oldest.getValue());
+                log.debug("journal segment {} compacted", oldest.getKey());
+            } catch (IOException e) {
+                log.warn("cannot delete journal segment " + oldest.getValue(), e);
+            }
+        }
+        updateCompactableOffset();
+    }
+
+    private void updateCompactableOffset() {
+        Long next = segments.higherKey(segments.firstKey());
+        this.compactableOffset = next == null ? Long.MAX_VALUE : next;
+    }
+
+    /**
+     * Returns a sink that acknowledges each batch once delivered by {@code sink}.
+     *
+     * @param sink the sink actually delivering statements
+     *
+     * @return the acknowledging sink
+     */
+    public StatementSink acknowledging(final StatementSink sink) {
+        return new StatementSink() {
+            @Override
+            public void ship(List<Statement> batch) {
+                sink.ship(batch);
+                acknowledge(batch);
+            }
+        };
+    }
+
+    public long getWrittenOffset() {
+        return writtenOffset;
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public long getAcknowledgedOffset() {
+        synchronized (pending) {
+            return acknowledgedOffset;
+        }
+    }
+
+    /**
+     * Flush the journal and the checkpoint.
+     */
+    @Override
+    public synchronized void close() {
+        commit(writtenOffset);
+        checkpoint.force();
+        log.info("statement journal closed at offset {}, acknowledged {}", writtenOffset, getAcknowledgedOffset());
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ships statements to a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementSink}
+ * in background so that callers do not wait for the migration system.
+ * <p/>
+ * Statements are submitted in units, as the ones generated for a single operation, and each statement is routed
+ * by its table to one of several lanes, each made of a bounded lock-free
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.RingBuffer} and a shipper thread.
+ * A shipper delivers a batch as soon as it reaches the batch size or when its oldest statement
+ * has waited for the batch interval. Statements of the same table are delivered in submission order,
+ * units spanning several lanes are enqueued one at a time so that every lane sees them in the same order.
+ * Statements of different tables may be delivered in any order, a single lane delivers every statement
+ * in submission order.
+ * <p/>
+ * When a lane is full submitters wait for room, applying back-pressure to the application, up to the
+ * submit timeout. A failed batch is retried meanwhile, so a migration system that does not come back makes
+ * submitters fail instead of blocking them. Stopping the pipeline ships every statement submitted before,
+ * a submitter still waiting when the pipeline stops gets an exception. A batch that cannot be shipped while stopping is kept,
+ * together with the statements following it in its lane, and returned by {@link #getUndelivered()}.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationState
+ */
+@Slf4j
+public class StatementPipeline {
+
+    private static final long RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final StatementSink sink;
+    private final int batchSize;
+    private final long batchInterval;
+    private final long submitTimeout;
+    private final Lane[] lanes;
+    private final Object sequencer = new Object();
+    private final AtomicLong shippedStatements = new AtomicLong();
+    private final AtomicLong shippedBatches = new AtomicLong();
+    private final List<Statement> undelivered = Collections.synchronizedList(new ArrayList<Statement>());
+    private volatile boolean running;
+
+    /**
+     * @param sink          destination of the shipped batches
+     * @param shippers      number of lanes, each with its own shipper thread
+     * @param capacity      number of statements each lane can hold before applying back-pressure
+     * @param batchSize     maximum number of statements shipped at once
+     * @param batchInterval milliseconds a statement can wait for its batch to fill up
+     * @param submitTimeout milliseconds a submitter waits for room in a full lane before failing
+     */
+    public StatementPipeline(StatementSink sink, int shippers, int capacity, int batchSize, long batchInterval, long submitTimeout) {
+        if (shippers <= 0 || capacity <= 0 || batchSize <= 0 || batchInterval < 0 || submitTimeout < 0) {
+            throw new IllegalArgumentException("Pipeline sizes must be positive");
+        }
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.batchInterval = TimeUnit.MILLISECONDS.toNanos(batchInterval);
+        this.submitTimeout = TimeUnit.MILLISECONDS.toNanos(submitTimeout);
+        this.lanes = new Lane[shippers];
+        for (int i = 0; i < shippers; i++) {
+            this.lanes[i] = new Lane(capacity);
+        }
+    }
+
+    /**
+     * Start the shipper threads.
+     */
+    public synchronized void start() {
+        if (running) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        running = true;
+        for (int i = 0; i < lanes.length; i++) {
+            Thread thread = CloudThread.getThread(lanes[i]);
+            if (thread == null) {
+                thread = new Thread(lanes[i]);
+            }
+            thread.setName("statement-shipper-" + i);
+            thread.setDaemon(true);
+            lanes[i].shipper = thread;
+            thread.start();
+        }
+        log.info("statement pipeline started with {} shippers", lanes.length);
+    }
+
+    /**
+     * Enqueue a statement to be shipped, waiting if its lane is full.
+     *
+     * @param statement the statement
+     *
+     * @throws java.lang.IllegalStateException if the pipeline is not running or the lane stays full past the submit timeout
+     */
+    public void submit(Statement statement) {
+        submit(Collections.singletonList(statement));
+    }
+
+    /**
+     * Enqueue statements to be shipped in the given order as a single unit, waiting if their lanes are full.
+     * Waiting is not interrupted since the statements would be lost, the interrupt status is restored
+     * once they are all enqueued.
+     *
+     * @param statements the statements, as the ones generated for an operation
+     *
+     * @throws java.lang.IllegalStateException if the pipeline is not running, stops while waiting
+     *                                         or a lane stays full past the submit timeout
+     */
+    public void submit(Collection<Statement> statements) {
+        if (!running) {
+            throw new IllegalStateException("Pipeline is not running");
+        }
+        if (statements.isEmpty()) {
+            return;
+        }
+        Map<Lane, List<Statement>> routed = new LinkedHashMap<>();
+        for (Statement statement : statements) {
+            Lane lane = lanes[(statement.getTable().hashCode() & Integer.MAX_VALUE) % lanes.length];
+            List<Statement> sameLane = routed.get(lane);
+            if (sameLane == null) {
+                sameLane = new ArrayList<>();
+                routed.put(lane, sameLane);
+            }
+            sameLane.add(statement);
+        }
+        boolean interrupted = false;
+        try {
+            if (routed.size() == 1) {
+                interrupted = offer(routed);
+            } else {
+                synchronized (sequencer) {
+                    interrupted = offer(routed);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean offer(Map<Lane, List<Statement>> routed) {
+        boolean interrupted = false;
+        for (Map.Entry<Lane, List<Statement>> entry : routed.entrySet()) {
+            for (Statement statement : entry.getValue()) {
+                interrupted |= offer(entry.getKey(), statement);
+            }
+        }
+        return interrupted;
+    }
+
+    /*
+     * Returns whether the calling thread was interrupted while waiting,
+     * the status is cleared meanwhile otherwise parking would return immediately.
+     */
+    private boolean offer(Lane lane, Statement statement) {
+        boolean interrupted = false;
+        if (!lane.buffer.offer(statement)) {
+            log.debug("lane full, waiting for shipper");
+            long deadline = System.nanoTime() + submitTimeout;
+            int spins = 0;
+            do {
+                if (!running) {
+                    throw new IllegalStateException("Pipeline stopped while waiting to submit " + statement);
+                }
+                if (System.nanoTime() - deadline >= 0) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IllegalStateException("Lane full for more than " + TimeUnit.NANOSECONDS.toMillis(submitTimeout) + " ms, cannot submit " + statement);
+                }
+                LockSupport.unpark(lane.shipper);
+                if (++spins < 100) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                }
+                interrupted |= Thread.interrupted();
+            } while (!lane.buffer.offer(statement));
+        }
+        if (lane.idle) {
+            LockSupport.unpark(lane.shipper);
+        }
+        return interrupted;
+    }
+
+    /**
+     * Stop accepting statements, ship the pending ones and wait for the shipper threads to terminate.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.shipper);
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.shipper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("interrupted while stopping statement pipeline");
+                return;
+            }
+        }
+        log.info("statement pipeline stopped, shipped {} statements in {} batches", shippedStatements.get(), shippedBatches.get());
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getShippedStatements() {
+        return shippedStatements.get();
+    }
+
+    public long getShippedBatches() {
+        return shippedBatches.get();
+    }
+
+    /**
+     * Returns the statements that could not be shipped while stopping, in submission order within each lane.
+     *
+     * @return the undelivered statements
+     */
+    public List<Statement> getUndelivered() {
+        synchronized (undelivered) {
+            return new ArrayList<>(undelivered);
+        }
+    }
+
+    private class Lane implements Runnable {
+
+        private final RingBuffer<Statement> buffer;
+        private volatile Thread shipper;
+        private volatile boolean idle;
+        private boolean undeliverable;
+
+        Lane(int capacity) {
+            this.buffer = new RingBuffer<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            List<Statement> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            while (true) {
+                Statement statement = buffer.poll();
+                if (statement != null) {
+                    if (batch.isEmpty()) {
+                        deadline = System.nanoTime() + batchInterval;
+                    }
+                    batch.add(statement);
+                    if (batch.size() >= batchSize) {
+                        ship(batch);
+                    }
+                    continue;
+                }
+                /* read the flag before the last check on the buffer, so statements submitted before stop are not lost */
+                boolean stopping = !running;
+                if (!buffer.isEmpty()) {
+                    continue;
+                }
+                if (stopping) {
+                    ship(batch);
+                    return;
+                }
+                long now = System.nanoTime();
+                if (!batch.isEmpty() && now - deadline >= 0) {
+                    ship(batch);
+                    continue;
+                }
+                idle = true;
+                if (buffer.isEmpty() && running) {
+                    LockSupport.parkNanos(batch.isEmpty() ? RETRY_DELAY : deadline - now);
+                }
+                idle = false;
+            }
+        }
+
+        /*
+         * A failed batch is retried until it is delivered so that ordering is preserved, meanwhile
+         * submitters waiting on the full lane give up after the submit timeout.
+         * When stopping it is given up after one more attempt and kept as undelivered
+         * with the following batches of the lane, that are not shipped ahead of it.
+         */
+        private void ship(List<Statement> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            while (!undeliverable) {
+                try {
+                    sink.ship(batch);
+                    shippedStatements.addAndGet(batch.size());
+                    shippedBatches.incrementAndGet();
+                    batch.clear();
+                    return;
+                } catch (RuntimeException e) {
+                    if (!running) {
+                        log.error("cannot ship " + batch.size() + " statements, keeping them as undelivered", e);
+                        undeliverable = true;
+                        break;
+                    }
+                    log.error("cannot ship " + batch.size() + " statements, retrying", e);
+                    LockSupport.parkNanos(RETRY_DELAY);
+                }
+            }
+            undelivered.addAll(batch);
+            batch.clear();
+        }
+    }
+}
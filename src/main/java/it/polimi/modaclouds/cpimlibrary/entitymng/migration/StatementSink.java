@@ -0,0 +1,43 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+
+import java.util.List;
+
+/**
+ * Destination of the statements shipped by a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementPipeline}.
+ * <p/>
+ * Batches are delivered by the shipper thread owning the statements table, so statements on the same table
+ * are received in submission order. A batch that raises an exception is delivered again.
+ * <p/>
+ * The batch list is reused once the call returns, sinks willing to retain statements must copy it.
+ *
+ * @author Fabio Arcidiacono.
+ */
+public interface StatementSink {
+
+    /**
+     * Deliver a batch of statements.
+     *
+     * @param batch the statements, in submission order for each table
+     *
+     * @throws it.polimi.modaclouds.cpimlibrary.exception.MigrationException if the batch cannot be delivered
+     */
+    void ship(List<Statement> batch);
+}
@@ -21,13 +21,17 @@ import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
 import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+
 /**
  * @author Fabio Arcidiacono.
  */
 @Slf4j
 public class HegiraConnector {
 
-    private static HegiraConnector instance = null;
+    private static volatile HegiraConnector instance = null;
     private ZKAdapter zkClient = null;
 
     private HegiraConnector() {
@@ -38,17 +42,52 @@ public class HegiraConnector {
             zkClient = new ZKThread(cloudMetadata.getZookeeperConnectionString());
         } else if (type.equalsIgnoreCase("http")) {
             log.info("Instantiating HTTP type ZKClient");
-            zkClient = new ZKHttp(cloudMetadata.getZookeeperConnectionString());
+            zkClient = new ZKHttp(cloudMetadata.getZookeeperConnectionString(), cloudMetadata.getZooKeeperPollInterval());
+        } else if (type.equalsIgnoreCase("memory")) {
+            log.info("Instantiating MEMORY type ZKClient");
+            zkClient = new ZKMemory();
         } else {
             throw new MigrationException("Unrecognized type '" + type + "' for ZooKeeper client");
         }
     }
 
+    private HegiraConnector(ZKAdapter zkClient) {
+        this.zkClient = zkClient;
+    }
+
+    /**
+     * Use the given client instead of the one configured in <i>migration.xml</i>,
+     * for example a {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory} to run
+     * without ZooKeeper. Should be called before the migration facilities are first used,
+     * since the migration manager reads the synchronization state once when created.
+     * The client used until now is closed, if it holds resources.
+     *
+     * @param zkClient the client to be used from now on
+     */
+    public static synchronized void install(ZKAdapter zkClient) {
+        log.info("Installing ZKClient " + zkClient.getClass().getSimpleName());
+        HegiraConnector previous = instance;
+        instance = new HegiraConnector(zkClient);
+        if (previous != null && previous.zkClient != zkClient && previous.zkClient instanceof Closeable) {
+            try {
+                ((Closeable) previous.zkClient).close();
+            } catch (IOException e) {
+                log.warn("cannot close replaced ZKClient " + previous.zkClient.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
     public static HegiraConnector getInstance() {
-        if (instance == null) {
-            instance = new HegiraConnector();
+        HegiraConnector current = instance;
+        if (current != null) {
+            return current;
+        }
+        synchronized (HegiraConnector.class) {
+            if (instance == null) {
+                instance = new HegiraConnector();
+            }
+            return instance;
         }
-        return instance;
     }
 
     public int[] assignSeqNrRange(String tableName, int offset) throws Exception {
@@ -59,6 +98,10 @@ public class HegiraConnector {
         return zkClient.assignSeqNr(tableName);
     }
 
+    public Map<String, int[]> assignSeqNrRanges(Map<String, Integer> offsets) throws Exception {
+        return zkClient.assignSeqNrRanges(offsets);
+    }
+
     public void setSynchronizing(boolean status) {
         zkClient.setSynchronizing(status);
     }
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira;
+
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Reserves sequence number ranges of many tables at once.
+ * <p/>
+ * The ZooKeeper wrapper has no multi-table operation, so a request for each table is issued concurrently
+ * and the batch costs about a single round trip. Tables are independent nodes, so requests do not contend.
+ * At most {@value #MAX_REQUESTS} requests are in flight at once, the others wait for a free connection,
+ * so a batch spanning many tables costs a round trip every {@value #MAX_REQUESTS} tables.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKAdapter#assignSeqNrRanges(java.util.Map)
+ */
+@Slf4j
+final class SeqNrRanges {
+
+    static final int MAX_REQUESTS = 8;
+    private static final ThreadPoolExecutor REQUESTS = new ThreadPoolExecutor(MAX_REQUESTS, MAX_REQUESTS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = CloudThread.getThread(runnable);
+            if (thread == null) {
+                thread = new Thread(runnable);
+            }
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        REQUESTS.allowCoreThreadTimeOut(true);
+    }
+
+    private SeqNrRanges() {
+    }
+
+    /**
+     * Ask the ranges through the given client, one request per table, up to {@value #MAX_REQUESTS} in parallel.
+     * <p/>
+     * Tables whose request failed are missing from the result while the ranges assigned
+     * to the other ones are returned, only if every request failed the first failure is thrown.
+     *
+     * @param client  the client used for each table
+     * @param offsets the number of sequence numbers to reserve for each table
+     *
+     * @return the range assigned to each table whose request succeeded
+     *
+     * @throws Exception the first failure occurred, if no range could be assigned
+     */
+    static Map<String, int[]> assign(final ZKAdapter client, Map<String, Integer> offsets) throws Exception {
+        Map<String, int[]> ranges = new HashMap<>();
+        if (offsets.size() == 1) {
+            Map.Entry<String, Integer> entry = offsets.entrySet().iterator().next();
+            ranges.put(entry.getKey(), client.assignSeqNrRange(entry.getKey(), entry.getValue()));
+            return ranges;
+        }
+        Map<String, Future<int[]>> requests = new HashMap<>();
+        for (final Map.Entry<String, Integer> entry : offsets.entrySet()) {
+            requests.put(entry.getKey(), REQUESTS.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() throws Exception {
+                    return client.assignSeqNrRange(entry.getKey(), entry.getValue());
+                }
+            }));
+        }
+        Exception failure = null;
+        for (Map.Entry<String, Future<int[]>> request : requests.entrySet()) {
+            try {
+                ranges.put(request.getKey(), request.getValue().get());
+            } catch (ExecutionException e) {
+                log.warn("cannot assign sequence number range for table [" + request.getKey() + "]", e.getCause());
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (ranges.isEmpty() && failure != null) {
+            throw failure;
+        }
+        return ranges;
+    }
+}
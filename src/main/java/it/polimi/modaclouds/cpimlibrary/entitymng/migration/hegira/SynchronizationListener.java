@@ -40,11 +40,25 @@ public class SynchronizationListener implements SharedCountListener {
         log.info("Shared counter has changed to: " + newCount);
         boolean isSynchronizing = ZKclient.toBoolean(newCount);
         HegiraConnector.getInstance().setSynchronizing(isSynchronizing);
+        synchronizationChanged(isSynchronizing);
+    }
+
+    /**
+     * Start or stop migration if the migration manager state does not match the synchronization state.
+     * <p/>
+     * The synchronization state is compared with the migration manager one rather than with the previous
+     * synchronization state, since a migration manager created meanwhile already starts in the new state.
+     *
+     * @param isSynchronizing the new synchronization state
+     */
+    static void synchronizationChanged(boolean isSynchronizing) {
         MigrationManager migrant = MigrationManager.getInstance();
-        if (isSynchronizing && !migrant.isMigrating()) {
-            migrant.startMigration();
-        } else if (!isSynchronizing && migrant.isMigrating()) {
-            migrant.stopMigration();
+        synchronized (migrant) {
+            if (isSynchronizing && !migrant.isMigrating()) {
+                migrant.startMigration();
+            } else if (!isSynchronizing && migrant.isMigrating()) {
+                migrant.stopMigration();
+            }
         }
     }
 
@@ -16,6 +16,8 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira;
 
+import java.util.Map;
+
 /**
  * @author Fabio Arcidiacono.
  */
@@ -25,6 +27,19 @@ public interface ZKAdapter {
 
     public int assignSeqNr(String tableName) throws Exception;
 
+    /**
+     * Reserve a range of sequence numbers for each of the given tables.
+     * <p/>
+     * A failure for some tables does not discard the ranges assigned to the others.
+     *
+     * @param offsets the number of sequence numbers to reserve for each table
+     *
+     * @return the range assigned to each table, tables whose range could not be assigned are missing
+     *
+     * @throws Exception if no range can be assigned
+     */
+    public Map<String, int[]> assignSeqNrRanges(Map<String, Integer> offsets) throws Exception;
+
     public void setSynchronizing(boolean status);
 
     public boolean isSynchronizing();
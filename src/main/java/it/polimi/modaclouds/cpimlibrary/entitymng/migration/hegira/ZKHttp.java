@@ -17,17 +17,80 @@
 package it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira;
 
 import it.polimi.hegira.zkWrapper.rest.RestClient;
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
 import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * HTTP based client of the migration system ZooKeeper wrapper.
+ * <p/>
+ * The synchronization state is cached locally and refreshed by a background poller, so reading it
+ * does not cost an HTTP round trip. Transitions seen by the poller start or stop migration as done by
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.SynchronizationListener} for the
+ * thread based client. If the poller could not refresh the state for more than two poll intervals,
+ * the state is read synchronously by a single caller at most once per poll interval, the others keep
+ * using the cached state. Since the migration manager reads it at the beginning of each write,
+ * a stalled poller does not delay a transition past that bound for writes.
+ *
  * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.CloudMetadata#getZooKeeperPollInterval()
  */
-public class ZKHttp implements ZKAdapter {
+@Slf4j
+public class ZKHttp implements ZKAdapter, Closeable {
 
     private final RestClient restClient;
+    private final long pollInterval;
+    private final ScheduledExecutorService poller;
+    private volatile boolean isSynchronizing;
+    private volatile long lastRefresh;
+    private final AtomicLong lastAttempt = new AtomicLong();
 
-    public ZKHttp(String basePath) {
-        this.restClient = new RestClient(basePath);
+    /**
+     * @param basePath     the ZooKeeper wrapper API base path
+     * @param pollInterval milliseconds between two refreshes of the synchronization state
+     */
+    public ZKHttp(String basePath, long pollInterval) {
+        this(new RestClient(basePath), pollInterval);
+    }
+
+    /**
+     * @param restClient   the client of the ZooKeeper wrapper API
+     * @param pollInterval milliseconds between two refreshes of the synchronization state
+     */
+    public ZKHttp(RestClient restClient, long pollInterval) {
+        this.restClient = restClient;
+        this.pollInterval = pollInterval;
+        this.isSynchronizing = readSynchronizing();
+        this.lastRefresh = System.currentTimeMillis();
+        this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = CloudThread.getThread(runnable);
+                if (thread == null) {
+                    thread = new Thread(runnable);
+                }
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.warn("cannot refresh synchronization state, keeping " + isSynchronizing, e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -35,6 +98,11 @@ public class ZKHttp implements ZKAdapter {
         return restClient.assignSeqNrRange(tableName, offset);
     }
 
+    @Override
+    public Map<String, int[]> assignSeqNrRanges(Map<String, Integer> offsets) throws Exception {
+        return SeqNrRanges.assign(this, offsets);
+    }
+
     @Override
     public int assignSeqNr(String tableName) throws Exception {
         return restClient.assignSeqNr(tableName);
@@ -42,15 +110,56 @@ public class ZKHttp implements ZKAdapter {
 
     @Override
     public void setSynchronizing(boolean status) {
-        /* do nothing */
+        this.isSynchronizing = status;
     }
 
     @Override
     public boolean isSynchronizing() {
+        long now = System.currentTimeMillis();
+        long attempt = lastAttempt.get();
+        if (now - lastRefresh > 2 * pollInterval && now - attempt > pollInterval && lastAttempt.compareAndSet(attempt, now)) {
+            log.debug("synchronization state is stale, refreshing");
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                log.warn("cannot refresh synchronization state, keeping " + isSynchronizing, e);
+            }
+        }
+        return isSynchronizing;
+    }
+
+    /*
+     * Transitions are detected under the lock so that concurrent refreshes notify each one only once,
+     * while migration is started or stopped outside it since that waits for in-flight writes.
+     */
+    private void refresh() {
+        lastAttempt.set(System.currentTimeMillis());
+        boolean current = readSynchronizing();
+        boolean changed;
+        synchronized (this) {
+            lastRefresh = System.currentTimeMillis();
+            changed = isSynchronizing != current;
+            isSynchronizing = current;
+        }
+        if (changed) {
+            log.info("synchronization state changed to: " + current);
+            SynchronizationListener.synchronizationChanged(current);
+        }
+    }
+
+    private boolean readSynchronizing() {
         try {
             return restClient.isSynchronizing();
         } catch (Exception e) {
             throw new MigrationException("Some error occurred", e);
         }
     }
+
+    /**
+     * Stop refreshing the synchronization state.
+     */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
 }
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira;
+
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for ZooKeeper, to run the migration path without a live ZooKeeper
+ * or migration system.
+ * <p/>
+ * Sequence numbers are kept in memory, starting from 1 for each table. Every assignment waits
+ * for the configured latency and then fails with the configured probability, so that the behaviour
+ * of dispensers can be observed under slow or unreliable connections.
+ * <p/>
+ * The synchronization state is changed as the migration system would through {@link #synchronize(boolean)}.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector#install(ZKAdapter)
+ */
+public class ZKMemory implements ZKAdapter {
+
+    private final ConcurrentMap<String, AtomicInteger> counters = new ConcurrentHashMap<>();
+    @Getter @Setter private volatile long latency;
+    @Getter @Setter private volatile double failureRate;
+    private volatile boolean isSynchronizing = false;
+
+    public ZKMemory() {
+        this(0, 0);
+    }
+
+    /**
+     * @param latency     milliseconds each assignment waits for
+     * @param failureRate probability in [0, 1] that an assignment fails
+     */
+    public ZKMemory(long latency, double failureRate) {
+        if (latency < 0) {
+            throw new IllegalArgumentException("latency cannot be negative, was " + latency);
+        }
+        if (failureRate < 0 || failureRate > 1) {
+            throw new IllegalArgumentException("failure rate must be in [0, 1], was " + failureRate);
+        }
+        this.latency = latency;
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public int[] assignSeqNrRange(String tableName, int offset) throws Exception {
+        simulate(tableName);
+        int last = counter(tableName).addAndGet(offset);
+        return new int[]{last - offset + 1, last};
+    }
+
+    @Override
+    public Map<String, int[]> assignSeqNrRanges(Map<String, Integer> offsets) throws Exception {
+        return SeqNrRanges.assign(this, offsets);
+    }
+
+    @Override
+    public int assignSeqNr(String tableName) throws Exception {
+        simulate(tableName);
+        return counter(tableName).incrementAndGet();
+    }
+
+    @Override
+    public void setSynchronizing(boolean status) {
+        this.isSynchronizing = status;
+    }
+
+    @Override
+    public boolean isSynchronizing() {
+        return isSynchronizing;
+    }
+
+    /**
+     * Change the synchronization state and start or stop migration accordingly,
+     * as done by the migration system through ZooKeeper.
+     *
+     * @param status the new synchronization state
+     */
+    public void synchronize(boolean status) {
+        this.isSynchronizing = status;
+        SynchronizationListener.synchronizationChanged(status);
+    }
+
+    private AtomicInteger counter(String tableName) {
+        AtomicInteger counter = counters.get(tableName);
+        if (counter == null) {
+            AtomicInteger created = new AtomicInteger();
+            counter = counters.putIfAbsent(tableName, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private void simulate(String tableName) throws InterruptedException {
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            throw new MigrationException("Injected failure assigning sequence numbers for table [" + tableName + "]");
+        }
+    }
+}
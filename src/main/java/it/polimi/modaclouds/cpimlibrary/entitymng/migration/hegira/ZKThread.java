@@ -19,13 +19,15 @@ package it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira;
 import it.polimi.hegira.zkWrapper.ZKclient;
 import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
 
+import java.util.Map;
+
 /**
  * @author Fabio Arcidiacono.
  */
 public class ZKThread implements ZKAdapter {
 
     private final ZKclient zkClient;
-    private boolean isSynchronizing = false;
+    private volatile boolean isSynchronizing = false;
 
     public ZKThread(String connectionString) {
         this.zkClient = new ZKclient(connectionString);
@@ -41,6 +43,11 @@ public class ZKThread implements ZKAdapter {
         return zkClient.assignSeqNrRange(tableName, offset);
     }
 
+    @Override
+    public Map<String, int[]> assignSeqNrRanges(Map<String, Integer> offsets) throws Exception {
+        return SeqNrRanges.assign(this, offsets);
+    }
+
     @Override
     public int assignSeqNr(String tableName) throws Exception {
         return zkClient.assignSeqNr(tableName);
@@ -21,8 +21,6 @@ import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.Iterator;
-
 /**
  * Represents a DELETE statement.
  *
@@ -50,16 +48,7 @@ public class DeleteStatement extends Statement {
         if (!haveConditions()) {
             return String.format("DELETE FROM %s", this.getTable());
         } else {
-            StringBuilder conditions = new StringBuilder();
-            Iterator entries = getConditionsIterator();
-            while (entries.hasNext()) {
-                Object next = entries.next();
-                conditions.append(next.toString());
-                if (entries.hasNext()) {
-                    conditions.append(" ");
-                }
-            }
-            return String.format("DELETE FROM %s WHERE %s", this.getTable(), conditions);
+            return String.format("DELETE FROM %s WHERE %s", this.getTable(), getCondition());
         }
     }
 }
\ No newline at end of file
@@ -17,18 +17,23 @@
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements;
 
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.CompareOperator;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Condition;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Filter;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.LogicCondition;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.LogicOperator;
 import lombok.Getter;
 import lombok.Setter;
 
 import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * Abstract class to maintain information about statements.
+ * <p/>
+ * Conditions of the WHERE clause are kept as a tree of {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Condition}.
+ * The tree can be set as a whole or built one condition at a time, in the latter case
+ * AND takes precedence over OR as in SQL.
  *
  * @author Fabio Arcidiacono.
  */
@@ -37,15 +42,47 @@ public abstract class Statement {
     @Getter @Setter private String table;
     /** maintains fields both for SET clause in UPDATE and for values in INSERT statement */
     private List<Filter> fields = new ArrayList<>();
-    /** maintain conditions in the WHERE clause */
-    private List<Object> conditions = new LinkedList<>();
+    /** root of the condition tree of the WHERE clause, null if there are no conditions */
+    @Getter @Setter private Condition condition;
+    /** operator joining the next condition added one at a time */
+    private LogicOperator nextOperator = LogicOperator.AND;
 
     public Iterator<Filter> getFieldsIterator() {
         return fields.iterator();
     }
 
+    /**
+     * Returns a flat view of the WHERE clause made of conditions interleaved by {@link LogicOperator},
+     * as they were added one at a time. Nested groups that cannot be flattened are returned as a single
+     * {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.LogicCondition}.
+     *
+     * @return an iterator over conditions and logic operators
+     */
     public Iterator<Object> getConditionsIterator() {
-        return conditions.iterator();
+        List<Object> flat = new ArrayList<>();
+        if (condition instanceof LogicCondition) {
+            LogicCondition root = (LogicCondition) condition;
+            for (Condition operand : root.getOperands()) {
+                if (!flat.isEmpty()) {
+                    flat.add(root.getOperator());
+                }
+                if (root.getOperator() == LogicOperator.OR && operand instanceof LogicCondition
+                        && ((LogicCondition) operand).getOperator() == LogicOperator.AND) {
+                    Iterator<Condition> conjuncts = ((LogicCondition) operand).getOperands().iterator();
+                    while (conjuncts.hasNext()) {
+                        flat.add(conjuncts.next());
+                        if (conjuncts.hasNext()) {
+                            flat.add(LogicOperator.AND);
+                        }
+                    }
+                } else {
+                    flat.add(operand);
+                }
+            }
+        } else if (condition != null) {
+            flat.add(condition);
+        }
+        return flat.iterator();
     }
 
     public void addField(String name, Object value) {
@@ -53,18 +90,46 @@ public abstract class Statement {
     }
 
     public void addCondition(String name, CompareOperator operator, Object value) {
-        this.conditions.add(new Filter(name, operator, value));
+        addCondition(new Filter(name, operator, value));
     }
 
     public void addCondition(String name, String operator, Object value) {
-        this.conditions.add(new Filter(name, CompareOperator.fromString(operator), value));
+        addCondition(new Filter(name, CompareOperator.fromString(operator), value));
     }
 
+    /**
+     * Set the logic operator that will join the next added condition.
+     *
+     * @param operator either AND or OR
+     */
     public void addCondition(String operator) {
-        this.conditions.add(LogicOperator.valueOf(operator));
+        this.nextOperator = LogicOperator.valueOf(operator.toUpperCase());
+    }
+
+    /**
+     * Join the given condition to the current ones through the last operator set by {@link #addCondition(String)},
+     * AND if none.
+     *
+     * @param condition the condition to add
+     */
+    public void addCondition(Condition condition) {
+        if (this.condition == null) {
+            this.condition = condition;
+        } else if (this.nextOperator == LogicOperator.OR) {
+            this.condition = LogicCondition.of(LogicOperator.OR, this.condition, condition);
+        } else if (this.condition instanceof LogicCondition && ((LogicCondition) this.condition).getOperator() == LogicOperator.OR) {
+            /* AND binds tighter than OR, so it applies to the last disjunct */
+            List<Condition> disjuncts = new ArrayList<>(((LogicCondition) this.condition).getOperands());
+            Condition last = disjuncts.remove(disjuncts.size() - 1);
+            disjuncts.add(LogicCondition.of(LogicOperator.AND, last, condition));
+            this.condition = new LogicCondition(LogicOperator.OR, disjuncts);
+        } else {
+            this.condition = LogicCondition.of(LogicOperator.AND, this.condition, condition);
+        }
+        this.nextOperator = LogicOperator.AND;
     }
 
     public boolean haveConditions() {
-        return !conditions.isEmpty();
+        return condition != null;
     }
 }
@@ -0,0 +1,594 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.*;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact, versioned binary encoding of statements.
+ * <p/>
+ * A batch is encoded as:
+ * <pre>
+ * version:byte | columns:varint (name:string)* | statements:varint statement*
+ * statement := type:byte | table:string | fields:varint (column:varint value)* | condition
+ * condition := NONE | FILTER column:varint operator:byte value
+ *            | LOGIC operator:byte operands:varint condition* | NOT condition
+ *            | IN column:varint negated:byte values:varint value* | IS_NULL column:varint negated:byte
+ * value     := tag:byte payload
+ * </pre>
+ * Strings are UTF-8 prefixed by their length in bytes, integer values and lengths are
+ * unsigned or zig-zag varints. Column names are written once per batch in a dictionary and
+ * referenced by index. Values can be strings, primitive wrappers, big numbers, dates, byte arrays
+ * and enum constants, the latter encoded by class and constant name; other types are rejected.
+ * <p/>
+ * Encoding writes characters straight into the buffer, so the only allocations are the column dictionary
+ * and the buffer itself when not provided.
+ *
+ * @author Fabio Arcidiacono.
+ */
+public class StatementCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte INSERT = 1;
+    private static final byte UPDATE = 2;
+    private static final byte DELETE = 3;
+
+    private static final byte NONE = 0;
+    private static final byte FILTER = 1;
+    private static final byte LOGIC = 2;
+    private static final byte NOT = 3;
+    private static final byte IN = 4;
+    private static final byte IS_NULL = 5;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte LONG_VALUE = 2;
+    private static final byte INTEGER_VALUE = 3;
+    private static final byte SHORT_VALUE = 4;
+    private static final byte BYTE_VALUE = 5;
+    private static final byte DOUBLE_VALUE = 6;
+    private static final byte FLOAT_VALUE = 7;
+    private static final byte BOOLEAN_VALUE = 8;
+    private static final byte CHARACTER_VALUE = 9;
+    private static final byte DATE_VALUE = 10;
+    private static final byte BYTES_VALUE = 11;
+    private static final byte BIG_INTEGER_VALUE = 12;
+    private static final byte BIG_DECIMAL_VALUE = 13;
+    private static final byte ENUM_VALUE = 14;
+
+    private static final CompareOperator[] COMPARE_OPERATORS = CompareOperator.values();
+    private static final LogicOperator[] LOGIC_OPERATORS = LogicOperator.values();
+
+    private StatementCodec() {
+    }
+
+    /**
+     * Encode the statement in a new buffer.
+     *
+     * @param statement the statement to encode
+     *
+     * @return a buffer ready to be read
+     */
+    public static ByteBuffer encode(Statement statement) {
+        return encode(Collections.singletonList(statement));
+    }
+
+    /**
+     * Encode all the statements as a single batch in a new buffer.
+     *
+     * @param statements the statements to encode
+     *
+     * @return a buffer ready to be read
+     */
+    public static ByteBuffer encode(Collection<? extends Statement> statements) {
+        int capacity = 64 * (statements.size() + 1);
+        while (true) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                encode(statements, buffer);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException e) {
+                capacity *= 2;
+            }
+        }
+    }
+
+    /**
+     * Encode all the statements as a single batch in the given buffer, starting from its position.
+     *
+     * @param statements the statements to encode
+     * @param buffer     the target buffer
+     *
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(Collection<? extends Statement> statements, ByteBuffer buffer) {
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        for (Statement statement : statements) {
+            Iterator<Filter> fields = statement.getFieldsIterator();
+            while (fields.hasNext()) {
+                index(fields.next().getColumn(), columns);
+            }
+            collectColumns(statement.getCondition(), columns);
+        }
+        buffer.put(VERSION);
+        writeVarInt(columns.size(), buffer);
+        for (String column : columns.keySet()) {
+            writeString(column, buffer);
+        }
+        writeVarInt(statements.size(), buffer);
+        for (Statement statement : statements) {
+            writeStatement(statement, columns, buffer);
+        }
+    }
+
+    /**
+     * Decode a single statement.
+     *
+     * @param buffer a buffer positioned at the start of an encoded batch of one statement
+     *
+     * @return the decoded statement
+     */
+    public static Statement decode(ByteBuffer buffer) {
+        List<Statement> statements = decodeAll(buffer);
+        if (statements.size() != 1) {
+            throw new IllegalArgumentException("Expected a single statement but found " + statements.size());
+        }
+        return statements.get(0);
+    }
+
+    /**
+     * Decode a batch of statements.
+     *
+     * @param buffer a buffer positioned at the start of an encoded batch
+     *
+     * @return the decoded statements, in encoding order
+     *
+     * @throws java.lang.IllegalArgumentException if the encoding is malformed or truncated
+     */
+    public static List<Statement> decodeAll(ByteBuffer buffer) {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported statement encoding version " + version);
+            }
+            String[] columns = new String[readSize(buffer)];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = readString(buffer);
+            }
+            int size = readSize(buffer);
+            List<Statement> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                statements.add(readStatement(columns, buffer));
+            }
+            return statements;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated statement encoding", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed column index in statement encoding", e);
+        }
+    }
+
+    /*---------------------------------------------------------------------------------*/
+    /*----------------------------------- ENCODING ------------------------------------*/
+    /*---------------------------------------------------------------------------------*/
+
+    private static int index(String column, Map<String, Integer> columns) {
+        Integer index = columns.get(column);
+        if (index == null) {
+            index = columns.size();
+            columns.put(column, index);
+        }
+        return index;
+    }
+
+    private static void collectColumns(Condition condition, Map<String, Integer> columns) {
+        if (condition instanceof Filter) {
+            index(((Filter) condition).getColumn(), columns);
+        } else if (condition instanceof InCondition) {
+            index(((InCondition) condition).getColumn(), columns);
+        } else if (condition instanceof NullCondition) {
+            index(((NullCondition) condition).getColumn(), columns);
+        } else if (condition instanceof NotCondition) {
+            collectColumns(((NotCondition) condition).getOperand(), columns);
+        } else if (condition instanceof LogicCondition) {
+            for (Condition operand : ((LogicCondition) condition).getOperands()) {
+                collectColumns(operand, columns);
+            }
+        }
+    }
+
+    private static void writeStatement(Statement statement, Map<String, Integer> columns, ByteBuffer buffer) {
+        if (statement instanceof InsertStatement) {
+            buffer.put(INSERT);
+        } else if (statement instanceof UpdateStatement) {
+            buffer.put(UPDATE);
+        } else if (statement instanceof DeleteStatement) {
+            buffer.put(DELETE);
+        } else {
+            throw new IllegalArgumentException("Unknown statement type " + statement.getClass().getName());
+        }
+        writeString(statement.getTable(), buffer);
+        int count = 0;
+        Iterator<Filter> fields = statement.getFieldsIterator();
+        while (fields.hasNext()) {
+            fields.next();
+            count++;
+        }
+        writeVarInt(count, buffer);
+        fields = statement.getFieldsIterator();
+        while (fields.hasNext()) {
+            Filter field = fields.next();
+            writeVarInt(columns.get(field.getColumn()), buffer);
+            writeValue(field.getValue(), buffer);
+        }
+        writeCondition(statement.getCondition(), columns, buffer);
+    }
+
+    private static void writeCondition(Condition condition, Map<String, Integer> columns, ByteBuffer buffer) {
+        if (condition == null) {
+            buffer.put(NONE);
+        } else if (condition instanceof Filter) {
+            Filter filter = (Filter) condition;
+            buffer.put(FILTER);
+            writeVarInt(columns.get(filter.getColumn()), buffer);
+            buffer.put((byte) filter.getOperator().ordinal());
+            writeValue(filter.getValue(), buffer);
+        } else if (condition instanceof LogicCondition) {
+            LogicCondition logic = (LogicCondition) condition;
+            buffer.put(LOGIC);
+            buffer.put((byte) logic.getOperator().ordinal());
+            writeVarInt(logic.getOperands().size(), buffer);
+            for (Condition operand : logic.getOperands()) {
+                writeCondition(operand, columns, buffer);
+            }
+        } else if (condition instanceof NotCondition) {
+            buffer.put(NOT);
+            writeCondition(((NotCondition) condition).getOperand(), columns, buffer);
+        } else if (condition instanceof InCondition) {
+            InCondition in = (InCondition) condition;
+            buffer.put(IN);
+            writeVarInt(columns.get(in.getColumn()), buffer);
+            buffer.put(in.isNegated() ? (byte) 1 : (byte) 0);
+            writeVarInt(in.getValues().size(), buffer);
+            for (Object value : in.getValues()) {
+                writeValue(value, buffer);
+            }
+        } else if (condition instanceof NullCondition) {
+            NullCondition isNull = (NullCondition) condition;
+            buffer.put(IS_NULL);
+            writeVarInt(columns.get(isNull.getColumn()), buffer);
+            buffer.put(isNull.isNegated() ? (byte) 1 : (byte) 0);
+        } else {
+            throw new IllegalArgumentException("Unknown condition type " + condition.getClass().getName());
+        }
+    }
+
+    private static void writeValue(Object value, ByteBuffer buffer) {
+        if (value == null) {
+            buffer.put(NULL_VALUE);
+        } else if (value instanceof String) {
+            buffer.put(STRING_VALUE);
+            writeString((String) value, buffer);
+        } else if (value instanceof Long) {
+            buffer.put(LONG_VALUE);
+            writeVarLong(zigZag((Long) value), buffer);
+        } else if (value instanceof Integer) {
+            buffer.put(INTEGER_VALUE);
+            writeVarLong(zigZag((Integer) value), buffer);
+        } else if (value instanceof Short) {
+            buffer.put(SHORT_VALUE);
+            buffer.putShort((Short) value);
+        } else if (value instanceof Byte) {
+            buffer.put(BYTE_VALUE);
+            buffer.put((Byte) value);
+        } else if (value instanceof Double) {
+            buffer.put(DOUBLE_VALUE);
+            buffer.putDouble((Double) value);
+        } else if (value instanceof Float) {
+            buffer.put(FLOAT_VALUE);
+            buffer.putFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            buffer.put(BOOLEAN_VALUE);
+            buffer.put((Boolean) value ? (byte) 1 : (byte) 0);
+        } else if (value instanceof Character) {
+            buffer.put(CHARACTER_VALUE);
+            buffer.putChar((Character) value);
+        } else if (value instanceof Date) {
+            buffer.put(DATE_VALUE);
+            writeVarLong(zigZag(((Date) value).getTime()), buffer);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            buffer.put(BYTES_VALUE);
+            writeVarInt(bytes.length, buffer);
+            buffer.put(bytes);
+        } else if (value instanceof BigInteger) {
+            byte[] bytes = ((BigInteger) value).toByteArray();
+            buffer.put(BIG_INTEGER_VALUE);
+            writeVarInt(bytes.length, buffer);
+            buffer.put(bytes);
+        } else if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            byte[] bytes = decimal.unscaledValue().toByteArray();
+            buffer.put(BIG_DECIMAL_VALUE);
+            writeVarLong(zigZag(decimal.scale()), buffer);
+            writeVarInt(bytes.length, buffer);
+            buffer.put(bytes);
+        } else if (value instanceof Enum) {
+            Enum<?> constant = (Enum<?>) value;
+            buffer.put(ENUM_VALUE);
+            writeString(constant.getDeclaringClass().getName(), buffer);
+            writeString(constant.name(), buffer);
+        } else {
+            throw new IllegalArgumentException("Cannot encode value of type " + value.getClass().getName());
+        }
+    }
+
+    /*
+     * Writes the UTF-8 length followed by the UTF-8 bytes without allocating an intermediate array.
+     */
+    private static void writeString(String string, ByteBuffer buffer) {
+        int length = string.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                utf8Length++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        writeVarInt(utf8Length, buffer);
+        if (buffer.remaining() < utf8Length) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                /* lone surrogates cannot be encoded in UTF-8, they are replaced as done by String.getBytes */
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static void writeVarInt(int value, ByteBuffer buffer) {
+        writeVarLong(value & 0xFFFFFFFFL, buffer);
+    }
+
+    private static void writeVarLong(long value, ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /*---------------------------------------------------------------------------------*/
+    /*----------------------------------- DECODING ------------------------------------*/
+    /*---------------------------------------------------------------------------------*/
+
+    private static Statement readStatement(String[] columns, ByteBuffer buffer) {
+        Statement statement;
+        byte type = buffer.get();
+        switch (type) {
+            case INSERT:
+                statement = new InsertStatement();
+                break;
+            case UPDATE:
+                statement = new UpdateStatement();
+                break;
+            case DELETE:
+                statement = new DeleteStatement();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown statement type " + type);
+        }
+        statement.setTable(readString(buffer));
+        int fields = readSize(buffer);
+        for (int i = 0; i < fields; i++) {
+            statement.addField(columns[readVarInt(buffer)], readValue(buffer));
+        }
+        Condition condition = readCondition(columns, buffer);
+        if (condition != null) {
+            statement.setCondition(condition);
+        }
+        return statement;
+    }
+
+    private static Condition readCondition(String[] columns, ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NONE:
+                return null;
+            case FILTER:
+                String column = columns[readVarInt(buffer)];
+                CompareOperator compareOperator = COMPARE_OPERATORS[buffer.get()];
+                return new Filter(column, compareOperator, readValue(buffer));
+            case LOGIC:
+                LogicOperator logicOperator = LOGIC_OPERATORS[buffer.get()];
+                int operands = readSize(buffer);
+                List<Condition> conditions = new ArrayList<>(operands);
+                for (int i = 0; i < operands; i++) {
+                    conditions.add(readCondition(columns, buffer));
+                }
+                return new LogicCondition(logicOperator, conditions);
+            case NOT:
+                return new NotCondition(readCondition(columns, buffer));
+            case IN:
+                String inColumn = columns[readVarInt(buffer)];
+                boolean negated = buffer.get() != 0;
+                int size = readSize(buffer);
+                List<Object> values = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    values.add(readValue(buffer));
+                }
+                return new InCondition(inColumn, values, negated);
+            case IS_NULL:
+                String nullColumn = columns[readVarInt(buffer)];
+                return new NullCondition(nullColumn, buffer.get() != 0);
+            default:
+                throw new IllegalArgumentException("Unknown condition tag " + tag);
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(buffer);
+            case LONG_VALUE:
+                return unZigZag(readVarLong(buffer));
+            case INTEGER_VALUE:
+                return (int) unZigZag(readVarLong(buffer));
+            case SHORT_VALUE:
+                return buffer.getShort();
+            case BYTE_VALUE:
+                return buffer.get();
+            case DOUBLE_VALUE:
+                return buffer.getDouble();
+            case FLOAT_VALUE:
+                return buffer.getFloat();
+            case BOOLEAN_VALUE:
+                return buffer.get() != 0;
+            case CHARACTER_VALUE:
+                return buffer.getChar();
+            case DATE_VALUE:
+                return new Date(unZigZag(readVarLong(buffer)));
+            case BYTES_VALUE:
+                byte[] bytes = new byte[readSize(buffer)];
+                buffer.get(bytes);
+                return bytes;
+            case BIG_INTEGER_VALUE:
+                return new BigInteger(readBytes(buffer));
+            case BIG_DECIMAL_VALUE:
+                int scale = (int) unZigZag(readVarLong(buffer));
+                return new BigDecimal(new BigInteger(readBytes(buffer)), scale);
+            case ENUM_VALUE:
+                return readEnum(readString(buffer), readString(buffer));
+            default:
+                throw new IllegalArgumentException("Unknown value tag " + tag);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[readSize(buffer)];
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Empty big number in statement encoding");
+        }
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readEnum(String className, String name) {
+        try {
+            Class<?> type = Class.forName(className);
+            if (!type.isEnum()) {
+                throw new IllegalArgumentException(className + " is not an enum type");
+            }
+            return Enum.valueOf((Class) type, name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown enum type " + className, e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readSize(buffer);
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /*
+     * Every element or byte counted takes at least a byte, so a larger size can only come from
+     * corrupt input and is rejected before allocating or reading past the buffer.
+     */
+    private static int readSize(ByteBuffer buffer) {
+        int size = readVarInt(buffer);
+        if (size < 0 || size > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed size " + size + " with " + buffer.remaining() + " bytes left");
+        }
+        return size;
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if (shift > 63) {
+                throw new IllegalArgumentException("Malformed varint");
+            }
+            current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+}
@@ -50,16 +50,7 @@ public class UpdateStatement extends Statement {
         if (!haveConditions()) {
             return String.format("UPDATE %s SET %s", this.getTable(), setList);
         } else {
-            String conditions = "";
-            entries = getConditionsIterator();
-            while (entries.hasNext()) {
-                Object next = entries.next();
-                conditions += next.toString();
-                if (entries.hasNext()) {
-                    conditions += " ";
-                }
-            }
-            return String.format("UPDATE %s SET %s WHERE %s", this.getTable(), setList, conditions);
+            return String.format("UPDATE %s SET %s WHERE %s", this.getTable(), setList, getCondition());
         }
     }
 }
\ No newline at end of file
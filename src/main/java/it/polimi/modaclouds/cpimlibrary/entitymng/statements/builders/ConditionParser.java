@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.TokenType;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Recursive-descent parser of the WHERE clause of JPQL UPDATE and DELETE queries.
+ * <p/>
+ * Grammar, where NOT binds tighter than AND which binds tighter than OR:
+ * <pre>
+ * or        := and (OR and)*
+ * and       := not (AND not)*
+ * not       := NOT not | primary
+ * primary   := '(' or ')' | predicate
+ * predicate := column compareop value
+ *            | column [NOT] IN ( '(' value (',' value)* ')' | param )
+ *            | column IS [NOT] NULL
+ * value     := param | literal
+ * </pre>
+ * Parameters are represented in the resulting tree by {@link StatementTemplate.ParameterRef}
+ * to be bound on each execution.
+ *
+ * @author Fabio Arcidiacono.
+ */
+class ConditionParser {
+
+    private final StatementBuilder builder;
+    private final String objectParam;
+    private final String table;
+    private final List<Token> tokens = new ArrayList<>();
+    private int position = 0;
+
+    /**
+     * @param builder     the builder used to resolve column names
+     * @param itr         token iterator positioned right after the WHERE keyword
+     * @param objectParam the JPQL object param
+     * @param table       the table involved in the query
+     */
+    ConditionParser(StatementBuilder builder, Iterator<Token> itr, String objectParam, String table) {
+        this.builder = builder;
+        this.objectParam = objectParam;
+        this.table = table;
+        while (itr.hasNext()) {
+            Token token = itr.next();
+            if (token.getType() != TokenType.WHITESPACE) {
+                this.tokens.add(token);
+            }
+        }
+    }
+
+    /**
+     * Parse all the remaining tokens.
+     *
+     * @return the root of the condition tree
+     *
+     * @throws java.lang.IllegalArgumentException if tokens do not form a valid condition
+     */
+    Condition parse() {
+        Condition condition = parseOr();
+        if (this.position < this.tokens.size()) {
+            throw error("unexpected " + peek().getData());
+        }
+        return condition;
+    }
+
+    private Condition parseOr() {
+        Condition condition = parseAnd();
+        while (isLogicOperator(LogicOperator.OR)) {
+            next();
+            condition = LogicCondition.of(LogicOperator.OR, condition, parseAnd());
+        }
+        return condition;
+    }
+
+    private Condition parseAnd() {
+        Condition condition = parseNot();
+        while (isLogicOperator(LogicOperator.AND)) {
+            next();
+            condition = LogicCondition.of(LogicOperator.AND, condition, parseNot());
+        }
+        return condition;
+    }
+
+    private Condition parseNot() {
+        if (is(TokenType.NOT)) {
+            next();
+            return new NotCondition(parseNot());
+        }
+        return parsePrimary();
+    }
+
+    private Condition parsePrimary() {
+        if (is(TokenType.LPAREN)) {
+            next();
+            Condition condition = parseOr();
+            expect(TokenType.RPAREN);
+            return condition;
+        }
+        return parsePredicate();
+    }
+
+    private Condition parsePredicate() {
+        String column = this.builder.getJPAColumnName(expect(TokenType.COLUMN), this.objectParam, this.table);
+        Token current = next();
+        switch (current.getType()) {
+            case COMPAREOP:
+                return new Filter(column, CompareOperator.fromString(current.getData()), parseValue());
+            case IS:
+                boolean notNull = is(TokenType.NOT);
+                if (notNull) {
+                    next();
+                }
+                expect(TokenType.NULL);
+                return new NullCondition(column, notNull);
+            case NOT:
+                expect(TokenType.IN);
+                return parseIn(column, true);
+            case IN:
+                return parseIn(column, false);
+            default:
+                throw error("unexpected " + current.getData() + " after " + column);
+        }
+    }
+
+    private Condition parseIn(String column, boolean negated) {
+        List<Object> values = new ArrayList<>();
+        if (is(TokenType.PARAM)) {
+            /* a collection valued parameter */
+            values.add(new StatementTemplate.ParameterRef(parameterName(next()), true));
+            return new InCondition(column, values, negated);
+        }
+        expect(TokenType.LPAREN);
+        do {
+            values.add(parseValue());
+            if (is(TokenType.COMMA)) {
+                next();
+            }
+        } while (!is(TokenType.RPAREN));
+        next();
+        return new InCondition(column, values, negated);
+    }
+
+    private Object parseValue() {
+        Token current = next();
+        switch (current.getType()) {
+            case PARAM:
+                return new StatementTemplate.ParameterRef(parameterName(current), false);
+            case STRING:
+                return literal(current.getData().replaceAll(",$", ""));
+            default:
+                throw error("expected a value but found " + current.getData());
+        }
+    }
+
+    private static String parameterName(Token param) {
+        return param.getData().replaceAll(":|,", "");
+    }
+
+    private static Object literal(String data) {
+        if (data.length() >= 2 && data.startsWith("'") && data.endsWith("'")) {
+            return data.substring(1, data.length() - 1);
+        }
+        try {
+            return Long.valueOf(data);
+        } catch (NumberFormatException e) {
+            /* not an integer */
+        }
+        try {
+            return Double.valueOf(data);
+        } catch (NumberFormatException e) {
+            return data;
+        }
+    }
+
+    private boolean isLogicOperator(LogicOperator operator) {
+        return is(TokenType.LOGICOP) && peek().getData().equalsIgnoreCase(operator.name());
+    }
+
+    private boolean is(TokenType type) {
+        return this.position < this.tokens.size() && peek().getType() == type;
+    }
+
+    private Token peek() {
+        return this.tokens.get(this.position);
+    }
+
+    private Token next() {
+        if (this.position >= this.tokens.size()) {
+            throw error("unexpected end of query");
+        }
+        return this.tokens.get(this.position++);
+    }
+
+    private Token expect(TokenType type) {
+        Token current = next();
+        if (current.getType() != type) {
+            throw error("expected " + type + " but found " + current.getData());
+        }
+        return current;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Cannot parse WHERE clause: " + message);
+    }
+}
@@ -16,7 +16,7 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
 
-import it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils;
+import it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.DeleteStatement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
@@ -26,8 +26,6 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.CascadeType;
 import javax.persistence.JoinTable;
-import javax.persistence.Query;
-import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -53,6 +51,16 @@ public class DeleteBuilder extends StatementBuilder {
         }
     }
 
+    /**
+     * Statements of each entity depend only on the entity itself, so they can be built concurrently.
+     *
+     * @see StatementBuilder#isParallelizable()
+     */
+    @Override
+    protected boolean isParallelizable() {
+        return true;
+    }
+
     /* (non-Javadoc)
      *
      * @see StatementBuilder#initStatement()
@@ -64,30 +72,30 @@ public class DeleteBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onFiled(Statement statement, Object entity, Field field) {
+    protected void onFiled(Statement statement, Object entity, FieldDescriptor field) {
         /* do nothing */
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onRelationalField(Statement statement, Object entity, Field field) {
+    protected void onRelationalField(Statement statement, Object entity, FieldDescriptor field) {
         /* do nothing */
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onIdField(Statement statement, Object entity, Field idFiled) {
-        String jpaColumnName = ReflectionUtils.getJPAColumnName(idFiled);
-        Object idValue = ReflectionUtils.getFieldValue(entity, idFiled);
+    protected void onIdField(Statement statement, Object entity, FieldDescriptor idFiled) {
+        String jpaColumnName = idFiled.getColumnName();
+        Object idValue = idFiled.getValue(entity);
         log.debug("id filed is {}, will be {} = {}", idFiled.getName(), jpaColumnName, idValue);
         statement.addCondition(jpaColumnName, CompareOperator.EQUAL, idValue);
     }
@@ -100,8 +108,8 @@ public class DeleteBuilder extends StatementBuilder {
     protected Statement generateJoinTableStatement(Object entity, Object element, JoinTable joinTable) {
         String joinTableName = joinTable.name();
         String joinColumnName = joinTable.joinColumns()[0].name();
-        Field joinColumnField = ReflectionUtils.getJoinColumnField(entity, joinColumnName);
-        Object joinColumnValue = ReflectionUtils.getFieldValue(entity, joinColumnField);
+        FieldDescriptor joinColumnField = getEntityDescriptor(entity).getFieldByColumn(joinColumnName);
+        Object joinColumnValue = joinColumnField.getValue(entity);
 
         Statement statement = initStatement();
         statement.setTable(joinTableName);
@@ -119,8 +127,8 @@ public class DeleteBuilder extends StatementBuilder {
     protected Statement generateInverseJoinTableStatement(Object entity, JoinTable joinTable) {
         String joinTableName = joinTable.name();
         String inverseJoinColumnName = joinTable.inverseJoinColumns()[0].name();
-        Field idField = ReflectionUtils.getIdField(entity);
-        Object entityId = ReflectionUtils.getFieldValue(entity, idField);
+        FieldDescriptor idField = getEntityDescriptor(entity).getIdField();
+        Object entityId = idField.getValue(entity);
 
         Statement statement = initStatement();
         statement.setTable(joinTableName);
@@ -132,36 +140,28 @@ public class DeleteBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#handleQuery(javax.persistence.Query, java.util.ArrayList)
+     * @see StatementBuilder#compile(java.util.List)
      */
     @Override
-    protected Statement handleQuery(Query query, List<Token> tokens) {
+    protected StatementTemplate compile(List<Token> tokens) {
         Iterator<Token> itr = tokens.iterator();
         String objectParam = "";
-        Statement statement = new DeleteStatement();
+        StatementTemplate statement = new StatementTemplate();
         while (itr.hasNext()) {
             Token current = itr.next();
             switch (current.getType()) {
-                case DELETE:
-                case WHERE:
-                case WHITESPACE:
-                    /* fall through */
-                    break;
                 case FROM:
                     super.setTableName(itr, statement);
                     objectParam = super.nextTokenOfType(TokenType.STRING, itr);
                     log.debug("JPQL object parameter is {}", objectParam);
                     break;
-                case COLUMN:
-                    String column = super.getJPAColumnName(current, objectParam, statement.getTable());
-                    String operator = super.nextTokenOfType(TokenType.COMPAREOP, itr);
-                    Object value = super.getNextParameterValue(itr, query);
-                    log.debug("found column will be {} {} {}", column, operator, value);
-                    statement.addCondition(column, operator, value);
+                case WHERE:
+                    statement.setCondition(new ConditionParser(this, itr, objectParam, statement.getTable()).parse());
+                    log.debug("WHERE clause is {}", statement.getCondition());
+                    break;
+                default:
+                    /* DELETE and whitespaces */
                     break;
-                case LOGICOP:
-                    log.debug("found logic operator {}", current.getData());
-                    statement.addCondition(current.getData());
             }
         }
         return statement;
@@ -16,7 +16,7 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
 
-import it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils;
+import it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberProvider;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.InsertStatement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
@@ -25,10 +25,7 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.CascadeType;
 import javax.persistence.JoinTable;
-import javax.persistence.Query;
-import java.lang.reflect.Field;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
 /**
  * Builder for INSERT statements.
@@ -39,13 +36,27 @@ import java.util.List;
 @Slf4j
 public class InsertBuilder extends StatementBuilder {
 
+    private final Map<String, Deque<Integer>> reservedIds = new HashMap<>();
+    private final boolean keepAssignedIds;
+
     /**
      * Read the builder configuration and instantiate the builder accordingly.
      *
      * @see it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.BuildersConfiguration
      */
     public InsertBuilder() {
+        this(false);
+    }
+
+    /**
+     * Same as {@link #InsertBuilder()} but, if {@code keepAssignedIds} is true, entities that
+     * already have an id keep it instead of getting a new one.
+     *
+     * @param keepAssignedIds whether ids already assigned to the entities are kept
+     */
+    public InsertBuilder(boolean keepAssignedIds) {
         super();
+        this.keepAssignedIds = keepAssignedIds;
         if (BuildersConfiguration.getInstance().isFollowingCascades()) {
             super.followCascades(Arrays.asList(CascadeType.ALL, CascadeType.PERSIST));
         }
@@ -62,37 +73,82 @@ public class InsertBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onFiled(Statement statement, Object entity, Field field) {
+    protected void onFiled(Statement statement, Object entity, FieldDescriptor field) {
         super.addField(statement, entity, field);
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onRelationalField(Statement statement, Object entity, Field field) {
+    protected void onRelationalField(Statement statement, Object entity, FieldDescriptor field) {
         super.addRelationalFiled(statement, entity, field);
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onIdField(Statement statement, Object entity, Field idFiled) {
-        String fieldName = ReflectionUtils.getJPAColumnName(idFiled);
+    protected void onIdField(Statement statement, Object entity, FieldDescriptor idFiled) {
+        String fieldName = idFiled.getColumnName();
+        Object assignedId = keepAssignedIds ? idFiled.getValue(entity) : null;
+        if (assignedId != null) {
+            log.debug("{} keeps {} = {}", idFiled.getName(), fieldName, assignedId);
+            statement.addField(fieldName, String.valueOf(assignedId));
+            return;
+        }
         String generatedId = generateId(statement.getTable());
-        ReflectionUtils.setEntityField(entity, idFiled, generatedId);
+        idFiled.setValue(entity, generatedId);
         log.debug("{} will be {} = {}", idFiled.getName(), fieldName, generatedId);
         statement.addField(fieldName, generatedId);
     }
 
+    /**
+     * Reserve the ids for all the given entities, one request for each table, then build their statements.
+     * <p/>
+     * Entities reached through cascades that exceed the reserved ids get them one at a time.
+     *
+     * @see StatementBuilder#buildAll(java.util.Collection)
+     */
+    @Override
+    public Deque<Statement> buildAll(Collection<?> entities) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Object entity : entities) {
+            if (keepAssignedIds && getEntityDescriptor(entity).getIdField().getValue(entity) != null) {
+                continue;
+            }
+            String tableName = getEntityDescriptor(entity).getTableName();
+            Integer count = counts.get(tableName);
+            counts.put(tableName, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            int[] ids = SeqNumberProvider.getInstance().getNextSequenceNumbers(entry.getKey(), entry.getValue());
+            Deque<Integer> tableIds = new ArrayDeque<>(ids.length);
+            for (int id : ids) {
+                tableIds.addLast(id);
+            }
+            this.reservedIds.put(entry.getKey(), tableIds);
+        }
+        try {
+            return super.buildAll(entities);
+        } finally {
+            this.reservedIds.clear();
+        }
+    }
+
     private String generateId(String tableName) {
-        int id = SeqNumberProvider.getInstance().getNextSequenceNumber(tableName);
+        Deque<Integer> tableIds = this.reservedIds.get(tableName);
+        int id;
+        if (tableIds != null && !tableIds.isEmpty()) {
+            id = tableIds.removeFirst();
+        } else {
+            id = SeqNumberProvider.getInstance().getNextSequenceNumber(tableName);
+        }
         String generatedId = String.valueOf(id);
         log.info("generated Id for {} is {}", tableName, generatedId);
         return generatedId;
@@ -107,15 +163,15 @@ public class InsertBuilder extends StatementBuilder {
         String joinTableName = joinTable.name();
         String joinColumnName = joinTable.joinColumns()[0].name();
         String inverseJoinColumnName = joinTable.inverseJoinColumns()[0].name();
-        Field joinColumnField = ReflectionUtils.getJoinColumnField(entity, joinColumnName);
-        Object joinColumnValue = ReflectionUtils.getFieldValue(entity, joinColumnField);
+        FieldDescriptor joinColumnField = getEntityDescriptor(entity).getFieldByColumn(joinColumnName);
+        Object joinColumnValue = joinColumnField.getValue(entity);
 
         Statement statement = initStatement();
         statement.setTable(joinTableName);
         statement.addField(joinColumnName, joinColumnValue);
 
-        Field inverseJoinColumnField = ReflectionUtils.getJoinColumnField(element, inverseJoinColumnName);
-        Object inverseJoinColumnValue = ReflectionUtils.getFieldValue(element, inverseJoinColumnField);
+        FieldDescriptor inverseJoinColumnField = getEntityDescriptor(element).getFieldByColumn(inverseJoinColumnName);
+        Object inverseJoinColumnValue = inverseJoinColumnField.getValue(element);
         statement.addField(inverseJoinColumnName, inverseJoinColumnValue);
 
         log.debug("joinTable {}, joinColumn {} = {}, inverseJoinColumn {} = {}", joinTableName, joinColumnName, joinColumnValue, inverseJoinColumnName, inverseJoinColumnValue);
@@ -134,10 +190,10 @@ public class InsertBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#handleQuery(javax.persistence.Query, java.util.ArrayList)
+     * @see StatementBuilder#compile(java.util.List)
      */
     @Override
-    protected Statement handleQuery(Query query, List<Token> tokens) {
+    protected StatementTemplate compile(List<Token> tokens) {
         /* do nothing, no need to handle this case */
         return null;
     }
@@ -16,6 +16,9 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
 
+import it.polimi.modaclouds.cpimlibrary.CloudThread;
+import it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor;
+import it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor;
 import it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata;
 import it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.InsertStatement;
@@ -27,12 +30,11 @@ import it.polimi.modaclouds.cpimlibrary.exception.PersistenceMetadataException;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.CascadeType;
+import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
-import javax.persistence.ManyToMany;
 import javax.persistence.Query;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Contains abstract algorithms to build statements fro queries or objects.
@@ -42,6 +44,16 @@ import java.util.*;
 @Slf4j
 public abstract class StatementBuilder {
 
+    static final int TEMPLATE_CACHE_SIZE = 256;
+    private static final Map<String, StatementTemplate> templates = new LinkedHashMap<String, StatementTemplate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StatementTemplate> eldest) {
+            return size() > TEMPLATE_CACHE_SIZE;
+        }
+    };
+    static final int PARALLEL_THRESHOLD = 512;
+    private static final int MIN_CHUNK_SIZE = 128;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
     private boolean followCascades;
     private List<CascadeType> relevantCascadeTypes;
 
@@ -88,17 +100,6 @@ public abstract class StatementBuilder {
         stack.addFirst(statement);
     }
 
-    /*
-     * While adding statement generated by cascade, maintain the order of generated cascaded statements
-     * and add them first in current stack
-     */
-    private void addCascadedStatementsToStack(Deque<Statement> stack, Deque<Statement> cascadedStack) {
-        Iterator<Statement> reverseItr = cascadedStack.descendingIterator();
-        while (reverseItr.hasNext()) {
-            stack.addFirst(reverseItr.next());
-        }
-    }
-
     /*---------------------------------------------------------------------------------*/
     /*----------------------------- BUILD FROM OBJECT ---------------------------------*/
     /*---------------------------------------------------------------------------------*/
@@ -107,29 +108,147 @@ public abstract class StatementBuilder {
      * Main abstract algorithm that build statements from object. Follows template pattern.
      * Abstract methods are implemented in sub classes, is possible to modify the standard behavior
      * of the algorithm overriding the hook methods (the protected ones).
+     * <p/>
+     * If the builder follows cascades, entities reached through cascades are built before the entity
+     * referencing them, as described in {@link #buildAll(java.util.Collection)}.
      *
      * @param entity the object from which build statements
      *
      * @return a {@link java.util.Deque} used as stack containing the statements build from the given entity
      */
     public Deque<Statement> build(Object entity) {
+        return build(walk(Collections.singletonList(entity)));
+    }
+
+    /**
+     * Build statements for all the given entities in a single pass of the same builder instance.
+     * <p/>
+     * The entity graph is walked iteratively, depth first: each entity comes after the entities it cascades to,
+     * in the order of fields and collection elements, and the given entities are handled in the iteration
+     * order of {@code entities}. Each instance is visited once, so shared or bidirectional relationships
+     * are not traversed again and cycles terminate, and of different instances of the same table and id
+     * only the first one produces statements.
+     * <p/>
+     * If the builder allows it, statements of large graphs are built in parallel.
+     *
+     * @param entities the objects from which build statements
+     *
+     * @return a {@link java.util.Deque} used as stack containing the statements build from all the given entities
+     *
+     * @see #isParallelizable()
+     */
+    public Deque<Statement> buildAll(Collection<?> entities) {
+        return build(walk(entities));
+    }
+
+    /*
+     * Returns the entities reachable from roots in post-order, each instance once.
+     */
+    private List<Object> walk(Collection<?> roots) {
+        List<Object> ordered = new ArrayList<>();
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Deque<Frame> frames = new ArrayDeque<>();
+        for (Object root : roots) {
+            if (!visited.add(root)) {
+                continue;
+            }
+            frames.push(new Frame(root, getCascadedEntities(root)));
+            while (!frames.isEmpty()) {
+                Frame frame = frames.peek();
+                if (frame.cascaded.hasNext()) {
+                    Object cascaded = frame.cascaded.next();
+                    if (visited.add(cascaded)) {
+                        frames.push(new Frame(cascaded, getCascadedEntities(cascaded)));
+                    } else {
+                        log.debug("{} already visited, skip it", cascaded);
+                    }
+                } else {
+                    frames.pop();
+                    ordered.add(frame.entity);
+                }
+            }
+        }
+        return ordered;
+    }
+
+    /*
+     * Entities whose table and id have already been seen are skipped, the others are built
+     * independently and their statements are concatenated in walk order.
+     */
+    private Deque<Statement> build(List<Object> walked) {
+        final List<Object> entities = new ArrayList<>(walked.size());
+        Set<String> keys = new HashSet<>();
+        for (Object entity : walked) {
+            String key = getKey(entity);
+            if (key != null && !keys.add(key)) {
+                log.debug("statements for {} already built, skip them", key);
+                continue;
+            }
+            entities.add(entity);
+        }
+
+        final List<Deque<Statement>> built = new ArrayList<>(Collections.<Deque<Statement>>nCopies(entities.size(), null));
+        if (isParallelizable() && entities.size() >= PARALLEL_THRESHOLD) {
+            buildInParallel(entities, built);
+        } else {
+            for (int i = 0; i < entities.size(); i++) {
+                built.set(i, buildEntity(entities.get(i)));
+            }
+        }
+
+        Deque<Statement> stack = new ArrayDeque<>();
+        for (Deque<Statement> statements : built) {
+            stack.addAll(statements);
+        }
+        return stack;
+    }
+
+    private void buildInParallel(final List<Object> entities, final List<Deque<Statement>> built) {
+        int chunks = Math.max(1, Math.min(PARALLELISM, entities.size() / MIN_CHUNK_SIZE));
+        final int chunkSize = (entities.size() + chunks - 1) / chunks;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < chunks; c++) {
+            final int from = c * chunkSize;
+            final int to = Math.min(entities.size(), from + chunkSize);
+            futures.add(Builders.POOL.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        built.set(i, buildEntity(entities.get(i)));
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while building statements", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /*
+     * Statements of a single entity, ignoring cascades.
+     */
+    private Deque<Statement> buildEntity(Object entity) {
         Deque<Statement> stack = new ArrayDeque<>();
-        Deque<Statement> cascadedStack = new ArrayDeque<>();
         Statement statement = initStatement();
-        setTableName(statement, entity);
+        EntityDescriptor descriptor = getEntityDescriptor(entity);
+        setTableName(statement, descriptor);
 
-        Field[] fields = getFields(entity);
-        for (Field field : fields) {
-            if (ReflectionUtils.isRelational(field)) {
+        for (FieldDescriptor field : descriptor.getFields()) {
+            if (field.isRelational()) {
                 log.debug("{} is a relational field", field.getName());
-                if (ReflectionUtils.ownRelation(field)) {
+                if (field.isOwningSide()) {
                     log.debug("{} is the owning side of the relation", field.getName());
-                    if (followCascades) {
-                        cascadedStack = handleCascade(entity, field);
-                    } else {
-                        log.info("Ignore cascade on field {}", field.getName());
-                    }
-                    if (ReflectionUtils.isFieldAnnotatedWith(field, ManyToMany.class)) {
+                    if (field.isManyToMany()) {
                         log.debug("{} holds a ManyToMany relationship, handle JoinTable", field.getName());
                         handleJoinTable(stack, entity, field);
                     } else {
@@ -137,12 +256,12 @@ public abstract class StatementBuilder {
                     }
                 } else {
                     log.debug("{} is the non-owning side of the relation, ignore it", field.getName());
-                    if (ReflectionUtils.isFieldAnnotatedWith(field, ManyToMany.class)) {
+                    if (field.isManyToMany()) {
                         log.debug("{} holds a inverse ManyToMany relationship, handle JoinTable", field.getName());
                         handleInverseJoinTable(stack, entity, field);
                     }
                 }
-            } else if (ReflectionUtils.isId(field)) {
+            } else if (field.isId()) {
                 onIdField(statement, entity, field);
             } else {
                 onFiled(statement, entity, field);
@@ -150,12 +269,66 @@ public abstract class StatementBuilder {
         }
 
         addStatementToStack(stack, statement);
-        if (!cascadedStack.isEmpty()) {
-            addCascadedStatementsToStack(stack, cascadedStack);
-        }
         return stack;
     }
 
+    /*
+     * Table and id identify the row, null if the id is not set.
+     */
+    private String getKey(Object entity) {
+        EntityDescriptor descriptor = getEntityDescriptor(entity);
+        Object id = descriptor.getIdField().getValue(entity);
+        return id == null ? null : descriptor.getTableName() + "#" + id;
+    }
+
+    /*
+     * Entities reached by the owning side relational fields whose cascade types are relevant.
+     */
+    private Iterator<Object> getCascadedEntities(Object entity) {
+        if (!followCascades) {
+            return Collections.emptyIterator();
+        }
+        List<Object> cascaded = new ArrayList<>();
+        for (FieldDescriptor field : getEntityDescriptor(entity).getFields()) {
+            if (field.isRelational() && field.isOwningSide()) {
+                cascaded.addAll(getCascadedEntities(entity, field));
+            }
+        }
+        return cascaded.iterator();
+    }
+
+    /*
+     * Threads are created on the first parallel build and released when idle.
+     */
+    private static final class Builders {
+        private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(PARALLELISM, PARALLELISM,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = CloudThread.getThread(runnable);
+                if (thread == null) {
+                    thread = new Thread(runnable);
+                }
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        static {
+            POOL.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Hook that tells whether statements of different entities can be built concurrently,
+     * that is hook methods do not depend on the order entities are built.
+     *
+     * @return false, subclasses should override it if they allow parallel building
+     */
+    protected boolean isParallelizable() {
+        return false;
+    }
+
     /**
      * Generate specific instance of statement.
      *
@@ -193,7 +366,7 @@ public abstract class StatementBuilder {
      * @param entity    the entity
      * @param idFiled   the filed of the entity maintaining the id
      */
-    protected abstract void onIdField(Statement statement, Object entity, Field idFiled);
+    protected abstract void onIdField(Statement statement, Object entity, FieldDescriptor idFiled);
 
     /**
      * Hook to handle the processing of a field.
@@ -202,7 +375,7 @@ public abstract class StatementBuilder {
      * @param entity    the entity
      * @param field     the filed to process
      */
-    protected abstract void onFiled(Statement statement, Object entity, Field field);
+    protected abstract void onFiled(Statement statement, Object entity, FieldDescriptor field);
 
     /**
      * Hook to handle the processing of a field that maintains a relationship with another entity.
@@ -211,55 +384,53 @@ public abstract class StatementBuilder {
      * @param entity    the entity
      * @param field     the filed maintaining a relationship
      */
-    protected abstract void onRelationalField(Statement statement, Object entity, Field field);
+    protected abstract void onRelationalField(Statement statement, Object entity, FieldDescriptor field);
 
     /**
-     * Look for table name inside the entity and modifies the injected statements accordingly.
+     * Read the table name from the entity descriptor and modifies the injected statements accordingly.
      *
-     * @param statement injected statement to modify
-     * @param entity    entity to be parsed
+     * @param statement  injected statement to modify
+     * @param descriptor descriptor of the entity to be parsed
      */
-    protected void setTableName(Statement statement, Object entity) {
-        String tableName = ReflectionUtils.getJPATableName(entity);
-        log.debug("Class {} have {} as JPA table name", entity.getClass().getSimpleName(), tableName);
+    protected void setTableName(Statement statement, EntityDescriptor descriptor) {
+        String tableName = descriptor.getTableName();
+        log.debug("Class {} have {} as JPA table name", descriptor.getEntityClass().getSimpleName(), tableName);
         statement.setTable(tableName);
     }
 
     /**
-     * Hook to the way the fields are retrieved from the entity.
+     * Hook to the way the entity metadata are retrieved.
      *
      * @param entity entity to be parsed
      *
-     * @return an array of entity fields
+     * @return the cached {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor} of the entity class
      */
-    protected Field[] getFields(Object entity) {
-        return ReflectionUtils.getFields(entity);
+    protected EntityDescriptor getEntityDescriptor(Object entity) {
+        return PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass());
     }
 
     /**
-     * Gets cascade types declared on field and if necessary call a statement build on related entities.
+     * Checks cascade types declared on field and returns the related entities the build must cascade to.
      *
      * @param entity entity to be parsed
      * @param field  a relational field
+     *
+     * @return the cascaded entities, empty if the field does not cascade
      */
-    protected Deque<Statement> handleCascade(Object entity, Field field) {
-        Deque<Statement> cascadedStack = new ArrayDeque<>();
-        CascadeType[] declaredCascadeTypes = ReflectionUtils.getCascadeTypes(field);
-        for (CascadeType cascadeType : declaredCascadeTypes) {
-            if (this.relevantCascadeTypes.contains(cascadeType)) {
-                Object cascadeEntity = ReflectionUtils.getFieldValue(entity, field);
-                if (cascadeEntity instanceof Collection) {
-                    for (Object cascade : (Collection) cascadeEntity) {
-                        log.warn("Cascade operation on collection field {} with value {}", field.getName(), cascade);
-                        cascadedStack.addAll(build(cascade));
-                    }
-                } else {
-                    log.warn("Cascade operation on field {} with value {}", field.getName(), cascadeEntity);
-                    cascadedStack.addAll(build(cascadeEntity));
-                }
-            }
+    protected Collection<?> getCascadedEntities(Object entity, FieldDescriptor field) {
+        if (!field.cascades(this.relevantCascadeTypes)) {
+            return Collections.emptyList();
+        }
+        Object cascadeEntity = field.getValue(entity);
+        if (cascadeEntity == null) {
+            return Collections.emptyList();
+        } else if (cascadeEntity instanceof Collection) {
+            log.debug("Cascade operation on collection field {}", field.getName());
+            return (Collection<?>) cascadeEntity;
+        } else {
+            log.debug("Cascade operation on field {} with value {}", field.getName(), cascadeEntity);
+            return Collections.singletonList(cascadeEntity);
         }
-        return cascadedStack;
     }
 
     /**
@@ -270,10 +441,10 @@ public abstract class StatementBuilder {
      * @param entity entity to be parsed
      * @param field  the field owning the {@link javax.persistence.ManyToMany} relationship
      */
-    protected void handleJoinTable(Deque<Statement> stack, Object entity, Field field) {
-        JoinTable joinTable = ReflectionUtils.getAnnotation(field, JoinTable.class);
+    protected void handleJoinTable(Deque<Statement> stack, Object entity, FieldDescriptor field) {
+        JoinTable joinTable = field.getJoinTable();
 
-        Collection collection = (Collection) ReflectionUtils.getFieldValue(entity, field);
+        Collection collection = (Collection) field.getValue(entity);
         for (Object element : collection) {
             Statement statement = generateJoinTableStatement(entity, element, joinTable);
             if (statement != null) {
@@ -286,21 +457,15 @@ public abstract class StatementBuilder {
     /**
      * From the non-owning side of the relationship, prepare data to call
      * {@link #generateInverseJoinTableStatement(Object, javax.persistence.JoinTable)}.
+     * <p/>
+     * The join table declared on the owner side is pre-resolved in the field descriptor.
      *
      * @param stack  stack in witch insert the generated statements
      * @param entity entity to be parsed
      * @param field  the field owning the inverse side of the {@link javax.persistence.ManyToMany} relationship
      */
-    protected void handleInverseJoinTable(Deque<Statement> stack, Object entity, Field field) {
-        ManyToMany mtm = ReflectionUtils.getAnnotation(field, ManyToMany.class);
-        String mappedBy = mtm.mappedBy();
-        ParameterizedType collectionType = (ParameterizedType) field.getGenericType();
-        Class<?> ownerClass = (Class<?>) collectionType.getActualTypeArguments()[0];
-        log.debug("{} is mapped by {} in class {}", field.getName(), mappedBy, ownerClass.getCanonicalName());
-
-        Field ownerField = ReflectionUtils.getFieldByName(ownerClass, mappedBy);
-        JoinTable joinTable = ReflectionUtils.getAnnotation(ownerField, JoinTable.class);
-        Statement statement = generateInverseJoinTableStatement(entity, joinTable);
+    protected void handleInverseJoinTable(Deque<Statement> stack, Object entity, FieldDescriptor field) {
+        Statement statement = generateInverseJoinTableStatement(entity, field.getJoinTable());
         if (statement != null) {
             log.debug("joinTableStatement: {}", statement.toString());
             addJoinTableStatementToStack(stack, statement);
@@ -314,10 +479,19 @@ public abstract class StatementBuilder {
      * @param statement injected statement to modify
      * @param entity    entity to be parsed
      * @param field     relational field to add to statement
+     *
+     * @throws java.lang.RuntimeException if {@link javax.persistence.JoinColumn} is not present.
      */
-    protected void addRelationalFiled(Statement statement, Object entity, Field field) {
-        String fieldName = ReflectionUtils.getJoinColumnName(field);
-        Object fieldValue = ReflectionUtils.getJoinColumnValue(entity, fieldName, field);
+    protected void addRelationalFiled(Statement statement, Object entity, FieldDescriptor field) {
+        String fieldName = field.getJoinColumnName();
+        if (fieldName == null) {
+            throw new RuntimeException("Field " + field.getName() + " is not annotated with " + JoinColumn.class.getSimpleName());
+        }
+        Object instance = field.getValue(entity);
+        log.debug("instance is {}", instance);
+        FieldDescriptor joinColumnField = getEntityDescriptor(instance).getJoinColumnField(fieldName);
+        log.debug("joinColumnField is {}", joinColumnField.getName());
+        Object fieldValue = joinColumnField.getValue(instance);
         log.debug("{} will be {} = {}", field.getName(), fieldName, fieldValue);
         statement.addField(fieldName, fieldValue);
     }
@@ -329,9 +503,9 @@ public abstract class StatementBuilder {
      * @param entity    entity to be parsed
      * @param field     field to add to statement
      */
-    protected void addField(Statement statement, Object entity, Field field) {
-        String fieldName = ReflectionUtils.getJPAColumnName(field);
-        Object fieldValue = ReflectionUtils.getFieldValue(entity, field);
+    protected void addField(Statement statement, Object entity, FieldDescriptor field) {
+        String fieldName = field.getColumnName();
+        Object fieldValue = field.getValue(entity);
         log.debug("{} will be {} = {}", field.getName(), fieldName, fieldValue);
         statement.addField(fieldName, fieldValue);
     }
@@ -344,6 +518,9 @@ public abstract class StatementBuilder {
      * Main abstract algorithm that build statements from queries. Follows template pattern.
      * Abstract methods are implemented in sub classes, is possible to modify the standard behavior
      * of the algorithm overriding the hook methods (the protected ones).
+     * <p/>
+     * Each distinct query string is compiled once in a {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.StatementTemplate},
+     * later executions just bind the parameter values of {@code query}.
      *
      * @param query       a {@link javax.persistence.Query} instance
      * @param queryString the JPQl string representation of the query
@@ -353,16 +530,39 @@ public abstract class StatementBuilder {
     public Deque<Statement> build(Query query, String queryString) {
         Deque<Statement> stack = new ArrayDeque<>();
         log.info(queryString);
-        List<Token> tokens = Lexer.lex(queryString);
-        Statement statement = handleQuery(query, tokens);
-        if (statement != null) {
-            stack.addLast(statement);
+        StatementTemplate template = getTemplate(queryString);
+        if (template != null) {
+            stack.addLast(template.bind(initStatement(), query));
         }
         return stack;
     }
 
     /**
-     * Translate query tokens into a specific statement.
+     * Returns the compiled template of the given query, compiling it on first request.
+     *
+     * @param queryString the JPQl string representation of the query
+     *
+     * @return the cached {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.StatementTemplate}
+     */
+    protected StatementTemplate getTemplate(String queryString) {
+        String key = getClass().getName() + ":" + queryString;
+        StatementTemplate template;
+        synchronized (templates) {
+            template = templates.get(key);
+        }
+        if (template == null) {
+            template = compile(Lexer.lex(queryString));
+            if (template != null) {
+                synchronized (templates) {
+                    templates.put(key, template);
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Translate query tokens into a statement template.
      * <p/>
      * Algorithm does not handle join tables since update or delete by query is not possible through JPA.
      * <p/>
@@ -370,25 +570,23 @@ public abstract class StatementBuilder {
      * dot notations in queries so is not possible to update through a query another entity
      * beside the one explicitly stated in the query.
      *
-     * @param query  a {@link javax.persistence.Query} instance
      * @param tokens tokens obtained from lexer
      *
-     * @return the generated {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement}
+     * @return the compiled {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.StatementTemplate}
      */
-    protected abstract Statement handleQuery(Query query, List<Token> tokens);
+    protected abstract StatementTemplate compile(List<Token> tokens);
 
     /**
      * Move the token iterator to find table name from where the iterator was left.
      * Take care of finding the correct JPA table name and modify the injected statement accordingly.
      *
      * @param tokenIterator injected token iterator
-     * @param statement     injected statement to modify
+     * @param statement     injected statement template to modify
      */
-    protected void setTableName(Iterator<Token> tokenIterator, Statement statement) {
+    protected void setTableName(Iterator<Token> tokenIterator, StatementTemplate statement) {
         String tableName = nextTokenOfType(TokenType.STRING, tokenIterator);
         log.debug("specified table name is {}", tableName);
-        Class<?> clazz = getAssociatedClass(tableName);
-        tableName = ReflectionUtils.getJPATableName(clazz);
+        tableName = getAssociatedDescriptor(tableName).getTableName();
         log.debug("JPA table name is {}", tableName);
         statement.setTable(tableName);
     }
@@ -408,6 +606,21 @@ public abstract class StatementBuilder {
         return ReflectionUtils.getClassInstance(fullClassName);
     }
 
+    /**
+     * Finds out the metadata of the class that maps to the given tableName.
+     *
+     * @param tableName tableName
+     *
+     * @return the cached {@link it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor} of the class
+     */
+    protected EntityDescriptor getAssociatedDescriptor(String tableName) {
+        EntityDescriptor descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(tableName);
+        if (descriptor == null) {
+            throw new PersistenceMetadataException(tableName + " is unknown");
+        }
+        return descriptor;
+    }
+
     /**
      * Finds out the JPA name associated to the column name.
      *
@@ -419,9 +632,7 @@ public abstract class StatementBuilder {
      */
     protected String getJPAColumnName(Token column, String objectParam, String tableName) {
         String name = column.getData().replaceAll(objectParam + ".", "");
-        Class<?> clazz = getAssociatedClass(tableName);
-        Field field = ReflectionUtils.getFieldByName(clazz, name);
-        return ReflectionUtils.getJPAColumnName(field);
+        return getAssociatedDescriptor(tableName).getField(name).getColumnName();
     }
 
     /**
@@ -434,10 +645,21 @@ public abstract class StatementBuilder {
      * @return the value associated to the parameter
      */
     protected Object getNextParameterValue(Iterator<Token> tokenIterator, Query query) {
-        String param = nextTokenOfType(TokenType.PARAM, tokenIterator).replaceAll(":|,", "");
+        String param = getNextParameterName(tokenIterator);
         return query.getParameterValue(query.getParameter(param));
     }
 
+    /**
+     * Move the iterator to fund out the first param from where the iterator was left.
+     *
+     * @param tokenIterator injected iterator
+     *
+     * @return the parameter name
+     */
+    protected String getNextParameterName(Iterator<Token> tokenIterator) {
+        return nextTokenOfType(TokenType.PARAM, tokenIterator).replaceAll(":|,", "");
+    }
+
     /**
      * Move the iterator until a token matching the requested type is found.
      *
@@ -453,4 +675,18 @@ public abstract class StatementBuilder {
         }
         return nextTokenOfType(type, itr);
     }
+
+    /*
+     * An entity being walked and the cascaded entities still to visit.
+     */
+    private static class Frame {
+
+        private final Object entity;
+        private final Iterator<Object> cascaded;
+
+        Frame(Object entity, Iterator<Object> cascaded) {
+            this.entity = entity;
+            this.cascaded = cascaded;
+        }
+    }
 }
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.CompareOperator;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Condition;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Filter;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.InCondition;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.LogicCondition;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.NotCondition;
+import lombok.Getter;
+
+import javax.persistence.Query;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiled form of an UPDATE or DELETE JPQL query.
+ * <p/>
+ * Holds everything that depends only on the query string, that is the JPA table name,
+ * the SET columns and the WHERE condition tree with its parameter slots, so that
+ * each execution of the query only needs to bind the parameter values.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.StatementBuilder#build(javax.persistence.Query, String)
+ */
+public class StatementTemplate {
+
+    @Getter private String table;
+    private final List<Filter> fields = new ArrayList<>();
+    /** values of the tree leaves are either literals or {@link ParameterRef} */
+    @Getter private Condition condition;
+
+    void setTable(String table) {
+        this.table = table;
+    }
+
+    void addField(String column, String parameter) {
+        this.fields.add(new Filter(column, CompareOperator.EQUAL, new ParameterRef(parameter, false)));
+    }
+
+    void setCondition(Condition condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * Returns the names of the parameters used by the query, in order of appearance.
+     *
+     * @return an unmodifiable list of parameter names
+     */
+    public List<String> getParameters() {
+        List<String> parameters = new ArrayList<>();
+        for (Filter field : this.fields) {
+            collectParameter(field.getValue(), parameters);
+        }
+        collectParameters(this.condition, parameters);
+        return Collections.unmodifiableList(parameters);
+    }
+
+    private static void collectParameters(Condition condition, List<String> parameters) {
+        if (condition instanceof Filter) {
+            collectParameter(((Filter) condition).getValue(), parameters);
+        } else if (condition instanceof InCondition) {
+            for (Object value : ((InCondition) condition).getValues()) {
+                collectParameter(value, parameters);
+            }
+        } else if (condition instanceof NotCondition) {
+            collectParameters(((NotCondition) condition).getOperand(), parameters);
+        } else if (condition instanceof LogicCondition) {
+            for (Condition operand : ((LogicCondition) condition).getOperands()) {
+                collectParameters(operand, parameters);
+            }
+        }
+    }
+
+    private static void collectParameter(Object value, List<String> parameters) {
+        if (value instanceof ParameterRef) {
+            parameters.add(((ParameterRef) value).name);
+        }
+    }
+
+    /**
+     * Fill the given statement with the template binding parameters to the values set on {@code query}.
+     *
+     * @param statement an empty statement
+     * @param query     the query holding the parameter values
+     *
+     * @return the filled statement
+     */
+    public Statement bind(Statement statement, Query query) {
+        statement.setTable(this.table);
+        for (Filter field : this.fields) {
+            statement.addField(field.getColumn(), valueOf(field.getValue(), query));
+        }
+        if (this.condition != null) {
+            statement.setCondition(bind(this.condition, query));
+        }
+        return statement;
+    }
+
+    private static Condition bind(Condition condition, Query query) {
+        if (condition instanceof Filter) {
+            Filter filter = (Filter) condition;
+            return new Filter(filter.getColumn(), filter.getOperator(), valueOf(filter.getValue(), query));
+        } else if (condition instanceof InCondition) {
+            InCondition in = (InCondition) condition;
+            List<Object> values = new ArrayList<>();
+            for (Object value : in.getValues()) {
+                Object bound = valueOf(value, query);
+                if (value instanceof ParameterRef && ((ParameterRef) value).collection && bound instanceof Collection) {
+                    values.addAll((Collection<?>) bound);
+                } else {
+                    values.add(bound);
+                }
+            }
+            return new InCondition(in.getColumn(), values, in.isNegated());
+        } else if (condition instanceof NotCondition) {
+            return new NotCondition(bind(((NotCondition) condition).getOperand(), query));
+        } else if (condition instanceof LogicCondition) {
+            LogicCondition logic = (LogicCondition) condition;
+            List<Condition> operands = new ArrayList<>();
+            for (Condition operand : logic.getOperands()) {
+                operands.add(bind(operand, query));
+            }
+            return new LogicCondition(logic.getOperator(), operands);
+        }
+        /* NullCondition has no values */
+        return condition;
+    }
+
+    private static Object valueOf(Object value, Query query) {
+        if (value instanceof ParameterRef) {
+            return query.getParameterValue(query.getParameter(((ParameterRef) value).name));
+        }
+        return value;
+    }
+
+    /**
+     * Placeholder for the value of a named parameter.
+     */
+    static class ParameterRef {
+        private final String name;
+        /** true if the parameter is bound to a collection whose elements are the values of an IN condition */
+        private final boolean collection;
+
+        ParameterRef(String name, boolean collection) {
+            this.name = name;
+            this.collection = collection;
+        }
+
+        @Override
+        public String toString() {
+            return ":" + this.name;
+        }
+    }
+}
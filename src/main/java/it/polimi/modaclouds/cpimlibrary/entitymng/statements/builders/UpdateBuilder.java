@@ -16,7 +16,7 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders;
 
-import it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils;
+import it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.UpdateStatement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
@@ -26,8 +26,6 @@ import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.CascadeType;
 import javax.persistence.JoinTable;
-import javax.persistence.Query;
-import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -53,6 +51,16 @@ public class UpdateBuilder extends StatementBuilder {
         }
     }
 
+    /**
+     * Statements of each entity depend only on the entity itself, so they can be built concurrently.
+     *
+     * @see StatementBuilder#isParallelizable()
+     */
+    @Override
+    protected boolean isParallelizable() {
+        return true;
+    }
+
     /* (non-Javadoc)
      *
      * @see StatementBuilder#initStatement()
@@ -64,30 +72,30 @@ public class UpdateBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onFiled(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onFiled(Statement statement, Object entity, Field field) {
+    protected void onFiled(Statement statement, Object entity, FieldDescriptor field) {
         super.addField(statement, entity, field);
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onRelationalField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onRelationalField(Statement statement, Object entity, Field field) {
+    protected void onRelationalField(Statement statement, Object entity, FieldDescriptor field) {
         super.addRelationalFiled(statement, entity, field);
     }
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, java.lang.reflect.Field)
+     * @see StatementBuilder#onIdField(it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement, Object, it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor)
      */
     @Override
-    protected void onIdField(Statement statement, Object entity, Field idFiled) {
-        String jpaColumnName = ReflectionUtils.getJPAColumnName(idFiled);
-        Object idValue = ReflectionUtils.getFieldValue(entity, idFiled);
+    protected void onIdField(Statement statement, Object entity, FieldDescriptor idFiled) {
+        String jpaColumnName = idFiled.getColumnName();
+        Object idValue = idFiled.getValue(entity);
         log.debug("id filed is {}, will be {} = {}", idFiled.getName(), jpaColumnName, idValue);
         statement.addCondition(jpaColumnName, CompareOperator.EQUAL, idValue);
     }
@@ -114,44 +122,36 @@ public class UpdateBuilder extends StatementBuilder {
 
     /* (non-Javadoc)
      *
-     * @see StatementBuilder#handleQuery(javax.persistence.Query, java.util.ArrayList)
+     * @see StatementBuilder#compile(java.util.List)
      */
     @Override
-    protected Statement handleQuery(Query query, List<Token> tokens) {
+    protected StatementTemplate compile(List<Token> tokens) {
         Iterator<Token> itr = tokens.iterator();
         String objectParam = "";
-        boolean wherePart = false;
-        Statement statement = new UpdateStatement();
+        StatementTemplate statement = new StatementTemplate();
         while (itr.hasNext()) {
             Token current = itr.next();
             switch (current.getType()) {
-                case SET:
-                case WHITESPACE:
-                    /* fall through */
-                    break;
                 case UPDATE:
                     super.setTableName(itr, statement);
                     objectParam = super.nextTokenOfType(TokenType.STRING, itr);
                     log.debug("JPQL object parameter is {}", objectParam);
                     break;
                 case WHERE:
-                    wherePart = true;
+                    statement.setCondition(new ConditionParser(this, itr, objectParam, statement.getTable()).parse());
+                    log.debug("WHERE clause is {}", statement.getCondition());
                     break;
                 case COLUMN:
+                    /* is in the SET part */
                     String column = super.getJPAColumnName(current, objectParam, statement.getTable());
-                    String operator = super.nextTokenOfType(TokenType.COMPAREOP, itr);
-                    Object value = super.getNextParameterValue(itr, query);
-                    log.debug("found column will be {} {} {}", column, operator, value);
-                    if (wherePart) {
-                        statement.addCondition(column, operator, value);
-                    } else {
-                        /* is in the SET part */
-                        statement.addField(column, value);
-                    }
+                    super.nextTokenOfType(TokenType.COMPAREOP, itr);
+                    String parameter = super.getNextParameterName(itr);
+                    log.debug("found column will be {} = :{}", column, parameter);
+                    statement.addField(column, parameter);
+                    break;
+                default:
+                    /* SET, commas and whitespaces */
                     break;
-                case LOGICOP:
-                    log.debug("found logic operator {}", current.getData());
-                    statement.addCondition(current.getData());
             }
         }
         return statement;
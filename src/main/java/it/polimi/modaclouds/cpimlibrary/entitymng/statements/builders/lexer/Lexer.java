@@ -16,41 +16,83 @@
  */
 package it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Simple lexer based on java regex.
+ * <p/>
+ * The pattern combining all the {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.TokenType}
+ * is compiled once, each token type is matched by a capturing group whose index is the token type ordinal plus one,
+ * so the type of each match is found without looking up groups by name.
+ * Since the same few queries are lexed over and over, the token lists of the last
+ * {@value #CACHE_SIZE} distinct inputs are cached.
  *
  * @author Fabio Arcidiacono.
  */
 public class Lexer {
 
+    static final int CACHE_SIZE = 256;
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final Pattern TOKEN_PATTERNS = compile();
+    private static final Map<String, List<Token>> cache = new LinkedHashMap<String, List<Token>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<Token>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
     private Lexer() {
     }
 
-    public static List<Token> lex(String input) {
-        List<Token> tokens = new ArrayList<>();
-
-        // Build token patterns
+    /*
+     * Token patterns does not contain capturing groups, so group i + 1 matches TYPES[i].
+     */
+    private static Pattern compile() {
         StringBuilder tokenPatternsBuffer = new StringBuilder();
-        for (TokenType tokenType : TokenType.values()) {
+        for (TokenType tokenType : TYPES) {
             tokenPatternsBuffer.append(String.format("|(?<%s>%s)", tokenType.name(), tokenType.getPattern()));
         }
-        Pattern tokenPatterns = Pattern.compile(tokenPatternsBuffer.substring(1));
+        Pattern pattern = Pattern.compile(tokenPatternsBuffer.substring(1));
+        if (pattern.matcher("").groupCount() != TYPES.length) {
+            throw new IllegalStateException("Token patterns must not contain capturing groups");
+        }
+        return pattern;
+    }
+
+    /**
+     * Split the given input in tokens.
+     *
+     * @param input the JPQL query
+     *
+     * @return an unmodifiable list of tokens
+     */
+    public static List<Token> lex(String input) {
+        List<Token> tokens;
+        synchronized (cache) {
+            tokens = cache.get(input);
+        }
+        if (tokens == null) {
+            tokens = Collections.unmodifiableList(scan(input));
+            synchronized (cache) {
+                cache.put(input, tokens);
+            }
+        }
+        return tokens;
+    }
 
-        // Matching tokens
-        Matcher matcher = tokenPatterns.matcher(input);
+    private static List<Token> scan(String input) {
+        List<Token> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN_PATTERNS.matcher(input);
         while (matcher.find()) {
-            for (TokenType tokenType : TokenType.values()) {
-                if (matcher.group(tokenType.name()) != null) {
-                    tokens.add(new Token(tokenType, matcher.group(tokenType.name())));
+            for (int group = 1; group <= TYPES.length; group++) {
+                if (matcher.start(group) != -1) {
+                    tokens.add(new Token(TYPES[group - 1], input.substring(matcher.start(group), matcher.end(group))));
+                    break;
                 }
             }
         }
-
         return tokens;
     }
 }
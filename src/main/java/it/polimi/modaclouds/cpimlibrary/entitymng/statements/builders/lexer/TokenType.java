@@ -20,21 +20,29 @@ import lombok.Getter;
 
 /**
  * Tokens for UPDATE and DELETE queries in JPQL.
+ * <p/>
+ * Keywords match whole words only, token patterns must not contain capturing groups.
  *
  * @author Fabio Arcidiacono.
  */
 public enum TokenType {
-    UPDATE("[uU]pdate|UPDATE"),
-    SET("[sS]et|SET"),
-    DELETE("[dD]elete|DELETE"),
-    FROM("[fF]rom|FROM"),
-    WHERE("[wW]here|WHERE"),
+    UPDATE("(?:[uU]pdate|UPDATE)\\b"),
+    SET("(?:[sS]et|SET)\\b"),
+    DELETE("(?:[dD]elete|DELETE)\\b"),
+    FROM("(?:[fF]rom|FROM)\\b"),
+    WHERE("(?:[wW]here|WHERE)\\b"),
     COMPAREOP("<>|>=|<=|>|<|="),
-    LOGICOP("[Aa]nd|AND|[Oo]r|OR"),
+    LOGICOP("(?:[Aa]nd|AND|[Oo]r|OR)\\b"),
+    NOT("(?:[nN]ot|NOT)\\b"),
+    IN("(?:[iI]n|IN)\\b"),
+    IS("(?:[iI]s|IS)\\b"),
+    NULL("(?:[nN]ull|NULL)\\b"),
+    LPAREN("\\("),
+    RPAREN("\\)"),
     COMMA(","),
-    PARAM(":\\S+"),
-    COLUMN("[\\S+]\\.\\S+"),
-    STRING("\\S+"),
+    PARAM(":[^\\s()]+"),
+    COLUMN("[A-Za-z_]\\w*\\.[\\w.]+"),
+    STRING("[^\\s()]+"),
     WHITESPACE("\\s+");
 
     @Getter private final String pattern;
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils;
+
+/**
+ * A node of the condition tree of the WHERE clause of a statement.
+ * <p/>
+ * Leaves are {@link Filter}, {@link InCondition} and {@link NullCondition},
+ * inner nodes are {@link LogicCondition} and {@link NotCondition}.
+ * The {@code toString} of a node is its SQL representation.
+ *
+ * @author Fabio Arcidiacono.
+ * @see it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement#getCondition()
+ */
+public interface Condition {
+}
@@ -26,7 +26,7 @@ import lombok.Getter;
  * @author Fabio Arcidiacono.
  */
 @AllArgsConstructor
-public class Filter {
+public class Filter implements Condition {
     @Getter private String column;
     @Getter private CompareOperator operator;
     @Getter private Object value;
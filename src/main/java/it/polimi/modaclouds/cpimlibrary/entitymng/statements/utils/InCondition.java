@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Represents a condition in the form 'column [NOT] IN (value, ...)'.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@AllArgsConstructor
+public class InCondition implements Condition {
+    @Getter private String column;
+    @Getter private List<Object> values;
+    @Getter private boolean negated;
+
+    @Override
+    public String toString() {
+        StringBuilder list = new StringBuilder();
+        for (Object value : this.values) {
+            if (list.length() > 0) {
+                list.append(", ");
+            }
+            list.append("'").append(value).append("'");
+        }
+        return String.format("%s %sIN (%s)", this.column, this.negated ? "NOT " : "", list);
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conjunction or disjunction of two or more conditions.
+ *
+ * @author Fabio Arcidiacono.
+ */
+public class LogicCondition implements Condition {
+
+    @Getter private final LogicOperator operator;
+    private final List<Condition> operands;
+
+    public LogicCondition(LogicOperator operator, List<Condition> operands) {
+        this.operator = operator;
+        this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+    }
+
+    /**
+     * Combine two conditions with the given operator, if {@code left} is already combined
+     * with the same operator {@code right} is just appended to its operands.
+     *
+     * @param operator the logic operator
+     * @param left     the left operand
+     * @param right    the right operand
+     *
+     * @return the combined condition
+     */
+    public static LogicCondition of(LogicOperator operator, Condition left, Condition right) {
+        List<Condition> operands = new ArrayList<>();
+        if (left instanceof LogicCondition && ((LogicCondition) left).operator == operator) {
+            operands.addAll(((LogicCondition) left).operands);
+        } else {
+            operands.add(left);
+        }
+        operands.add(right);
+        return new LogicCondition(operator, operands);
+    }
+
+    /**
+     * @return an unmodifiable list of the operands
+     */
+    public List<Condition> getOperands() {
+        return this.operands;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Condition operand : this.operands) {
+            if (builder.length() > 0) {
+                builder.append(" ").append(this.operator).append(" ");
+            }
+            if (operand instanceof LogicCondition) {
+                builder.append("(").append(operand).append(")");
+            } else {
+                builder.append(operand);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Negation of a condition.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@AllArgsConstructor
+public class NotCondition implements Condition {
+    @Getter private Condition operand;
+
+    @Override
+    public String toString() {
+        return String.format("NOT (%s)", this.operand);
+    }
+}
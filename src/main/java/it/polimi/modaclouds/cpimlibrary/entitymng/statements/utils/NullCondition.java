@@ -0,0 +1,36 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Represents a condition in the form 'column IS [NOT] NULL'.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@AllArgsConstructor
+public class NullCondition implements Condition {
+    @Getter private String column;
+    @Getter private boolean negated;
+
+    @Override
+    public String toString() {
+        return String.format("%s IS %sNULL", this.column, this.negated ? "NOT " : "");
+    }
+}
@@ -20,6 +20,7 @@ import it.polimi.modaclouds.cpimlibrary.CloudMetadata;
 import it.polimi.modaclouds.cpimlibrary.blobmng.CloudBlobManagerFactory;
 import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager;
 import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManagerFactory;
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManagerPool;
 import it.polimi.modaclouds.cpimlibrary.exception.ParserConfigurationFileException;
 import it.polimi.modaclouds.cpimlibrary.mailservice.CloudMailManager;
 import it.polimi.modaclouds.cpimlibrary.memcache.CloudMemcache;
@@ -35,10 +36,11 @@ import java.util.Map;
  */
 public class MF {
 
-    private static MF _instance = null;
+    private static volatile MF _instance = null;
     private CloudMetadata metadata = null;
     private CloudEntityManagerFactory emfInstance = null;
-    private CloudEntityManager emInstance = null;
+    private final ThreadLocal<CloudEntityManager> emInstance = new ThreadLocal<>();
+    private CloudEntityManagerPool emPool = null;
     private CloudBlobManagerFactory bmfInstance = null;
     private CloudMessageQueueFactory mqfInstance = null;
     private CloudTaskQueueFactory tqfInstance = null;
@@ -60,10 +62,17 @@ public class MF {
      * @return the factory of all available services
      */
     public static MF getFactory() {
-        if (_instance == null) {
-            _instance = new MF();
+        MF current = _instance;
+        if (current == null) {
+            synchronized (MF.class) {
+                current = _instance;
+                if (current == null) {
+                    current = new MF();
+                    _instance = current;
+                }
+            }
         }
-        return _instance;
+        return current;
     }
 
     /**
@@ -96,7 +105,7 @@ public class MF {
      *
      * @see CloudEntityManagerFactory
      */
-    public CloudEntityManagerFactory getEntityManagerFactory() {
+    public synchronized CloudEntityManagerFactory getEntityManagerFactory() {
         if (emfInstance == null) {
             emfInstance = new CloudEntityManagerFactory(metadata.getPersistenceUnit());
         }
@@ -104,19 +113,52 @@ public class MF {
     }
 
     /**
-     * Returns a {@code CloudEntityManager}. If it's the first time the Entity Manager is requested
-     * then it is instantiated through {@code CloudEntityManagerFactory}.
+     * Returns the {@code CloudEntityManager} of the calling thread. If it's the first time the Entity Manager
+     * is requested by the thread then it is instantiated through {@code CloudEntityManagerFactory}.
      * This method is used to get the manager of the NoSQL service.
+     * <p/>
+     * Since entity managers are not thread-safe, each thread gets its own instance
+     * that should be closed through {@link #closeEntityManager()} when the thread is done with it,
+     * e.g. at the end of a request.
      *
-     * @return the instance of the {@code CloudEntityManager}
+     * @return the instance of the {@code CloudEntityManager} confined to the calling thread
      *
      * @see CloudEntityManager
      */
     public CloudEntityManager getEntityManager() {
-        if (emInstance == null) {
-            emInstance = getEntityManagerFactory().createCloudEntityManager();
+        CloudEntityManager entityManager = emInstance.get();
+        if (entityManager == null || !entityManager.isOpen()) {
+            entityManager = getEntityManagerFactory().createCloudEntityManager();
+            emInstance.set(entityManager);
         }
-        return emInstance;
+        return entityManager;
+    }
+
+    /**
+     * Closes the {@code CloudEntityManager} of the calling thread, if any.
+     * The next call to {@link #getEntityManager()} from the same thread will create a new one.
+     */
+    public void closeEntityManager() {
+        CloudEntityManager entityManager = emInstance.get();
+        emInstance.remove();
+        if (entityManager != null && entityManager.isOpen()) {
+            entityManager.close();
+        }
+    }
+
+    /**
+     * Returns the bounded pool of {@code CloudEntityManager}, sized as stated in <i>configuration.xml</i>.
+     * Managers must be obtained through {@code borrow} and given back through {@code release}.
+     *
+     * @return the {@code CloudEntityManagerPool}
+     *
+     * @see CloudEntityManagerPool
+     */
+    public synchronized CloudEntityManagerPool getEntityManagerPool() {
+        if (emPool == null) {
+            emPool = new CloudEntityManagerPool(getEntityManagerFactory(), metadata.getEntityManagerPoolSize());
+        }
+        return emPool;
     }
 
     /**
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.benchmarks;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.EntityDescriptor;
+import it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor;
+import it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata;
+import it.polimi.modaclouds.cpimlibrary.entitymng.ReflectionUtils;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Employee;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.EmployeeMTM;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.ProjectMTM;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reflective {@link java.lang.reflect.Field} access with the {@link java.lang.invoke.MethodHandle}
+ * based access of {@link it.polimi.modaclouds.cpimlibrary.entitymng.FieldDescriptor} on the test entities.
+ * <p/>
+ * Each benchmark reads every persisted field of an entity and sets back its id,
+ * as done by statement builders and by {@code CloudEntityManager.persist}. Fields are resolved once
+ * at setup for both, so only the access cost is measured.
+ * Run it with the {@code main} method from the test classpath.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FieldAccessBenchmark {
+
+    @Param({"Employee", "Department", "ProjectMTM"})
+    public String entityName;
+
+    private Object entity;
+    private EntityDescriptor descriptor;
+    private Field[] fields;
+    private Field idField;
+
+    @Setup
+    public void setUp() {
+        switch (entityName) {
+            case "Employee":
+                Employee employee = new Employee();
+                employee.setId("1");
+                employee.setName("Fabio");
+                employee.setSalary(123L);
+                entity = employee;
+                break;
+            case "Department":
+                Department department = new Department();
+                department.setId("1");
+                department.setName("Bar");
+                entity = department;
+                break;
+            case "ProjectMTM":
+                ProjectMTM project = new ProjectMTM();
+                project.setId("1");
+                project.setName("Project1");
+                project.setEmployees(new ArrayList<EmployeeMTM>());
+                entity = project;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown entity " + entityName);
+        }
+        descriptor = PersistenceMetadata.getInstance().getEntityDescriptor(entity.getClass());
+        fields = ReflectionUtils.getFields(entity);
+        for (Field field : fields) {
+            field.setAccessible(true);
+            if (ReflectionUtils.isId(field)) {
+                idField = field;
+            }
+        }
+    }
+
+    @Benchmark
+    public void reflection(Blackhole blackhole) throws IllegalAccessException {
+        for (Field field : fields) {
+            blackhole.consume(field.get(entity));
+        }
+        idField.set(entity, "2");
+    }
+
+    @Benchmark
+    public void methodHandles(Blackhole blackhole) {
+        for (FieldDescriptor field : descriptor.getFields()) {
+            blackhole.consume(field.getValue(entity));
+        }
+        descriptor.getIdField().setValue(entity, "2");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(FieldAccessBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
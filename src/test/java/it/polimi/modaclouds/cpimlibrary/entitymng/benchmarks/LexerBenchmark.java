@@ -0,0 +1,107 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.benchmarks;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Lexer;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Token;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.TokenType;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the original {@link it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.lexer.Lexer},
+ * that compiled the token patterns and looked up groups by name on each call,
+ * with the current one, both when the query is in the token cache and when it is not.
+ * <p/>
+ * Run it with the {@code main} method from the test classpath.
+ *
+ * @author Fabio Arcidiacono.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LexerBenchmark {
+
+    private static final String UPDATE = "UPDATE Employee e SET e.salary = :salary, e.name = :name WHERE e.id = :id AND e.salary <> :old";
+    private static final String DELETE = "DELETE FROM Employee e WHERE e.salary > :salary OR e.name = :name";
+
+    @Param({"UPDATE", "DELETE"})
+    public String queryType;
+
+    private String query;
+    private String[] uncached;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        query = "UPDATE".equals(queryType) ? UPDATE : DELETE;
+        /* more distinct queries than the lexer cache can hold */
+        uncached = new String[4096];
+        for (int i = 0; i < uncached.length; i++) {
+            uncached[i] = query + " AND e.id <> :p" + i;
+        }
+    }
+
+    @Benchmark
+    public List<Token> original() {
+        List<Token> tokens = new ArrayList<>();
+        StringBuilder tokenPatternsBuffer = new StringBuilder();
+        for (TokenType tokenType : TokenType.values()) {
+            tokenPatternsBuffer.append(String.format("|(?<%s>%s)", tokenType.name(), tokenType.getPattern()));
+        }
+        Pattern tokenPatterns = Pattern.compile(tokenPatternsBuffer.substring(1));
+        Matcher matcher = tokenPatterns.matcher(query);
+        while (matcher.find()) {
+            for (TokenType tokenType : TokenType.values()) {
+                if (matcher.group(tokenType.name()) != null) {
+                    tokens.add(new Token(tokenType, matcher.group(tokenType.name())));
+                }
+            }
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public List<Token> cached() {
+        return Lexer.lex(query);
+    }
+
+    @Benchmark
+    public List<Token> uncached() {
+        next = (next + 1) % uncached.length;
+        return Lexer.lex(uncached[next]);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(LexerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
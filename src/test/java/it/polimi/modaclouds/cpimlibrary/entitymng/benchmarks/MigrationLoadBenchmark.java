@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.benchmarks;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationState;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of the migration path that runs without ZooKeeper on a
+ * {@link it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory}.
+ * <p/>
+ * Worker threads persist, merge and remove {@link it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department}
+ * entities through a {@link it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager} whose persistence provider
+ * discards every operation, while synchronization is toggled on and off at a fixed interval. So the measure covers
+ * sequence number dispensers, statement building and shipping, and state transitions.
+ * <p/>
+ * At the end it reports the ids assigned per second, p50 and p99 latency of each operation,
+ * the statements propagated, errors and duplicated ids.
+ * <p/>
+ * Run it with the {@code main} method from the test classpath, optional arguments are: threads,
+ * duration in seconds, toggle interval in milliseconds, ZooKeeper latency in milliseconds and
+ * ZooKeeper failure rate. Backups follow the test <i>migration.xml</i>.
+ *
+ * @author Fabio Arcidiacono.
+ */
+public class MigrationLoadBenchmark {
+
+    private static final String[] OPERATIONS = {"persist", "merge", "remove"};
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long duration = TimeUnit.SECONDS.toNanos(args.length > 1 ? Long.parseLong(args[1]) : 10);
+        final long toggleInterval = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        long latency = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        double failureRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+        final ZKMemory zooKeeper = new ZKMemory(latency, failureRate);
+        HegiraConnector.install(zooKeeper);
+        MigrationManager migrant = MigrationManager.getInstance();
+        EntityManager discarding = discardingEntityManager();
+
+        final long deadline = System.nanoTime() + duration;
+        final AtomicInteger transitions = new AtomicInteger();
+        Thread toggler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        Thread.sleep(toggleInterval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    zooKeeper.synchronize(!zooKeeper.isSynchronizing());
+                    transitions.incrementAndGet();
+                }
+            }
+        });
+        toggler.setDaemon(true);
+
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(new Worker(new CloudEntityManager(discarding), deadline));
+        }
+        long start = System.nanoTime();
+        toggler.start();
+        for (Worker worker : workers) {
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        toggler.interrupt();
+        toggler.join();
+        if (zooKeeper.isSynchronizing()) {
+            zooKeeper.synchronize(false);
+        }
+
+        report(workers, elapsed, transitions.get(), ((MigrationState) migrant.getMigrationState()).getPropagatedStatements());
+    }
+
+    private static void report(List<Worker> workers, long elapsed, int transitions, long statements) {
+        double seconds = elapsed / 1e9;
+        long errors = 0;
+        int ids = 0;
+        int duplicates = 0;
+        BitSet seen = new BitSet();
+        for (Worker worker : workers) {
+            errors += worker.errors;
+            for (int i = 0; i < worker.ids.size(); i++) {
+                int id = worker.ids.get(i);
+                if (seen.get(id)) {
+                    duplicates++;
+                }
+                seen.set(id);
+                ids++;
+            }
+        }
+        System.out.println(String.format("threads: %d, seconds: %.1f, transitions: %d", workers.size(), seconds, transitions));
+        System.out.println(String.format("ids/sec: %.0f, ids: %d, duplicated ids: %d", ids / seconds, ids, duplicates));
+        System.out.println(String.format("statements propagated: %d, errors: %d", statements, errors));
+        for (int op = 0; op < OPERATIONS.length; op++) {
+            Samples merged = new Samples();
+            for (Worker worker : workers) {
+                merged.addAll(worker.latencies[op]);
+            }
+            long[] sorted = merged.sorted();
+            if (sorted.length == 0) {
+                continue;
+            }
+            System.out.println(String.format("%-8s count: %d, p50: %.1f us, p99: %.1f us", OPERATIONS[op], sorted.length,
+                    percentile(sorted, 50) / 1e3, percentile(sorted, 99) / 1e3));
+        }
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        return sorted[(int) ((sorted.length - 1) * (long) percentile / 100)];
+    }
+
+    /*
+     * The persistence provider is out of the measure, every operation is accepted and discarded.
+     */
+    private static EntityManager discardingEntityManager() {
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("merge")) {
+                    return args[0];
+                } else if (method.getReturnType() == boolean.class) {
+                    return false;
+                } else if (method.getReturnType() == int.class) {
+                    return 0;
+                }
+                return null;
+            }
+        });
+    }
+
+    private static class Worker extends Thread {
+
+        private final CloudEntityManager entityManager;
+        private final long deadline;
+        private final Samples[] latencies = {new Samples(), new Samples(), new Samples()};
+        private final Samples ids = new Samples();
+        private long errors = 0;
+
+        Worker(CloudEntityManager entityManager, long deadline) {
+            this.entityManager = entityManager;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            int n = 0;
+            while (System.nanoTime() < deadline) {
+                Department department = new Department();
+                department.setName("Department" + n++);
+                for (int op = 0; op < OPERATIONS.length; op++) {
+                    long start = System.nanoTime();
+                    try {
+                        switch (op) {
+                            case 0:
+                                entityManager.persist(department);
+                                ids.add(Integer.parseInt(department.getId()));
+                                break;
+                            case 1:
+                                department.setName(department.getName() + "'");
+                                entityManager.merge(department);
+                                break;
+                            case 2:
+                                entityManager.remove(department);
+                                break;
+                        }
+                        latencies[op].add(System.nanoTime() - start);
+                    } catch (RuntimeException e) {
+                        errors++;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Growable array of primitive samples, to keep boxing out of the measure.
+     */
+    private static class Samples {
+
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(int i) {
+            return (int) values[i];
+        }
+
+        long[] sorted() {
+            long[] copy = Arrays.copyOf(values, size);
+            Arrays.sort(copy);
+            return copy;
+        }
+    }
+}
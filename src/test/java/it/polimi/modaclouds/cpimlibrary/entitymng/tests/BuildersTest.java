@@ -23,6 +23,7 @@ import it.polimi.modaclouds.cpimlibrary.entitymng.statements.InsertStatement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.UpdateStatement;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.BuildersConfiguration;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.UpdateBuilder;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.CompareOperator;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.Filter;
 import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.LogicOperator;
@@ -31,8 +32,11 @@ import org.junit.Test;
 
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * @author Fabio Arcidiacono.
@@ -532,4 +536,68 @@ public class BuildersTest extends TestBase {
 
         Assert.assertTrue(statements.isEmpty());
     }
+
+    @Test
+    public void sharedCascadeTest() {
+        Department department = new Department();
+        department.setId("1");
+        department.setName("Bar");
+        Department sameDepartment = new Department();
+        sameDepartment.setId("1");
+        sameDepartment.setName("Bar");
+
+        EmployeeMTO first = new EmployeeMTO();
+        first.setId("1");
+        first.setName("Fabio");
+        first.setDepartment(department);
+        EmployeeMTO second = new EmployeeMTO();
+        second.setId("2");
+        second.setName("Jacopo");
+        second.setDepartment(department);
+        EmployeeMTO third = new EmployeeMTO();
+        third.setId("3");
+        third.setName("Marco");
+        third.setDepartment(sameDepartment);
+
+        BuildersConfiguration.getInstance().followCascades();
+
+        print("update shared cascade");
+        Deque<Statement> statements = new UpdateBuilder().buildAll(Arrays.asList(first, second, third, first));
+        Assert.assertEquals(4, statements.size());
+        Statement statement = statements.removeFirst();
+        Assert.assertTrue(statement instanceof UpdateStatement);
+        Assert.assertEquals("Department", statement.getTable());
+        for (Statement employee : statements) {
+            Assert.assertTrue(employee instanceof UpdateStatement);
+            Assert.assertFalse("Department".equals(employee.getTable()));
+        }
+    }
+
+    @Test
+    public void largeCascadeTest() {
+        List<EmployeeOTO> employees = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Phone phone = new Phone();
+            phone.setId(String.valueOf(i));
+            phone.setNumber((long) i);
+            EmployeeOTO employee = new EmployeeOTO();
+            employee.setId(String.valueOf(i));
+            employee.setName("Employee" + i);
+            employee.setPhone(phone);
+            employees.add(employee);
+        }
+
+        BuildersConfiguration.getInstance().followCascades();
+
+        print("update large cascade");
+        Deque<Statement> statements = new UpdateBuilder().buildAll(employees);
+        Assert.assertEquals(2 * employees.size(), statements.size());
+        for (int i = 0; i < employees.size(); i++) {
+            Assert.assertEquals("Phone", statements.removeFirst().getTable());
+            Statement statement = statements.removeFirst();
+            Assert.assertEquals("EmployeeOTOne", statement.getTable());
+            Filter condition = (Filter) statement.getConditionsIterator().next();
+            Assert.assertEquals(String.valueOf(i), condition.getValue());
+        }
+    }
 }
@@ -34,12 +34,31 @@ public class ConfigurationTest {
 
         Assert.assertTrue(cloudMetadata.useMigration());
         Assert.assertFalse(cloudMetadata.getFollowCascades());
+        Assert.assertEquals(5000, cloudMetadata.getDrainTimeout());
         Assert.assertEquals("thread", cloudMetadata.getZooKeeperType());
         Assert.assertEquals("localhost:2181", cloudMetadata.getZookeeperConnectionString());
         Assert.assertEquals(5, cloudMetadata.getSeqNumberRange());
+        Assert.assertEquals(0.5, cloudMetadata.getSeqNumberPrefetch(), 0);
+        Assert.assertEquals(0, cloudMetadata.getSeqNumberRangeWindow());
+        Assert.assertEquals(1, cloudMetadata.getSeqNumberRangeMin());
+        Assert.assertEquals(1000, cloudMetadata.getSeqNumberRangeMax());
+        Assert.assertEquals(1000, cloudMetadata.getZooKeeperPollInterval());
         Assert.assertTrue(cloudMetadata.executeBackup());
         Assert.assertFalse(cloudMetadata.isBackupToBlob());
         Assert.assertEquals("/Users/Fabio/Desktop/state/", cloudMetadata.getBackupDir());
         Assert.assertEquals("SeqNumber_", cloudMetadata.getBackupPrefix());
+        Assert.assertEquals(100, cloudMetadata.getBackupHighWaterMark());
+        Assert.assertEquals(2, cloudMetadata.getShippingThreads());
+        Assert.assertEquals(1024, cloudMetadata.getShippingCapacity());
+        Assert.assertEquals(50, cloudMetadata.getShippingBatchSize());
+        Assert.assertEquals(50, cloudMetadata.getShippingInterval());
+        Assert.assertEquals(30000, cloudMetadata.getShippingTimeout());
+        Assert.assertNull(cloudMetadata.getShippingFile());
+        Assert.assertNull(cloudMetadata.getJournalDir());
+        Assert.assertEquals(16 * 1024 * 1024, cloudMetadata.getJournalSegmentSize());
+        Assert.assertFalse(cloudMetadata.useWriteBehind());
+        Assert.assertEquals(100, cloudMetadata.getWriteBehindSize());
+        Assert.assertEquals(1000, cloudMetadata.getWriteBehindInterval());
+        Assert.assertEquals(10, cloudMetadata.getEntityManagerPoolSize());
     }
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.DispenserStateStore;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class DispenserStateStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("dispensers", ".state");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void saveAndLoadTest() {
+        DispenserStateStore store = new DispenserStateStore(file.getAbsolutePath());
+        Assert.assertNull(store.load("Employee"));
+        store.save("Employee", new byte[]{1, 2, 3});
+        store.save("Department", new byte[]{4});
+        store.save("Employee", new byte[]{5, 6});
+        Assert.assertArrayEquals(new byte[]{5, 6}, store.load("Employee"));
+        store.close();
+
+        DispenserStateStore reopened = new DispenserStateStore(file.getAbsolutePath());
+        Assert.assertArrayEquals(new byte[]{5, 6}, reopened.load("Employee"));
+        Assert.assertArrayEquals(new byte[]{4}, reopened.load("Department"));
+    }
+
+    @Test
+    public void growTest() {
+        DispenserStateStore store = new DispenserStateStore(file.getAbsolutePath());
+        for (int i = 0; i < 200; i++) {
+            store.save("Table" + i, new byte[]{(byte) i});
+        }
+        DispenserStateStore reopened = new DispenserStateStore(file.getAbsolutePath());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertArrayEquals(new byte[]{(byte) i}, reopened.load("Table" + i));
+        }
+    }
+
+    @Test
+    public void tornWriteTest() throws Exception {
+        DispenserStateStore store = new DispenserStateStore(file.getAbsolutePath());
+        store.save("Employee", new byte[]{1});
+        store.save("Employee", new byte[]{2});
+        store.close();
+
+        /* damage the copy holding the latest state, the previous one must be restored */
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long latestCopy = 16 + 128 + 32;
+            raf.seek(latestCopy + 9);
+            raf.write(7);
+        }
+        Assert.assertArrayEquals(new byte[]{1}, new DispenserStateStore(file.getAbsolutePath()).load("Employee"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stateTooLargeTest() {
+        new DispenserStateStore(file.getAbsolutePath()).save("Employee", new byte[DispenserStateStore.MAX_STATE_SIZE + 1]);
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.EntityCache;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Employee;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class EntityCacheTest {
+
+    @Test
+    public void localTierTest() {
+        EntityCache cache = new EntityCache(properties("2"));
+        Assert.assertTrue(cache.isEnabled());
+        Assert.assertTrue(cache.isCached(Department.class));
+        Assert.assertTrue(cache.isCached(Employee.class));
+
+        Department first = department("1");
+        cache.put(Department.class, "1", first);
+        Assert.assertEquals("Department 1", cache.get(Department.class, "1").getName());
+        Assert.assertNull(cache.get(Employee.class, "1"));
+
+        cache.evict(first);
+        Assert.assertNull(cache.get(Department.class, "1"));
+
+        cache.put(Department.class, "1", first);
+        cache.put(Department.class, "2", department("2"));
+        /* touch 1 so that 2 is the least recently used */
+        cache.get(Department.class, "1");
+        cache.put(Department.class, "3", department("3"));
+        Assert.assertNotNull(cache.get(Department.class, "1"));
+        Assert.assertNull(cache.get(Department.class, "2"));
+        Assert.assertNotNull(cache.get(Department.class, "3"));
+    }
+
+    @Test
+    public void evictAllTest() {
+        EntityCache cache = new EntityCache(properties("10"));
+        cache.put(Department.class, "1", department("1"));
+        cache.put(Department.class, "2", department("2"));
+        Employee employee = new Employee();
+        employee.setId("1");
+        cache.put(Employee.class, "1", employee);
+
+        cache.evictAll("UPDATE Department d SET d.name = :n WHERE d.name = :o");
+        Assert.assertNull(cache.get(Department.class, "1"));
+        Assert.assertNull(cache.get(Department.class, "2"));
+        Assert.assertEquals("1", cache.get(Employee.class, "1").getId());
+
+        cache.evictAll("DELETE FROM Employee e WHERE e.salary > :s");
+        Assert.assertNull(cache.get(Employee.class, "1"));
+    }
+
+    @Test
+    public void copyTest() {
+        EntityCache cache = new EntityCache(properties("10"));
+        Department department = department("1");
+        cache.put(Department.class, "1", department);
+        department.setName("changed after put");
+
+        Department cached = cache.get(Department.class, "1");
+        Assert.assertNotSame(department, cached);
+        Assert.assertEquals("Department 1", cached.getName());
+        cached.setName("changed after get");
+        Assert.assertNotSame(cached, cache.get(Department.class, "1"));
+        Assert.assertEquals("Department 1", cache.get(Department.class, "1").getName());
+    }
+
+    @Test
+    public void notConfiguredTest() {
+        EntityCache cache = new EntityCache(new HashMap<String, String>());
+        Assert.assertFalse(cache.isEnabled());
+        Assert.assertFalse(cache.isCached(Department.class));
+    }
+
+    private Map<String, String> properties(String size) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(EntityCache.ENTITIES, "Department, it.polimi.modaclouds.cpimlibrary.entitymng.entities.Employee");
+        properties.put(EntityCache.LOCAL_SIZE, size);
+        properties.put(EntityCache.MEMCACHE, "no");
+        return properties;
+    }
+
+    private Department department(String id) {
+        Department department = new Department();
+        department.setId(id);
+        department.setName("Department " + id);
+        return department;
+    }
+}
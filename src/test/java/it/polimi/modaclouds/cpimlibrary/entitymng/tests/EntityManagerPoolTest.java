@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManagerFactory;
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudEntityManagerPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class EntityManagerPoolTest {
+
+    @Test
+    public void borrowAndReleaseTest() throws InterruptedException {
+        CloudEntityManagerPool pool = new CloudEntityManagerPool(new FakeFactory(), 2);
+        CloudEntityManager first = pool.borrow();
+        CloudEntityManager second = pool.borrow();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(0, pool.available());
+        Assert.assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        Assert.assertEquals(1, pool.available());
+        Assert.assertSame(first, pool.borrow());
+
+        second.close();
+        pool.release(second);
+        CloudEntityManager third = pool.borrow(10, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(third);
+        Assert.assertNotSame(second, third);
+    }
+
+    @Test
+    public void releaseTest() {
+        CloudEntityManagerPool pool = new CloudEntityManagerPool(new FakeFactory(), 1);
+        CloudEntityManager entityManager = pool.borrow();
+        pool.release(entityManager);
+        try {
+            pool.release(entityManager);
+            Assert.fail("released twice");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Entity manager was not borrowed from this pool", e.getMessage());
+        }
+        Assert.assertEquals(1, pool.available());
+
+        pool.close();
+        Assert.assertFalse(entityManager.isOpen());
+        try {
+            pool.borrow();
+            Assert.fail("borrowed from a closed pool");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Entity manager pool has been closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failedReleaseTest() {
+        FakeFactory factory = new FakeFactory();
+        CloudEntityManagerPool pool = new CloudEntityManagerPool(factory, 1);
+        CloudEntityManager entityManager = pool.borrow();
+        factory.failClear = true;
+        try {
+            pool.release(entityManager);
+            Assert.fail("release should propagate the error");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("clear failed", e.getMessage());
+        }
+        /* the discarded manager is closed and its permit given back */
+        Assert.assertFalse(entityManager.isOpen());
+        Assert.assertEquals(1, pool.available());
+        factory.failClear = false;
+        Assert.assertNotSame(entityManager, pool.borrow());
+    }
+
+    private static class FakeFactory extends CloudEntityManagerFactory {
+        private volatile boolean failClear = false;
+
+        FakeFactory() {
+            super("test");
+        }
+
+        @Override
+        public CloudEntityManager createCloudEntityManager() {
+            EntityManager delegate = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{EntityManager.class}, new InvocationHandler() {
+                private boolean open = true;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return open;
+                        case "close":
+                            open = false;
+                            return null;
+                        case "clear":
+                            if (failClear) {
+                                throw new IllegalStateException("clear failed");
+                            }
+                            return null;
+                        default:
+                            return null;
+                    }
+                }
+            });
+            return new CloudEntityManager(delegate);
+        }
+    }
+}
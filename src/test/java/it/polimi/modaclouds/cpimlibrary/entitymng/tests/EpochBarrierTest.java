@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.EpochBarrier;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class EpochBarrierTest {
+
+    @Test
+    public void advanceWithoutWriters() {
+        EpochBarrier barrier = new EpochBarrier();
+        Assert.assertTrue(barrier.advance(0));
+        Assert.assertEquals(1, barrier.getEpoch());
+
+        int epoch = barrier.enter();
+        Assert.assertEquals(1, epoch);
+        barrier.exit(epoch);
+        Assert.assertEquals(0, barrier.getActive());
+    }
+
+    @Test
+    public void advanceWaitsForPreviousEpoch() throws InterruptedException {
+        final EpochBarrier barrier = new EpochBarrier();
+        int epoch = barrier.enter();
+
+        final CountDownLatch advanced = new CountDownLatch(1);
+        final AtomicBoolean drained = new AtomicBoolean();
+        Thread transition = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drained.set(barrier.advance(5000));
+                advanced.countDown();
+            }
+        });
+        transition.start();
+
+        Assert.assertFalse(advanced.await(100, TimeUnit.MILLISECONDS));
+        /* new writers are not blocked by the pending transition */
+        int newEpoch = barrier.enter();
+        Assert.assertEquals(epoch + 1, newEpoch);
+        barrier.exit(newEpoch);
+
+        barrier.exit(epoch);
+        Assert.assertTrue(advanced.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(drained.get());
+        Assert.assertEquals(0, barrier.getActive());
+    }
+
+    @Test
+    public void advanceTimesOut() {
+        EpochBarrier barrier = new EpochBarrier();
+        int epoch = barrier.enter();
+        Assert.assertFalse(barrier.advance(50));
+        Assert.assertEquals(1, barrier.getActive());
+
+        barrier.exit(epoch);
+        Assert.assertTrue(barrier.advance(50));
+        Assert.assertEquals(2, barrier.getEpoch());
+    }
+}
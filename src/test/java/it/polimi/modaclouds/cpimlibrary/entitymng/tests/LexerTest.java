@@ -214,4 +214,18 @@ public class LexerTest {
         Assert.assertEquals(":n", token.getData());
         Assert.assertFalse(itr.hasNext());
     }
+
+    @Test
+    public void testCache() {
+        String query = "DELETE FROM Employee e WHERE e.salary > :s";
+        List<Token> tokens = Lexer.lex(query);
+        Assert.assertSame(tokens, Lexer.lex(query));
+        Assert.assertEquals(tokens.toString(), Lexer.lex(new String(query)).toString());
+        try {
+            tokens.clear();
+            Assert.fail("token lists must be unmodifiable");
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+    }
 }
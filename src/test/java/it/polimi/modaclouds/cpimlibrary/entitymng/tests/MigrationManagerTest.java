@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.OperationType;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class MigrationManagerTest {
+
+    private MigrationManager migrant;
+
+    @Before
+    public void setUp() {
+        HegiraConnector.install(new ZKMemory());
+        migrant = MigrationManager.getInstance();
+        if (migrant.isMigrating()) {
+            migrant.stopMigration();
+        }
+    }
+
+    @Test
+    public void concurrentTransitionsTest() throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong propagated = new AtomicLong();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        long before = migrant.getMigrationState().getPropagatedStatements();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Department department = new Department();
+            department.setId(String.valueOf(i));
+            department.setName("Department " + i);
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        MigrationManager.Write write = migrant.beginWrite();
+                        try {
+                            if (write.isMigrating()) {
+                                write.propagate(department, OperationType.UPDATE);
+                                propagated.incrementAndGet();
+                            }
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        } finally {
+                            migrant.endWrite(write);
+                        }
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (int i = 0; i < 20; i++) {
+            migrant.startMigration();
+            Thread.sleep(5);
+            migrant.stopMigration();
+            Thread.sleep(5);
+        }
+        running.set(false);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertFalse(migrant.isMigrating());
+        Assert.assertTrue(propagated.get() > 0);
+        Assert.assertEquals(propagated.get(), migrant.getMigrationState().getPropagatedStatements() - before);
+    }
+
+    @Test
+    public void lateWriteTest() throws InterruptedException {
+        migrant.startMigration();
+        MigrationManager.Write write = migrant.beginWrite();
+        Assert.assertTrue(write.isMigrating());
+        /* the transition gives up waiting after the drain timeout */
+        Thread transition = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                migrant.stopMigration();
+            }
+        });
+        transition.start();
+        transition.join();
+        Assert.assertFalse(migrant.isMigrating());
+        Assert.assertTrue(write.isMigrating());
+
+        Department department = new Department();
+        department.setId("1");
+        try {
+            write.propagate(department, OperationType.UPDATE);
+            Assert.fail("late write should not restart the pipeline");
+        } catch (MigrationException expected) {
+            // expected
+        } finally {
+            migrant.endWrite(write);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudParameter;
+import it.polimi.modaclouds.cpimlibrary.entitymng.ParallelQuery;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Parameter;
+import javax.persistence.Query;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class ParallelQueryTest {
+
+    private static final String QUERY = "SELECT e FROM Employee e WHERE e.salary > :salary ORDER BY e.id";
+
+    @Test
+    public void orderedTest() {
+        FakeProvider provider = new FakeProvider(95);
+        ParallelQuery<Integer> query = new ParallelQuery<>(provider.factory(), QUERY, parameters(), 4, 10, true);
+        List<Integer> results = query.getResultList(-1, -1);
+        Assert.assertEquals(95, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(Integer.valueOf(i), results.get(i));
+        }
+        Assert.assertEquals(provider.opened.get(), provider.closed.get());
+        Assert.assertEquals(Long.valueOf(100), provider.lastSalary);
+    }
+
+    @Test
+    public void unorderedTest() {
+        FakeProvider provider = new FakeProvider(40);
+        ParallelQuery<Integer> query = new ParallelQuery<>(provider.factory(), QUERY, parameters(), 3, 7, false);
+        List<Integer> results = query.getResultList(-1, -1);
+        Assert.assertEquals(40, results.size());
+        Assert.assertEquals(40, new HashSet<>(results).size());
+    }
+
+    @Test
+    public void boundsTest() {
+        FakeProvider provider = new FakeProvider(1000);
+        ParallelQuery<Integer> query = new ParallelQuery<>(provider.factory(), QUERY, parameters(), 4, 10, true);
+        List<Integer> results = query.getResultList(20, 25);
+        Assert.assertEquals(25, results.size());
+        Assert.assertEquals(Integer.valueOf(20), results.get(0));
+        Assert.assertEquals(Integer.valueOf(44), results.get(24));
+        /* no partition is scheduled beyond the max results */
+        Assert.assertEquals(3, provider.opened.get());
+    }
+
+    @Test
+    public void unorderedQueryTest() {
+        FakeProvider provider = new FakeProvider(100);
+        try {
+            new ParallelQuery<Integer>(provider.factory(), "SELECT e FROM Employee e WHERE e.salary > :salary", parameters(), 4, 10, true);
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        Assert.assertEquals(0, provider.opened.get());
+    }
+
+    private Map<Parameter<?>, Object> parameters() {
+        Map<Parameter<?>, Object> parameters = new HashMap<>();
+        parameters.put(new CloudParameter<>("salary", null, Long.class), 100L);
+        return parameters;
+    }
+
+    /*
+     * Fake provider whose queries return the integers in [0, total).
+     */
+    private static class FakeProvider {
+        private final int total;
+        private final AtomicInteger opened = new AtomicInteger();
+        private final AtomicInteger closed = new AtomicInteger();
+        private volatile Object lastSalary;
+
+        FakeProvider(int total) {
+            this.total = total;
+        }
+
+        EntityManagerFactory factory() {
+            return proxy(EntityManagerFactory.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("createEntityManager")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    opened.incrementAndGet();
+                    return entityManager();
+                }
+            });
+        }
+
+        private EntityManager entityManager() {
+            return proxy(EntityManager.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "createQuery":
+                            return query();
+                        case "close":
+                            closed.incrementAndGet();
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+        }
+
+        private Query query() {
+            final int[] page = {0, Integer.MAX_VALUE};
+            return proxy(Query.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "setParameter":
+                            lastSalary = args[1];
+                            return proxy;
+                        case "setFirstResult":
+                            page[0] = (Integer) args[0];
+                            return proxy;
+                        case "setMaxResults":
+                            page[1] = (Integer) args[0];
+                            return proxy;
+                        case "getResultList":
+                            List<Integer> results = new ArrayList<>();
+                            for (int i = page[0]; i < total && results.size() < page[1]; i++) {
+                                results.add(i);
+                            }
+                            return results;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+            return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudParameter;
+import it.polimi.modaclouds.cpimlibrary.entitymng.QueryCache;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Employee;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.Parameter;
+import java.util.*;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class QueryCacheTest {
+
+    private static final String QUERY = "SELECT e FROM Employee e WHERE e.salary > :salary";
+
+    @Test
+    public void hitAndMissTest() {
+        QueryCache cache = new QueryCache(properties("10"));
+        Assert.assertTrue(cache.isEnabled());
+        Assert.assertTrue(cache.isCacheable(QUERY));
+        Assert.assertFalse(cache.isCacheable("DELETE FROM Employee e WHERE e.salary > :salary"));
+
+        QueryCache.QueryKey key = cache.key(QUERY, parameters("salary", 100L), -1, -1, false);
+        Assert.assertNull(cache.get(key));
+        cache.put(key, cache.snapshot(key), Collections.emptyList());
+
+        /* whitespaces do not matter, parameter values do */
+        Assert.assertNotNull(cache.get(cache.key("SELECT e  FROM Employee e\n WHERE e.salary > :salary ", parameters("salary", 100L), -1, -1, false)));
+        Assert.assertNull(cache.get(cache.key(QUERY, parameters("salary", 200L), -1, -1, false)));
+        Assert.assertNull(cache.get(cache.key(QUERY, parameters("salary", 100L), 0, 10, false)));
+        Assert.assertNull(cache.get(cache.key(QUERY, parameters("salary", 100L), -1, -1, true)));
+
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(4, cache.getMisses());
+    }
+
+    @Test
+    public void invalidationTest() {
+        QueryCache cache = new QueryCache(properties("10"));
+        QueryCache.QueryKey employees = cache.key(QUERY, parameters("salary", 100L), -1, -1, false);
+        QueryCache.QueryKey departments = cache.key("SELECT d FROM Department d", parameters(), -1, -1, false);
+        cache.put(employees, cache.snapshot(employees), Collections.emptyList());
+        cache.put(departments, cache.snapshot(departments), Collections.emptyList());
+
+        cache.invalidate(new Department());
+        Assert.assertNull(cache.get(departments));
+        Assert.assertNotNull(cache.get(employees));
+
+        cache.invalidateAll("UPDATE Employee e SET e.salary = :salary WHERE e.name = :name");
+        Assert.assertNull(cache.get(employees));
+        Assert.assertEquals(2, cache.getInvalidations());
+
+        /* a write happened while the query was executing */
+        long[] snapshot = cache.snapshot(employees);
+        cache.invalidate(new Employee());
+        cache.put(employees, snapshot, Collections.emptyList());
+        Assert.assertNull(cache.get(employees));
+    }
+
+    @Test
+    public void joinInvalidationTest() {
+        QueryCache cache = new QueryCache(properties("10"));
+        QueryCache.QueryKey key = cache.key("SELECT e FROM EmployeeMTO e JOIN e.department d WHERE d.name = :name", parameters("name", "Sales"), -1, -1, false);
+        cache.put(key, cache.snapshot(key), Collections.emptyList());
+        Assert.assertNotNull(cache.get(key));
+
+        cache.invalidate(new Department());
+        Assert.assertNull(cache.get(key));
+    }
+
+    @Test
+    public void evictionTest() {
+        QueryCache cache = new QueryCache(properties("2"));
+        QueryCache.QueryKey first = cache.key(QUERY, parameters("salary", 1L), -1, -1, false);
+        QueryCache.QueryKey second = cache.key(QUERY, parameters("salary", 2L), -1, -1, false);
+        QueryCache.QueryKey third = cache.key(QUERY, parameters("salary", 3L), -1, -1, false);
+        cache.put(first, cache.snapshot(first), Collections.emptyList());
+        cache.put(second, cache.snapshot(second), Collections.emptyList());
+        /* touch first so that second is the least recently used */
+        cache.get(first);
+        cache.put(third, cache.snapshot(third), Collections.emptyList());
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        Assert.assertNotNull(cache.get(first));
+        Assert.assertNull(cache.get(second));
+        Assert.assertNotNull(cache.get(third));
+    }
+
+    @Test
+    public void manyQueriesTest() {
+        /* tables read are kept for the most recent queries only and computed again for the others */
+        QueryCache cache = new QueryCache(properties("10"));
+        QueryCache.QueryKey key = cache.key(QUERY, parameters("salary", 100L), -1, -1, false);
+        cache.put(key, cache.snapshot(key), Collections.emptyList());
+        for (int i = 0; i < 1000; i++) {
+            cache.key("SELECT d FROM Department d WHERE d.id = " + i, parameters(), -1, -1, false);
+        }
+
+        cache.invalidate(new Employee());
+        Assert.assertNull(cache.get(cache.key(QUERY, parameters("salary", 100L), -1, -1, false)));
+    }
+
+    @Test
+    public void copyTest() {
+        QueryCache cache = new QueryCache(properties("10"));
+        QueryCache.QueryKey key = cache.key(QUERY, parameters("salary", 100L), -1, -1, false);
+        Employee employee = new Employee();
+        employee.setId("1");
+        employee.setName("Fabio");
+        cache.put(key, cache.snapshot(key), Collections.singletonList(employee));
+        employee.setName("changed after put");
+
+        List<?> first = (List<?>) cache.get(key);
+        Employee cached = (Employee) first.get(0);
+        Assert.assertNotSame(employee, cached);
+        Assert.assertEquals("Fabio", cached.getName());
+        cached.setName("changed after get");
+        List<?> second = (List<?>) cache.get(key);
+        Assert.assertNotSame(cached, second.get(0));
+        Assert.assertEquals("Fabio", ((Employee) second.get(0)).getName());
+    }
+
+    @Test
+    public void notConfiguredTest() {
+        QueryCache cache = new QueryCache(new HashMap<String, String>());
+        Assert.assertFalse(cache.isEnabled());
+    }
+
+    private Map<String, String> properties(String size) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(QueryCache.ENABLED, "yes");
+        properties.put(QueryCache.SIZE, size);
+        return properties;
+    }
+
+    private Map<Parameter<?>, Object> parameters(Object... nameValues) {
+        Map<Parameter<?>, Object> parameters = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            parameters.put(new CloudParameter<>((String) nameValues[i], null, nameValues[i + 1].getClass()), nameValues[i + 1]);
+        }
+        return parameters;
+    }
+}
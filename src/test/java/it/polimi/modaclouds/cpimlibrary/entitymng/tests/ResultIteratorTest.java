@@ -0,0 +1,195 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.ResultIterator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class ResultIteratorTest {
+
+    @Test
+    public void pagingTest() {
+        PagedQuery paged = new PagedQuery(25);
+        List<Integer> results = drain(new ResultIterator<Integer>(null, paged.query(), 10, -1, -1, false));
+        Assert.assertEquals(25, results.size());
+        Assert.assertEquals(Integer.valueOf(0), results.get(0));
+        Assert.assertEquals(Integer.valueOf(24), results.get(24));
+        Assert.assertEquals(3, paged.fetches);
+        Assert.assertEquals(10, paged.largestPage);
+    }
+
+    @Test
+    public void boundsTest() {
+        PagedQuery paged = new PagedQuery(100);
+        List<Integer> results = drain(new ResultIterator<Integer>(null, paged.query(), 10, 5, 12, false));
+        Assert.assertEquals(12, results.size());
+        Assert.assertEquals(Integer.valueOf(5), results.get(0));
+        Assert.assertEquals(Integer.valueOf(16), results.get(11));
+        Assert.assertEquals(2, paged.fetches);
+
+        ResultIterator<Integer> empty = new ResultIterator<>(null, new PagedQuery(0).query(), 10, -1, -1, false);
+        Assert.assertFalse(empty.hasNext());
+        try {
+            empty.next();
+            Assert.fail("NoSuchElementException expected");
+        } catch (NoSuchElementException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void prefetchTest() {
+        PagedQuery paged = new PagedQuery(30);
+        List<Integer> results = drain(new ResultIterator<Integer>(null, paged.query(), 10, -1, -1, true));
+        Assert.assertEquals(30, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            Assert.assertEquals(Integer.valueOf(i), results.get(i));
+        }
+        /* last page is empty since 30 is a multiple of the page size */
+        Assert.assertEquals(4, paged.fetches);
+    }
+
+    @Test
+    public void detachTest() {
+        PagedQuery paged = new PagedQuery(25);
+        DetachingManager manager = new DetachingManager();
+        ResultIterator<Integer> iterator = new ResultIterator<>(manager.entityManager(), paged.query(), 10, -1, -1, false);
+        for (int i = 0; i < 10; i++) {
+            iterator.next();
+        }
+        Assert.assertTrue(manager.detached.isEmpty());
+        /* moving to the second page detaches the first one */
+        Assert.assertTrue(iterator.hasNext());
+        Assert.assertEquals(10, manager.detached.size());
+        Assert.assertEquals(Integer.valueOf(9), manager.detached.get(9));
+        drain(iterator);
+        /* the last page is detached when the iterator is exhausted */
+        Assert.assertEquals(25, manager.detached.size());
+
+        manager = new DetachingManager();
+        List<Integer> results = drain(new ResultIterator<Integer>(manager.entityManager(), new PagedQuery(30).query(), 10, -1, -1, true));
+        Assert.assertEquals(results, manager.detached);
+    }
+
+    @Test
+    public void closeTest() throws InterruptedException {
+        /* closing waits for the page being fetched in background and detaches it */
+        PagedQuery paged = new PagedQuery(100);
+        paged.delay = 200;
+        DetachingManager manager = new DetachingManager();
+        ResultIterator<Integer> iterator = new ResultIterator<>(manager.entityManager(), paged.query(), 10, -1, -1, true);
+        Assert.assertEquals(Integer.valueOf(0), iterator.next());
+        /* let the fetch of the second page start */
+        Thread.sleep(50);
+        iterator.close();
+        Assert.assertEquals(20, manager.detached.size());
+        Assert.assertEquals(2, paged.fetches);
+        Assert.assertFalse(iterator.hasNext());
+        Thread.sleep(300);
+        Assert.assertEquals(2, paged.fetches);
+    }
+
+    private List<Integer> drain(ResultIterator<Integer> iterator) {
+        List<Integer> results = new ArrayList<>();
+        while (iterator.hasNext()) {
+            results.add(iterator.next());
+        }
+        return results;
+    }
+
+    /*
+     * Fake provider entity manager recording the detached results.
+     */
+    private static class DetachingManager implements InvocationHandler {
+        private final List<Object> detached = new ArrayList<>();
+
+        EntityManager entityManager() {
+            return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class}, this);
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+            if (!method.getName().equals("detach")) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            detached.add(args[0]);
+            return null;
+        }
+    }
+
+    /*
+     * Fake provider query over the integers in [0, total).
+     */
+    private static class PagedQuery implements InvocationHandler {
+        private final int total;
+        private int first = 0;
+        private int max = Integer.MAX_VALUE;
+        private int fetches = 0;
+        private int largestPage = 0;
+        private volatile long delay = 0;
+
+        PagedQuery(int total) {
+            this.total = total;
+        }
+
+        Query query() {
+            return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[]{Query.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "setFirstResult":
+                    first = (Integer) args[0];
+                    return proxy;
+                case "setMaxResults":
+                    max = (Integer) args[0];
+                    return proxy;
+                case "getResultList":
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException("fetch interrupted", e);
+                        }
+                    }
+                    fetches++;
+                    List<Integer> page = new ArrayList<>();
+                    for (int i = first; i < total && page.size() < max; i++) {
+                        page.add(i);
+                    }
+                    largestPage = Math.max(largestPage, page.size());
+                    return page;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
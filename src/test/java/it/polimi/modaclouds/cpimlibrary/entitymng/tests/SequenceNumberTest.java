@@ -17,18 +17,29 @@
 package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
 
 import it.polimi.modaclouds.cpimlibrary.entitymng.PersistenceMetadata;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.DispenserStateStore;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberDispenserImpl;
 import it.polimi.modaclouds.cpimlibrary.entitymng.migration.SeqNumberProvider;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory;
 import it.polimi.modaclouds.cpimlibrary.exception.CloudException;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
 import it.polimi.modaclouds.cpimlibrary.mffactory.MF;
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Fabio Arcidiacono.
@@ -57,6 +68,161 @@ public class SequenceNumberTest {
         }
     }
 
+    @Test
+    public void testBatchSequenceNumbers() {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+
+        int range = MF.getFactory().getCloudMetadata().getSeqNumberRange();
+        int single = seqNumberProvider.getNextSequenceNumber("Employee");
+        int[] batch = seqNumberProvider.getNextSequenceNumbers("Employee", range * 3);
+        Assert.assertEquals(range * 3, batch.length);
+        Assert.assertEquals(single + 1, batch[0]);
+        for (int i = 1; i < batch.length; i++) {
+            Assert.assertTrue(batch[i - 1] < batch[i]);
+        }
+        int after = seqNumberProvider.getNextSequenceNumber("Employee");
+        Assert.assertTrue(batch[batch.length - 1] < after);
+    }
+
+    @Test
+    public void testConcurrentSequenceNumbers() throws InterruptedException {
+        final SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        final int threads = 8;
+        final int perThread = MF.getFactory().getCloudMetadata().getSeqNumberRange() * 10;
+        final Set<Integer> receivedIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        receivedIds.add(seqNumberProvider.getNextSequenceNumber("Employee"));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        Assert.assertEquals(threads * perThread, receivedIds.size());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws InterruptedException {
+        final SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads * 2);
+        for (int t = 0; t < threads; t++) {
+            final String table = "Runtime" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    seqNumberProvider.addTable(table);
+                    done.countDown();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20; i++) {
+                        seqNumberProvider.getNextSequenceNumber("Employee");
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        for (int t = 0; t < threads; t++) {
+            Assert.assertTrue(seqNumberProvider.getNextSequenceNumber("Runtime" + t) > 0);
+        }
+        Assert.assertSame(seqNumberProvider, SeqNumberProvider.getInstance());
+    }
+
+    @Test
+    public void testRegisterTableTwice() {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        String table = "Twice_" + System.currentTimeMillis();
+        seqNumberProvider.addTable(table);
+        seqNumberProvider.setOffset(table, 7);
+        int before = seqNumberProvider.getNextSequenceNumber(table);
+
+        seqNumberProvider.addTable(table);
+        Assert.assertEquals(7, seqNumberProvider.getOffset(table));
+        Assert.assertTrue(seqNumberProvider.getNextSequenceNumber(table) > before);
+    }
+
+    @Test
+    public void testRetryFailedRestore() throws IOException {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        String table = "Broken_" + System.currentTimeMillis();
+        File file = new File(MF.getFactory().getCloudMetadata().getBackupDir() + MF.getFactory().getCloudMetadata().getBackupPrefix() + table);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a state".getBytes(Charset.forName("UTF-8")));
+        out.close();
+        try {
+            seqNumberProvider.addTable(table);
+            Assert.fail("restore of a malformed state should fail");
+        } catch (MigrationException e) {
+            Assert.assertTrue(file.delete());
+        }
+
+        Assert.assertTrue(seqNumberProvider.getNextSequenceNumber(table) > 0);
+    }
+
+    @Test
+    public void testPartialRangeBatch() throws Exception {
+        ZKMemory zooKeeper = new ZKMemory() {
+            @Override
+            public int[] assignSeqNrRange(String tableName, int offset) throws Exception {
+                if (tableName.equals("Broken")) {
+                    throw new Exception("cannot assign range for " + tableName);
+                }
+                return super.assignSeqNrRange(tableName, offset);
+            }
+        };
+        Map<String, Integer> offsets = new HashMap<>();
+        offsets.put("Employee", 10);
+        offsets.put("Department", 10);
+        offsets.put("Broken", 10);
+
+        Map<String, int[]> ranges = zooKeeper.assignSeqNrRanges(offsets);
+        Assert.assertEquals(2, ranges.size());
+        Assert.assertArrayEquals(new int[]{1, 10}, ranges.get("Employee"));
+        Assert.assertArrayEquals(new int[]{1, 10}, ranges.get("Department"));
+        Assert.assertFalse(ranges.containsKey("Broken"));
+
+        try {
+            zooKeeper.assignSeqNrRanges(Collections.singletonMap("Broken", 10));
+            Assert.fail("a batch where every table failed should fail");
+        } catch (Exception e) {
+            Assert.assertEquals("cannot assign range for Broken", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+
+        int range = seqNumberProvider.getOffset("Department");
+        long refills = seqNumberProvider.getRefills("Department");
+        for (int i = 0; i < range * 3; i++) {
+            seqNumberProvider.getNextSequenceNumber("Department");
+        }
+        Assert.assertTrue(seqNumberProvider.getRefills("Department") >= refills + 2);
+        Assert.assertTrue(seqNumberProvider.getAllocationRate("Department") > 0);
+        Assert.assertTrue(seqNumberProvider.getRefillInterval("Department") > 0);
+    }
+
+    @Test
+    public void testWarmUp() {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        String table = "WarmUp_" + System.currentTimeMillis();
+        seqNumberProvider.addTable(table);
+
+        seqNumberProvider.getNextSequenceNumber(table);
+        /* the first number comes from the range asked in background on registration */
+        Assert.assertEquals(1, seqNumberProvider.getRefills(table));
+    }
+
     @Test
     public void testOffsetConfiguration() {
         SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
@@ -98,6 +264,55 @@ public class SequenceNumberTest {
         SeqNumberProvider.getInstance().addTable("pippo");
     }
 
+    @Test
+    public void testRestoreAfterCrash() throws CloudException {
+        SeqNumberProvider seqNumberProvider = SeqNumberProvider.getInstance();
+        Set<Integer> served = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            served.add(seqNumberProvider.getNextSequenceNumber("Employee"));
+        }
+
+        /* restore what is on disk right now, as a restarted application would after a crash */
+        String fileName = MF.getFactory().getCloudMetadata().getBackupDir() + MF.getFactory().getCloudMetadata().getBackupPrefix() + "dispensers.state";
+        byte[] state = new DispenserStateStore(fileName).load("Employee");
+        Assert.assertNotNull(state);
+        SeqNumberDispenserImpl restored = new SeqNumberDispenserImpl("Employee");
+        Assert.assertTrue(restored.restore(state));
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(served.add(restored.nextSequenceNumber()));
+        }
+    }
+
+    @Test
+    public void testRestoreHighWaterMark() throws CloudException {
+        int range = MF.getFactory().getCloudMetadata().getSeqNumberRange();
+        SeqNumberDispenserImpl dispenser = new SeqNumberDispenserImpl("Test");
+        Set<Integer> served = new HashSet<>();
+        int first = dispenser.nextSequenceNumber();
+        served.add(first);
+        /* the mark covers the next two sequence numbers, the restore resumes in the same range */
+        byte[] state = dispenser.saveHighWaterMark(first + 3);
+        Assert.assertEquals(13, state.length);
+        served.add(dispenser.nextSequenceNumber());
+        served.add(dispenser.nextSequenceNumber());
+
+        SeqNumberDispenserImpl restored = new SeqNumberDispenserImpl("Test");
+        Assert.assertTrue(restored.restore(state));
+        Assert.assertEquals(first + 3, restored.nextSequenceNumber());
+
+        /* a mark beyond the range restores to a fresh range */
+        state = dispenser.saveHighWaterMark(first + range);
+        Assert.assertEquals(1, state.length);
+        for (int i = 0; i < range * 2; i++) {
+            served.add(dispenser.nextSequenceNumber());
+        }
+        restored = new SeqNumberDispenserImpl("Test");
+        Assert.assertTrue(restored.restore(state));
+        for (int i = 0; i < range * 2; i++) {
+            Assert.assertTrue(served.add(restored.nextSequenceNumber()));
+        }
+    }
+
     @Test
     public void testSaveAndRestore() {
         SeqNumberDispenserImpl dispenser = new SeqNumberDispenserImpl("Test");
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.*;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class StatementCodecTest {
+
+    @Test
+    public void insertTest() {
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("ID", "1:5");
+        statement.addField("NAME", "Fàbio €");
+        statement.addField("SALARY", -789L);
+        statement.addField("AGE", 27);
+        statement.addField("RATE", 1.5d);
+        statement.addField("ACTIVE", true);
+        statement.addField("HIRED", new Date(1420070400000L));
+        statement.addField("NOTE", null);
+
+        Statement decoded = StatementCodec.decode(StatementCodec.encode(statement));
+        Assert.assertTrue(decoded instanceof InsertStatement);
+        Assert.assertEquals(statement.toString(), decoded.toString());
+        Iterator<Filter> expected = statement.getFieldsIterator();
+        Iterator<Filter> actual = decoded.getFieldsIterator();
+        while (expected.hasNext()) {
+            Filter field = actual.next();
+            Filter original = expected.next();
+            Assert.assertEquals(original.getColumn(), field.getColumn());
+            Assert.assertEquals(original.getValue(), field.getValue());
+        }
+        Assert.assertFalse(actual.hasNext());
+    }
+
+    @Test
+    public void updateTest() {
+        Statement statement = new UpdateStatement();
+        statement.setTable("Employee");
+        statement.addField("SALARY", 100L);
+        Condition negated = new NotCondition(new InCondition("NAME", Arrays.<Object>asList("Fabio", "Pippo"), false));
+        Condition or = LogicCondition.of(LogicOperator.OR, new Filter("SALARY", CompareOperator.GREATER_THAN, 10L), new NullCondition("NAME", true));
+        statement.setCondition(LogicCondition.of(LogicOperator.AND, negated, or));
+
+        Statement decoded = StatementCodec.decode(StatementCodec.encode(statement));
+        Assert.assertTrue(decoded instanceof UpdateStatement);
+        Assert.assertEquals(statement.toString(), decoded.toString());
+        Assert.assertTrue(decoded.getCondition() instanceof LogicCondition);
+    }
+
+    @Test
+    public void batchTest() {
+        List<Statement> statements = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Statement statement = new DeleteStatement();
+            statement.setTable("Employee");
+            statement.addCondition("ID", CompareOperator.EQUAL, String.valueOf(i));
+            statement.addCondition(LogicOperator.AND.toString());
+            statement.addCondition("NAME", CompareOperator.NOT_EQUAL, "name" + i);
+            statements.add(statement);
+        }
+        ByteBuffer single = StatementCodec.encode(statements.get(0));
+        ByteBuffer batch = StatementCodec.encode(statements);
+        /* column names are written once per batch */
+        Assert.assertTrue(batch.remaining() < single.remaining() * statements.size());
+
+        List<Statement> decoded = StatementCodec.decodeAll(batch);
+        Assert.assertEquals(statements.size(), decoded.size());
+        for (int i = 0; i < statements.size(); i++) {
+            Assert.assertTrue(decoded.get(i) instanceof DeleteStatement);
+            Assert.assertEquals(statements.get(i).toString(), decoded.get(i).toString());
+        }
+        Assert.assertFalse(batch.hasRemaining());
+    }
+
+    @Test
+    public void valueTypesTest() {
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("BONUS", new BigDecimal("-12345678901234567890.0042"));
+        statement.addField("BADGE", new BigInteger("98765432109876543210"));
+        statement.addField("OPERATOR", CompareOperator.LOWER_THAN);
+
+        Statement decoded = StatementCodec.decode(StatementCodec.encode(statement));
+        Iterator<Filter> expected = statement.getFieldsIterator();
+        Iterator<Filter> actual = decoded.getFieldsIterator();
+        while (expected.hasNext()) {
+            Assert.assertEquals(expected.next().getValue(), actual.next().getValue());
+        }
+        Assert.assertFalse(actual.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownValueTypeTest() {
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("LOCALE", Locale.ITALY);
+        StatementCodec.encode(statement);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void versionTest() {
+        Statement statement = new DeleteStatement();
+        statement.setTable("Employee");
+        ByteBuffer buffer = StatementCodec.encode(statement);
+        buffer.put(0, (byte) (StatementCodec.VERSION + 1));
+        StatementCodec.decode(buffer);
+    }
+
+    @Test
+    public void surrogateTest() {
+        String name = "F\uD800bio \uD83D\uDE00";
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("NAME", name);
+
+        Statement decoded = StatementCodec.decode(StatementCodec.encode(statement));
+        Assert.assertEquals(new String(name.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), decoded.getFieldsIterator().next().getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedTest() {
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("NAME", "Fabio");
+        ByteBuffer buffer = StatementCodec.encode(statement);
+        buffer.limit(buffer.limit() - 3);
+        StatementCodec.decode(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptLengthTest() {
+        Statement statement = new DeleteStatement();
+        statement.setTable("Employee");
+        ByteBuffer buffer = StatementCodec.encode(statement);
+        /* version, no columns, one statement, type, then the table name length */
+        buffer.put(4, (byte) 100);
+        StatementCodec.decode(buffer);
+    }
+}
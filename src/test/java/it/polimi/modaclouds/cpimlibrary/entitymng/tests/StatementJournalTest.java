@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementJournal;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.InsertStatement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class StatementJournalTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replayTest() {
+        StatementJournal journal = new StatementJournal(directory.getAbsolutePath(), 4096);
+        List<Statement> appended = new ArrayList<>();
+        long offset = 0;
+        for (int i = 0; i < 10; i++) {
+            appended.add(statement(i));
+            offset = journal.append(appended.get(i));
+        }
+        journal.commit(offset);
+        Assert.assertEquals(offset, journal.getCommittedOffset());
+        journal.acknowledge(appended.subList(0, 4));
+
+        /* reopening without closing simulates a crash */
+        StatementJournal reopened = new StatementJournal(directory.getAbsolutePath(), 4096);
+        Assert.assertEquals(offset, reopened.getWrittenOffset());
+        List<Statement> replayed = reopened.replay();
+        Assert.assertEquals(6, replayed.size());
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(statement(i + 4).toString(), replayed.get(i).toString());
+        }
+        reopened.acknowledge(replayed);
+        Assert.assertEquals(offset, reopened.getAcknowledgedOffset());
+        Assert.assertTrue(new StatementJournal(directory.getAbsolutePath(), 4096).replay().isEmpty());
+    }
+
+    @Test
+    public void compactionTest() {
+        StatementJournal journal = new StatementJournal(directory.getAbsolutePath(), 256);
+        List<Statement> appended = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            appended.add(statement(i));
+            journal.append(appended.get(i));
+        }
+        Assert.assertTrue(segments() > 2);
+        journal.acknowledge(appended.subList(0, 50));
+        int afterHalf = segments();
+        journal.acknowledge(appended.subList(50, 100));
+        Assert.assertTrue(segments() < afterHalf);
+        Assert.assertEquals(1, segments());
+        journal.close();
+
+        StatementJournal reopened = new StatementJournal(directory.getAbsolutePath(), 256);
+        Assert.assertTrue(reopened.replay().isEmpty());
+        reopened.append(statement(100));
+        Assert.assertEquals(1, new StatementJournal(directory.getAbsolutePath(), 256).replay().size());
+    }
+
+    @Test
+    public void tornRecordTest() throws Exception {
+        StatementJournal journal = new StatementJournal(directory.getAbsolutePath(), 4096);
+        journal.append(statement(0));
+        long end = journal.append(statement(1));
+        journal.close();
+
+        /* corrupt the payload of the last record */
+        File segment = directory.listFiles(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".log");
+            }
+        })[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(end - 1);
+            file.write(0x7F);
+        }
+        StatementJournal reopened = new StatementJournal(directory.getAbsolutePath(), 4096);
+        Assert.assertTrue(reopened.getWrittenOffset() < end);
+        Assert.assertEquals(1, reopened.replay().size());
+    }
+
+    @Test
+    public void groupCommitTest() throws InterruptedException {
+        final StatementJournal journal = new StatementJournal(directory.getAbsolutePath(), 1 << 20);
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] committed = new long[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        long offset = journal.append(statement(i));
+                        journal.commit(offset);
+                        committed[index] = Math.max(committed[index], offset);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        for (long offset : committed) {
+            Assert.assertTrue(journal.getCommittedOffset() >= offset);
+        }
+        Assert.assertEquals(threads * 100, new StatementJournal(directory.getAbsolutePath(), 1 << 20).replay().size());
+    }
+
+    private int segments() {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.endsWith(".log")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Statement statement(int id) {
+        Statement statement = new InsertStatement();
+        statement.setTable("Employee");
+        statement.addField("ID", id);
+        statement.addField("NAME", "name" + id);
+        return statement;
+    }
+}
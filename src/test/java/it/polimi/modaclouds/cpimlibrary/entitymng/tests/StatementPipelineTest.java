@@ -0,0 +1,277 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.FileSink;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementPipeline;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.StatementSink;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.InsertStatement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import it.polimi.modaclouds.cpimlibrary.exception.MigrationException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class StatementPipelineTest {
+
+    @Test
+    public void orderingTest() throws InterruptedException {
+        final MemorySink sink = new MemorySink(0);
+        final StatementPipeline pipeline = new StatementPipeline(sink, 3, 16, 10, 5, 1000);
+        pipeline.start();
+        final int producers = 4;
+        final int statements = 500;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final String table = "Table" + p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < statements; i++) {
+                        pipeline.submit(statement(table, i));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        pipeline.stop();
+
+        Assert.assertEquals(producers * statements, pipeline.getShippedStatements());
+        Assert.assertEquals(producers * statements, sink.statements.size());
+        Map<String, Integer> last = new HashMap<>();
+        for (Statement statement : sink.statements) {
+            int id = (Integer) statement.getFieldsIterator().next().getValue();
+            Integer previous = last.put(statement.getTable(), id);
+            Assert.assertEquals(previous == null ? 0 : previous + 1, id);
+        }
+        for (int size : sink.batchSizes) {
+            Assert.assertTrue(size <= 10);
+        }
+    }
+
+    @Test
+    public void unitOrderingTest() throws InterruptedException {
+        /* units span several tables, as the statements generated for an entity and its relations */
+        final MemorySink sink = new MemorySink(0);
+        final StatementPipeline pipeline = new StatementPipeline(sink, 3, 16, 10, 5, 1000);
+        pipeline.start();
+        final int producers = 4;
+        final int units = 200;
+        final CountDownLatch done = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < units; i++) {
+                        int id = producer * units + i;
+                        pipeline.submit(Arrays.asList(statement("Employee", id), statement("Department", id)));
+                        pipeline.submit(statement("Department", -id - 1));
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        pipeline.stop();
+
+        Assert.assertEquals(producers * units * 3, sink.statements.size());
+        /* every table sees the units in the same order */
+        List<Integer> employees = new ArrayList<>();
+        List<Integer> departments = new ArrayList<>();
+        Map<Integer, Integer> last = new HashMap<>();
+        for (Statement statement : sink.statements) {
+            int id = (Integer) statement.getFieldsIterator().next().getValue();
+            if (statement.getTable().equals("Employee")) {
+                employees.add(id);
+            } else if (id >= 0) {
+                departments.add(id);
+                last.put(id / units, id);
+            } else {
+                /* the single table unit follows the unit submitted before by the same producer */
+                Assert.assertEquals(Integer.valueOf(-id - 1), last.get((-id - 1) / units));
+            }
+        }
+        Assert.assertEquals(employees, departments);
+    }
+
+    @Test
+    public void undeliveredTest() {
+        StatementPipeline pipeline = new StatementPipeline(new StatementSink() {
+            @Override
+            public void ship(List<Statement> batch) {
+                throw new IllegalStateException("migration system unreachable");
+            }
+        }, 1, 16, 2, 0, 1000);
+        pipeline.start();
+        for (int i = 0; i < 5; i++) {
+            pipeline.submit(statement("Employee", i));
+        }
+        pipeline.stop();
+
+        List<Statement> undelivered = pipeline.getUndelivered();
+        Assert.assertEquals(5, undelivered.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(statement("Employee", i).toString(), undelivered.get(i).toString());
+        }
+        Assert.assertEquals(0, pipeline.getShippedStatements());
+    }
+
+    @Test
+    public void interruptedSubmitTest() {
+        /* an interrupted submitter still enqueues every statement and keeps its interrupt status */
+        MemorySink sink = new MemorySink(1);
+        StatementPipeline pipeline = new StatementPipeline(sink, 1, 2, 1, 0, 1000);
+        pipeline.start();
+        Thread.currentThread().interrupt();
+        for (int i = 0; i < 20; i++) {
+            pipeline.submit(statement("Employee", i));
+        }
+        Assert.assertTrue(Thread.interrupted());
+        pipeline.stop();
+        Assert.assertEquals(20, sink.size());
+    }
+
+    @Test
+    public void stuckLaneTest() {
+        /* a migration system that does not come back makes submitters fail instead of blocking them */
+        StatementPipeline pipeline = new StatementPipeline(new StatementSink() {
+            @Override
+            public void ship(List<Statement> batch) {
+                throw new IllegalStateException("migration system unreachable");
+            }
+        }, 1, 2, 1, 0, 100);
+        pipeline.start();
+        int submitted = 0;
+        try {
+            for (; submitted < 10; submitted++) {
+                pipeline.submit(statement("Employee", submitted));
+            }
+            Assert.fail("submit should fail once the lane is stuck");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().startsWith("Lane full"));
+        }
+        pipeline.stop();
+        Assert.assertEquals(submitted, pipeline.getUndelivered().size());
+    }
+
+    @Test
+    public void intervalTest() throws InterruptedException {
+        MemorySink sink = new MemorySink(0);
+        StatementPipeline pipeline = new StatementPipeline(sink, 1, 16, 100, 10, 1000);
+        pipeline.start();
+        pipeline.submit(statement("Employee", 0));
+        long start = System.currentTimeMillis();
+        while (sink.size() == 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(1, sink.size());
+        pipeline.stop();
+        Assert.assertEquals(1, pipeline.getShippedBatches());
+    }
+
+    @Test
+    public void backPressureTest() {
+        /* a slow sink with a tiny buffer forces the submitter to wait, no statement is lost */
+        MemorySink sink = new MemorySink(1);
+        StatementPipeline pipeline = new StatementPipeline(sink, 1, 2, 1, 0, 1000);
+        pipeline.start();
+        for (int i = 0; i < 50; i++) {
+            pipeline.submit(statement("Employee", i));
+        }
+        pipeline.stop();
+        Assert.assertEquals(50, sink.size());
+        Assert.assertFalse(pipeline.isRunning());
+    }
+
+    @Test
+    public void fileSinkTest() throws Exception {
+        File file = File.createTempFile("statements", ".log");
+        file.deleteOnExit();
+        StatementPipeline pipeline = new StatementPipeline(new FileSink(file.getAbsolutePath()), 2, 64, 7, 1000, 1000);
+        pipeline.start();
+        for (int i = 0; i < 30; i++) {
+            pipeline.submit(statement("Employee", i));
+        }
+        pipeline.stop();
+
+        List<Statement> statements = FileSink.read(file.getAbsolutePath());
+        Assert.assertEquals(30, statements.size());
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(statement("Employee", i).toString(), statements.get(i).toString());
+        }
+    }
+
+    @Test(expected = MigrationException.class)
+    public void truncatedFileSinkTest() throws Exception {
+        File file = File.createTempFile("statements", ".log");
+        file.deleteOnExit();
+        new FileSink(file.getAbsolutePath()).ship(Arrays.asList(statement("Employee", 0), statement("Employee", 1)));
+        try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+            truncated.setLength(truncated.length() - 2);
+        }
+        FileSink.read(file.getAbsolutePath());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void notRunningTest() {
+        new StatementPipeline(new MemorySink(0), 1, 1, 1, 1, 1000).submit(statement("Employee", 0));
+    }
+
+    private static Statement statement(String table, int id) {
+        Statement statement = new InsertStatement();
+        statement.setTable(table);
+        statement.addField("ID", id);
+        return statement;
+    }
+
+    private static class MemorySink implements StatementSink {
+
+        private final long delay;
+        private final List<Statement> statements = Collections.synchronizedList(new ArrayList<Statement>());
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+        MemorySink(long delay) {
+            this.delay = delay;
+        }
+
+        @Override
+        public void ship(List<Statement> batch) {
+            statements.addAll(batch);
+            batchSizes.add(batch.size());
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        int size() {
+            return statements.size();
+        }
+    }
+}
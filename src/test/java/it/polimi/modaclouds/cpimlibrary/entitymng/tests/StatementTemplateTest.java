@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.CloudParameter;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.DeleteStatement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.Statement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.UpdateStatement;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.DeleteBuilder;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.builders.UpdateBuilder;
+import it.polimi.modaclouds.cpimlibrary.entitymng.statements.utils.*;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.Query;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class StatementTemplateTest {
+
+    private static final String UPDATE = "UPDATE Employee e SET e.salary = :s WHERE e.name = :n OR e.salary <> :s2";
+
+    @Test
+    public void rebindTest() {
+        Statement first = new UpdateBuilder().build(query("s", 789L, "n", "Fabio", "s2", 123L), UPDATE).removeFirst();
+        Statement second = new UpdateBuilder().build(query("s", 1L, "n", "Pippo", "s2", 2L), UPDATE).removeFirst();
+
+        Assert.assertTrue(second instanceof UpdateStatement);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals("Employee", second.getTable());
+        Filter field = second.getFieldsIterator().next();
+        Assert.assertEquals("SALARY", field.getColumn());
+        Assert.assertEquals(1L, field.getValue());
+        Assert.assertEquals(789L, first.getFieldsIterator().next().getValue());
+
+        Iterator<Object> conditions = second.getConditionsIterator();
+        Filter condition = (Filter) conditions.next();
+        Assert.assertEquals("NAME", condition.getColumn());
+        Assert.assertEquals(CompareOperator.EQUAL, condition.getOperator());
+        Assert.assertEquals("Pippo", condition.getValue());
+        Assert.assertEquals(LogicOperator.OR, conditions.next());
+        condition = (Filter) conditions.next();
+        Assert.assertEquals(CompareOperator.NOT_EQUAL, condition.getOperator());
+        Assert.assertEquals(2L, condition.getValue());
+        Assert.assertFalse(conditions.hasNext());
+    }
+
+    @Test
+    public void deleteTest() {
+        Statement statement = new DeleteBuilder().build(query("n", "Fabio"), "DELETE FROM Employee e WHERE e.name = :n").removeFirst();
+        Assert.assertTrue(statement instanceof DeleteStatement);
+        Assert.assertEquals("Employee", statement.getTable());
+        Assert.assertFalse(statement.getFieldsIterator().hasNext());
+        Filter condition = (Filter) statement.getConditionsIterator().next();
+        Assert.assertEquals("NAME", condition.getColumn());
+        Assert.assertEquals("Fabio", condition.getValue());
+    }
+
+    @Test
+    public void precedenceTest() {
+        Statement statement = new DeleteBuilder().build(query("n", "Fabio", "s", 1L, "s2", 2L),
+                "DELETE FROM Employee e WHERE e.name = :n OR e.salary > :s AND e.salary < :s2").removeFirst();
+        LogicCondition root = (LogicCondition) statement.getCondition();
+        Assert.assertEquals(LogicOperator.OR, root.getOperator());
+        Assert.assertEquals(2, root.getOperands().size());
+        Assert.assertEquals(LogicOperator.AND, ((LogicCondition) root.getOperands().get(1)).getOperator());
+        Assert.assertEquals("DELETE FROM Employee WHERE NAME = 'Fabio' OR (SALARY > '1' AND SALARY < '2')", statement.toString());
+    }
+
+    @Test
+    public void parenthesesTest() {
+        Statement statement = new UpdateBuilder().build(query("s", 5L, "n", "Fabio", "n2", "Pippo"),
+                "UPDATE Employee e SET e.salary = :s WHERE (e.name = :n OR e.name = :n2) AND NOT (e.salary >= 100)").removeFirst();
+        LogicCondition root = (LogicCondition) statement.getCondition();
+        Assert.assertEquals(LogicOperator.AND, root.getOperator());
+        Assert.assertTrue(root.getOperands().get(1) instanceof NotCondition);
+        Assert.assertEquals("UPDATE Employee SET SALARY = '5' WHERE (NAME = 'Fabio' OR NAME = 'Pippo') AND NOT (SALARY >= '100')", statement.toString());
+
+        /* the flat view keeps the nested group as a single condition */
+        Iterator<Object> conditions = statement.getConditionsIterator();
+        Assert.assertTrue(conditions.next() instanceof LogicCondition);
+        Assert.assertEquals(LogicOperator.AND, conditions.next());
+        Assert.assertTrue(conditions.next() instanceof NotCondition);
+        Assert.assertFalse(conditions.hasNext());
+    }
+
+    @Test
+    public void inAndNullTest() {
+        Statement statement = new DeleteBuilder().build(query("a", "Fabio", "b", "Pippo", "ids", Arrays.asList(1L, 2L)),
+                "DELETE FROM Employee e WHERE e.name IN (:a, :b) AND e.salary NOT IN :ids AND e.name IS NOT NULL").removeFirst();
+        List<Condition> operands = ((LogicCondition) statement.getCondition()).getOperands();
+        InCondition in = (InCondition) operands.get(0);
+        Assert.assertEquals(Arrays.<Object>asList("Fabio", "Pippo"), in.getValues());
+        Assert.assertFalse(in.isNegated());
+        InCondition notIn = (InCondition) operands.get(1);
+        Assert.assertEquals(Arrays.<Object>asList(1L, 2L), notIn.getValues());
+        Assert.assertTrue(notIn.isNegated());
+        Assert.assertTrue(((NullCondition) operands.get(2)).isNegated());
+        Assert.assertEquals("DELETE FROM Employee WHERE NAME IN ('Fabio', 'Pippo') AND SALARY NOT IN ('1', '2') AND NAME IS NOT NULL", statement.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbalancedTest() {
+        new DeleteBuilder().build(query("n", "Fabio"), "DELETE FROM Employee e WHERE (e.name = :n");
+    }
+
+    /*
+     * Fake query exposing only the given named parameters.
+     */
+    private Query query(Object... nameValues) {
+        final Map<String, Object> values = new HashMap<>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            values.put((String) nameValues[i], nameValues[i + 1]);
+        }
+        return (Query) Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[]{Query.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "getParameter":
+                        Object value = values.get(args[0]);
+                        return new CloudParameter<>((String) args[0], null, value.getClass());
+                    case "getParameterValue":
+                        return values.get(((CloudParameter<?>) args[0]).getName());
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.modaclouds.cpimlibrary.entitymng.WriteBehindBuffer;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Department;
+import it.polimi.modaclouds.cpimlibrary.entitymng.entities.Employee;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.OperationType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class WriteBehindBufferTest {
+
+    @Test
+    public void coalesceTest() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 60000);
+        Employee employee = employee("1");
+        Employee updated = employee("1");
+        Employee removed = employee("2");
+        Department department = new Department();
+        department.setId("1");
+
+        buffer.add(employee, OperationType.INSERT);
+        buffer.add(updated, OperationType.UPDATE);
+        buffer.add(removed, OperationType.UPDATE);
+        buffer.add(removed, OperationType.DELETE);
+        buffer.add(department, OperationType.INSERT);
+        buffer.add(department, OperationType.DELETE);
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertSame(updated, buffer.getPending(Employee.class, "1"));
+        Assert.assertTrue(buffer.isPending(Employee.class, "2"));
+        Assert.assertNull(buffer.getPending(Employee.class, "2"));
+        Assert.assertFalse(buffer.isPending(Department.class, "1"));
+
+        List<String> calls = new ArrayList<>();
+        List<Object> flushed = new ArrayList<>();
+        buffer.flushTo(recorder(calls), flushed);
+        Assert.assertEquals(2, flushed.size());
+        Assert.assertEquals(2, calls.size());
+        Assert.assertEquals("persist 1", calls.get(0));
+        Assert.assertEquals("remove 2", calls.get(1));
+        Assert.assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void thresholdTest() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(2, 60000);
+        Assert.assertFalse(buffer.isFlushNeeded());
+        buffer.add(employee("1"), OperationType.UPDATE);
+        Assert.assertFalse(buffer.isFlushNeeded());
+        buffer.add(employee("1"), OperationType.UPDATE);
+        Assert.assertFalse(buffer.isFlushNeeded());
+        buffer.add(employee("2"), OperationType.UPDATE);
+        Assert.assertTrue(buffer.isFlushNeeded());
+
+        buffer = new WriteBehindBuffer(100, 1);
+        buffer.add(employee("1"), OperationType.UPDATE);
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertTrue(buffer.isFlushNeeded());
+    }
+
+    @Test
+    public void flushDelayTest() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 60000);
+        Assert.assertEquals(-1, buffer.getFlushDelay());
+        buffer.add(employee("1"), OperationType.UPDATE);
+        long delay = buffer.getFlushDelay();
+        Assert.assertTrue(delay > 0 && delay <= 60000);
+        buffer.flushTo(recorder(new ArrayList<String>()), new ArrayList<Object>());
+        Assert.assertEquals(-1, buffer.getFlushDelay());
+
+        buffer = new WriteBehindBuffer(100, 1);
+        buffer.add(employee("1"), OperationType.UPDATE);
+        try {
+            Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals(0, buffer.getFlushDelay());
+    }
+
+    @Test
+    public void failedFlushTest() {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(100, 60000);
+        buffer.add(employee("1"), OperationType.UPDATE);
+        buffer.add(employee("2"), OperationType.UPDATE);
+        buffer.add(employee("3"), OperationType.UPDATE);
+
+        final List<String> calls = new ArrayList<>();
+        EntityManager failing = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String id = ((Employee) args[0]).getId();
+                if (id.equals("2")) {
+                    throw new IllegalStateException("store unavailable");
+                }
+                calls.add(method.getName() + " " + id);
+                return args[0];
+            }
+        });
+        List<Object> flushed = new ArrayList<>();
+        try {
+            buffer.flushTo(failing, flushed);
+            Assert.fail("flush should raise the error of the delegate");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("store unavailable", e.getMessage());
+        }
+        /* the failed write and the following one are still buffered */
+        Assert.assertEquals(1, flushed.size());
+        Assert.assertEquals(2, buffer.size());
+        Assert.assertFalse(buffer.isPending(Employee.class, "1"));
+        Assert.assertTrue(buffer.isPending(Employee.class, "2"));
+        Assert.assertTrue(buffer.isPending(Employee.class, "3"));
+
+        calls.clear();
+        buffer.flushTo(recorder(calls), flushed);
+        Assert.assertEquals("merge 2", calls.get(0));
+        Assert.assertEquals("merge 3", calls.get(1));
+        Assert.assertEquals(0, buffer.size());
+    }
+
+    private Employee employee(String id) {
+        Employee employee = new Employee();
+        employee.setId(id);
+        employee.setName("Fabio");
+        return employee;
+    }
+
+    private EntityManager recorder(final List<String> calls) {
+        return (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                calls.add(method.getName() + " " + ((Employee) args[0]).getId());
+                return args[0];
+            }
+        });
+    }
+}
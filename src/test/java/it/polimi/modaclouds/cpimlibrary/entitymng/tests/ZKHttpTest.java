@@ -0,0 +1,125 @@
+/**
+ * Copyright 2013 deib-polimi
+ * Contact: deib-polimi <marco.miglierina@polimi.it>
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package it.polimi.modaclouds.cpimlibrary.entitymng.tests;
+
+import it.polimi.hegira.zkWrapper.rest.RestClient;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.MigrationManager;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.HegiraConnector;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKHttp;
+import it.polimi.modaclouds.cpimlibrary.entitymng.migration.hegira.ZKMemory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Fabio Arcidiacono.
+ */
+public class ZKHttpTest {
+
+    private static final long POLL_INTERVAL = 20;
+    private MigrationManager migrant;
+    private StubClient client;
+
+    @Before
+    public void setUp() {
+        HegiraConnector.install(new ZKMemory());
+        migrant = MigrationManager.getInstance();
+        if (migrant.isMigrating()) {
+            migrant.stopMigration();
+        }
+        client = new StubClient();
+        HegiraConnector.install(new ZKHttp(client, POLL_INTERVAL));
+    }
+
+    @After
+    public void tearDown() {
+        client.release.countDown();
+        /* closes the http client */
+        HegiraConnector.install(new ZKMemory());
+        if (migrant.isMigrating()) {
+            migrant.stopMigration();
+        }
+    }
+
+    @Test
+    public void pollerTest() throws InterruptedException {
+        client.synchronizing = true;
+        Assert.assertTrue(awaitMigrating(true));
+        Assert.assertTrue(HegiraConnector.getInstance().isSynchronizing());
+
+        client.synchronizing = false;
+        Assert.assertTrue(awaitMigrating(false));
+        Assert.assertFalse(HegiraConnector.getInstance().isSynchronizing());
+    }
+
+    @Test
+    public void stalledPollerTest() throws InterruptedException {
+        client.hang = true;
+        Assert.assertTrue(client.blocked.await(1, TimeUnit.SECONDS));
+        client.synchronizing = true;
+        Thread.sleep(3 * POLL_INTERVAL);
+        Assert.assertFalse(migrant.isMigrating());
+
+        /* the write refreshes the stale state itself and is bound to the new one */
+        MigrationManager.Write write = migrant.beginWrite();
+        try {
+            Assert.assertTrue(write.isMigrating());
+        } finally {
+            migrant.endWrite(write);
+        }
+        Assert.assertTrue(migrant.isMigrating());
+    }
+
+    private boolean awaitMigrating(boolean migrating) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (migrant.isMigrating() != migrating) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /*
+     * Serves the synchronization state from memory, when hanging blocks the poller
+     * (a daemon thread) while still answering callers.
+     */
+    private static class StubClient extends RestClient {
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean synchronizing;
+        private volatile boolean hang;
+
+        StubClient() {
+            super("http://localhost");
+        }
+
+        @Override
+        public boolean isSynchronizing() throws Exception {
+            if (hang && Thread.currentThread().isDaemon()) {
+                blocked.countDown();
+                release.await();
+            }
+            return synchronizing;
+        }
+    }
+}